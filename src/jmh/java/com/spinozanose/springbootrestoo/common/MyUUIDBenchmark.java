@@ -0,0 +1,39 @@
+package com.spinozanose.springbootrestoo.common;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every create makes one. In the multi-threaded run this also shows whether generating them
+ * contends on a shared source of randomness; randomUUID is what MyUUID used to do, for comparison.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MyUUIDBenchmark {
+
+    @Benchmark
+    public String generate() {
+        return new MyUUID().toString();
+    }
+
+    @Benchmark
+    public String randomUUID() {
+        return UUID.randomUUID().toString();
+    }
+
+    @Benchmark
+    public byte[] generateBytes() {
+        return new MyUUID().toBytes();
+    }
+}
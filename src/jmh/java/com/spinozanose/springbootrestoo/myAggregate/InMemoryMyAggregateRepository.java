@@ -0,0 +1,32 @@
+package com.spinozanose.springbootrestoo.myAggregate;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A repository that costs next to nothing, so the benchmarks of the factory measure the factory
+ * and not the file store. Safe for the multi-threaded runs.
+ */
+final class InMemoryMyAggregateRepository implements MyAggregateRepository {
+
+    private final Map<String, Map<String, Object>> aggregates = new ConcurrentHashMap<>();
+
+    @Override
+    public void write(final Map<String, Object> data) {
+        aggregates.put((String) data.get(MyAggregateDto.ID), data);
+    }
+
+    @Override
+    public Map<String, Object> read(final String id) {
+        return aggregates.get(id);
+    }
+
+    @Override
+    public void delete(final String id) {
+        aggregates.remove(id);
+    }
+
+    void clear() {
+        aggregates.clear();
+    }
+}
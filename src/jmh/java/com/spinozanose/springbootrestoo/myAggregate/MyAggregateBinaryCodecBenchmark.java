@@ -0,0 +1,76 @@
+package com.spinozanose.springbootrestoo.myAggregate;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The two forms a record can take in the file store, both ways. The payloads are in direct
+ * buffers, as the memory-mapped segments are, and decoding JSON is done the way the store does it.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MyAggregateBinaryCodecBenchmark {
+
+    private Map<String, Object> data;
+    private ByteBuffer json;
+    private ByteBuffer binary;
+
+    @Setup
+    public void setUp() {
+        data = new HashMap<>();
+        data.put(MyAggregateDto.ID, "0190a1b2-c3d4-7e5f-8a9b-0c1d2e3f4a5b");
+        data.put(MyAggregateDto.A_NUMBER, 23);
+        data.put(MyAggregateDto.A_STRING, "a string of about the length of a real one");
+        json = direct(JSONObject.toJSONString(data).getBytes(StandardCharsets.UTF_8));
+        binary = direct(MyAggregateBinaryCodec.encode(data));
+    }
+
+    private static ByteBuffer direct(final byte[] bytes) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer;
+    }
+
+    @Benchmark
+    public byte[] encodeJson() {
+        return JSONObject.toJSONString(data).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return MyAggregateBinaryCodec.encode(data);
+    }
+
+    @Benchmark
+    public Object decodeJson() throws ParseException {
+        final byte[] bytes = new byte[json.remaining()];
+        json.duplicate().get(bytes);
+        return new JSONParser().parse(new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public Map<String, Object> decodeBinary() {
+        return MyAggregateBinaryCodec.decode(binary);
+    }
+}
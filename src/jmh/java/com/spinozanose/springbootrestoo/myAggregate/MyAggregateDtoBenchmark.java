@@ -0,0 +1,66 @@
+package com.spinozanose.springbootrestoo.myAggregate;
+
+import com.spinozanose.springbootrestoo.common.exceptions.InvalidDomainDataException;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Getting from a request body to a MyAggregateDto: from a Map, and from JSON the way the
+ * controller does it (streaming, see MyAggregateDtoReader). The json-simple parse is what the
+ * batch endpoint does for each item, and what the controller used to do, for comparison.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MyAggregateDtoBenchmark {
+
+    private Map<String, Object> data;
+    private byte[] json;
+
+    @Setup
+    public void setUp() {
+        data = new HashMap<>();
+        data.put(MyAggregateDto.ID, "8d5d7a4c-3a4e-4a57-9a0c-1d3c9f0f6b2e");
+        data.put(MyAggregateDto.A_NUMBER, 23);
+        data.put(MyAggregateDto.A_STRING, "a string of about the length of a real one");
+        json = JSONObject.toJSONString(data).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public MyAggregateDto fromMap() {
+        return new MyAggregateDto(data);
+    }
+
+    @Benchmark
+    public MyAggregateDto fromJson() throws InvalidDomainDataException, IOException {
+        return MyAggregateDtoReader.read(new ByteArrayInputStream(json));
+    }
+
+    @Benchmark
+    public MyAggregateDto fromJsonViaJsonSimple() throws ParseException {
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> parsed = (Map<String, Object>) new JSONParser().parse(new String(json, StandardCharsets.UTF_8));
+        return new MyAggregateDto(parsed);
+    }
+}
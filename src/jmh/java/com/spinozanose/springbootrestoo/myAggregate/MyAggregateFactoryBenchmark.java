@@ -0,0 +1,132 @@
+package com.spinozanose.springbootrestoo.myAggregate;
+
+import com.spinozanose.springbootrestoo.common.exceptions.DomainPersistenceException;
+import com.spinozanose.springbootrestoo.common.exceptions.InvalidDomainDataException;
+import com.spinozanose.springbootrestoo.common.exceptions.ObjectNotFoundException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The factory's create, read, update and delete, on an in-memory repository and with a search
+ * service that ignores what it is told, so what is measured is the domain's own work: validating,
+ * building MyAggregateRoots, DTOs and Maps, and the locking around updates and deletes.
+ * <p>
+ * The threads share the factory and a small set of aggregates, so in the multi-threaded run
+ * (jmhThreaded) updates and deletes contend for the same ids now and then, as they would on a
+ * busy node.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MyAggregateFactoryBenchmark {
+
+    private static final int AGGREGATES = 1024;
+
+    private MyAggregateFactory factory;
+    private InMemoryMyAggregateRepository repository;
+    private final String[] ids = new String[AGGREGATES];
+    private final Map<String, Object>[] stored = newMapArray(AGGREGATES);
+    private final MyAggregateDto[] updates = new MyAggregateDto[AGGREGATES];
+    private MyAggregateDto newAggregate;
+
+    /**
+     * Where each thread is in the set of aggregates.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        int next() {
+            final int i = next;
+            next = (i + 1) % AGGREGATES;
+            return i;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object>[] newMapArray(final int size) {
+        return new Map[size];
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        repository = new InMemoryMyAggregateRepository();
+        factory = new MyAggregateFactory();
+        factory.repository = repository;
+        factory.searchService = searchParams -> Collections.emptyList();
+        for (int i = 0; i < AGGREGATES; i++) {
+            ids[i] = "id-" + i;
+            stored[i] = aggregate(ids[i], i, "stored " + i);
+            updates[i] = new MyAggregateDto(aggregate(ids[i], i + 1, "updated " + i));
+        }
+        final Map<String, Object> data = aggregate(null, 23, "a string");
+        data.remove(MyAggregateDto.ID);
+        newAggregate = new MyAggregateDto(data);
+    }
+
+    /**
+     * Creates pile up, so every iteration starts again from the same aggregates.
+     */
+    @Setup(Level.Iteration)
+    public void reset() {
+        repository.clear();
+        for (Map<String, Object> data : stored) {
+            repository.write(new HashMap<>(data));
+        }
+    }
+
+    private static Map<String, Object> aggregate(final String id, final int aNumber, final String aString) {
+        final Map<String, Object> data = new HashMap<>();
+        data.put(MyAggregateDto.ID, id);
+        data.put(MyAggregateDto.A_NUMBER, aNumber);
+        data.put(MyAggregateDto.A_STRING, aString);
+        return data;
+    }
+
+    @Benchmark
+    public MyAggregate create() throws InvalidDomainDataException, DomainPersistenceException {
+        return factory.create(newAggregate);
+    }
+
+    @Benchmark
+    public MyAggregate read(final Cursor cursor) throws DomainPersistenceException {
+        return factory.read(ids[cursor.next()]);
+    }
+
+    @Benchmark
+    public void update(final Cursor cursor) throws ObjectNotFoundException, InvalidDomainDataException, DomainPersistenceException {
+        factory.update(updates[cursor.next()]);
+    }
+
+    /**
+     * Puts the aggregate back first, straight into the repository, so there is always something
+     * to delete. That costs a map put, which is noise next to the delete.
+     */
+    @Benchmark
+    public void delete(final Cursor cursor) throws DomainPersistenceException {
+        final int i = cursor.next();
+        repository.write(stored[i]);
+        try {
+            factory.delete(ids[i]);
+        } catch (ObjectNotFoundException e) {
+            // another thread deleted it between our write and our delete
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.spinozanose.springbootrestoo.myAggregate;
+
+import com.spinozanose.springbootrestoo.common.exceptions.InvalidDomainDataException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a MyAggregateRoot costs to look at: every read, cached or not, ends in one of these.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MyAggregateRootBenchmark {
+
+    private MyAggregateRoot root;
+
+    @Setup
+    public void setUp() throws InvalidDomainDataException {
+        final Map<String, Object> data = new HashMap<>();
+        data.put(MyAggregateDto.ID, "8d5d7a4c-3a4e-4a57-9a0c-1d3c9f0f6b2e");
+        data.put(MyAggregateDto.A_NUMBER, 23);
+        data.put(MyAggregateDto.A_STRING, "a string of about the length of a real one");
+        root = new MyAggregateRoot(new MyAggregateDto(data), null, null);
+    }
+
+    @Benchmark
+    public Map<String, Object> toMap() {
+        return root.toMap();
+    }
+
+    @Benchmark
+    public MyAggregateDto toDto() {
+        return root.toDto();
+    }
+}
@@ -0,0 +1,310 @@
+package com.spinozanose.springbootrestoo.loadtest;
+
+import com.spinozanose.springbootrestoo.common.metrics.LatencyHistogram;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends requests from a fixed number of connections, each a thread that sends one request, waits
+ * for the response, and sends the next: a closed loop, like the clients of a real service. Each
+ * connection has a schedule, its share of the target rate at even intervals, and sends each
+ * request when it is due, or at once if it is already late.
+ * <p>
+ * A closed loop on its own hides the worst latencies. When the service stalls for a second, the
+ * connections stall with it and simply do not send the requests they were due to send meanwhile,
+ * so the stall shows up as one slow request per connection instead of a second's worth. This is
+ * coordinated omission. To correct for it each latency is measured from when the request was due,
+ * not from when it was sent: a request sent late because the one before it was slow counts the
+ * wait too, as it would for a real client that had arrived on time. That is the number reported.
+ * The service time (from sending to the response) is kept as well, and the difference between the
+ * two is the queueing the service caused.
+ * <p>
+ * If the service cannot keep up with the rate the requests fall further and further behind, the
+ * corrected latencies grow without bound, and the throughput reported is less than the target.
+ * That is the answer to the capacity question, not a flaw in the test.
+ */
+final class LoadGenerator {
+
+    enum Operation {
+        CREATE("POST /v1/myaggregate"),
+        READ("GET /v1/myaggregate/{id}"),
+        UPDATE("PUT /v1/myaggregate/{id}"),
+        DELETE("DELETE /v1/myaggregate/{id}"),
+        SEARCH("GET /v1/myaggregates");
+
+        final String path;
+
+        Operation(final String path) {
+            this.path = path;
+        }
+    }
+
+    /**
+     * The latencies and errors of one operation.
+     */
+    static final class Stats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LatencyHistogram serviceTime = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+
+        long count() {
+            return latency.count();
+        }
+
+        long errors() {
+            return errors.sum();
+        }
+    }
+
+    static final class Result {
+        private final Map<Operation, Stats> stats;
+        private final double seconds;
+
+        private Result(final Map<Operation, Stats> stats, final double seconds) {
+            this.stats = stats;
+            this.seconds = seconds;
+        }
+
+        Stats stats(final Operation operation) {
+            return stats.get(operation);
+        }
+
+        void print(final PrintStream out) {
+            out.printf("%-30s %10s %8s %10s %10s %10s %10s %14s%n",
+                    "operation", "requests/s", "errors", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "p99 service ms");
+            long total = 0;
+            for (Map.Entry<Operation, Stats> entry : stats.entrySet()) {
+                final Stats operation = entry.getValue();
+                total += operation.count();
+                out.printf("%-30s %10.1f %8d %10.2f %10.2f %10.2f %10.2f %14.2f%n",
+                        entry.getKey().path,
+                        operation.count() / seconds,
+                        operation.errors(),
+                        millis(operation.latency.valueAt(50)),
+                        millis(operation.latency.valueAt(99)),
+                        millis(operation.latency.valueAt(99.9)),
+                        millis(operation.latency.max()),
+                        millis(operation.serviceTime.valueAt(99)));
+            }
+            out.printf("%-30s %10.1f%n", "all", total / seconds);
+        }
+
+        private static double millis(final long nanos) {
+            return nanos / 1_000_000.0;
+        }
+    }
+
+    private static final int SEED_BATCH = 1000;
+
+    private final String url;
+    private final int connections;
+    private final Operation[] operations;
+    private final int[] cumulativeWeights;
+    private final HttpClient client;
+    // the ids of aggregates that should be there: creates put theirs in, deletes take theirs out
+    private AtomicReferenceArray<String> ids = new AtomicReferenceArray<>(1);
+
+    LoadGenerator(final String url, final int connections, final Map<Operation, Integer> mix) {
+        this.url = url;
+        this.connections = connections;
+        this.operations = mix.keySet().toArray(new Operation[0]);
+        this.cumulativeWeights = new int[operations.length];
+        int sum = 0;
+        for (int i = 0; i < operations.length; i++) {
+            sum += mix.get(operations[i]);
+            cumulativeWeights[i] = sum;
+        }
+        if (sum <= 0) throw new IllegalArgumentException("The mix has no weight");
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
+    /**
+     * Creates the aggregates the reads, updates and deletes work on, with the batch endpoint.
+     */
+    void seed(final int count) throws IOException, InterruptedException {
+        ids = new AtomicReferenceArray<>(Math.max(1, count));
+        final JSONParser parser = new JSONParser();
+        for (int from = 0; from < count; from += SEED_BATCH) {
+            final List<Map<String, Object>> batch = new ArrayList<>();
+            for (int i = from; i < Math.min(count, from + SEED_BATCH); i++) {
+                batch.add(aggregate(null, i));
+            }
+            final HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(url + "/v1/myaggregates/batch"))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(JSONValue.toJSONString(batch)))
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                throw new IOException("Seeding failed with " + response.statusCode() + ": " + response.body());
+            }
+            final JSONArray results;
+            try {
+                results = (JSONArray) parser.parse(response.body());
+            } catch (ParseException e) {
+                throw new IOException("Seeding returned something other than JSON", e);
+            }
+            for (int i = 0; i < results.size(); i++) {
+                ids.set(from + i, (String) ((JSONObject) results.get(i)).get("id"));
+            }
+        }
+    }
+
+    /**
+     * Sends the mix at the rate for as long as asked, and waits for the last responses.
+     */
+    Result run(final int rate, final int seconds) throws InterruptedException {
+        final Map<Operation, Stats> stats = new EnumMap<>(Operation.class);
+        for (Operation operation : operations) {
+            stats.put(operation, new Stats());
+        }
+        final long intervalNanos = TimeUnit.SECONDS.toNanos(1) * connections / Math.max(1, rate);
+        final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+        final long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        final List<Thread> threads = new ArrayList<>(connections);
+        for (int c = 0; c < connections; c++) {
+            // staggered, so the connections do not all send at the same moment
+            final long first = start + intervalNanos * c / connections;
+            final Thread thread = new Thread(() -> send(first, intervalNanos, end, stats), "load-" + c);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return new Result(stats, (System.nanoTime() - start) / 1e9);
+    }
+
+    private void send(final long first, final long intervalNanos, final long end, final Map<Operation, Stats> stats) {
+        for (long due = first; due < end; due += intervalNanos) {
+            long now;
+            while ((now = System.nanoTime()) < due) {
+                LockSupport.parkNanos(due - now);
+            }
+            final Operation operation = pick();
+            final Stats operationStats = stats.get(operation);
+            boolean ok;
+            try {
+                ok = send(operation);
+            } catch (IOException e) {
+                ok = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            final long done = System.nanoTime();
+            operationStats.latency.record(done - due);
+            operationStats.serviceTime.record(done - now);
+            if (!ok) operationStats.errors.increment();
+        }
+    }
+
+    private Operation pick() {
+        final int r = ThreadLocalRandom.current().nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (r < cumulativeWeights[i]) return operations[i];
+        }
+        return operations[operations.length - 1];
+    }
+
+    /**
+     * @return whether the response was the one expected
+     */
+    private boolean send(final Operation operation) throws IOException, InterruptedException {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        switch (operation) {
+            case CREATE: {
+                final HttpResponse<Void> response = client.send(json(url + "/v1/myaggregate")
+                        .POST(HttpRequest.BodyPublishers.ofString(JSONObject.toJSONString(aggregate(null, random.nextInt(1_000_000)))))
+                        .build(), HttpResponse.BodyHandlers.discarding());
+                if (response.statusCode() != 201) return false;
+                final String location = response.headers().firstValue("Location").orElse("");
+                // replaces a random one, so the set of ids stays the same size
+                ids.set(random.nextInt(ids.length()), location.substring(location.lastIndexOf('/') + 1));
+                return true;
+            }
+            case READ: {
+                final String id = anyId();
+                if (id == null) return false;
+                return client.send(HttpRequest.newBuilder(URI.create(url + "/v1/myaggregate/" + id)).GET().build(),
+                        HttpResponse.BodyHandlers.discarding()).statusCode() == 200;
+            }
+            case UPDATE: {
+                final String id = anyId();
+                if (id == null) return false;
+                return client.send(json(url + "/v1/myaggregate/" + id)
+                        .PUT(HttpRequest.BodyPublishers.ofString(JSONObject.toJSONString(aggregate(id, random.nextInt(1_000_000)))))
+                        .build(), HttpResponse.BodyHandlers.discarding()).statusCode() == 200;
+            }
+            case DELETE: {
+                final String id = takeId();
+                if (id == null) return false;
+                return client.send(HttpRequest.newBuilder(URI.create(url + "/v1/myaggregate/" + id + "?id=" + id)).DELETE().build(),
+                        HttpResponse.BodyHandlers.discarding()).statusCode() == 200;
+            }
+            default: {
+                final int from = random.nextInt(1_000_000);
+                return client.send(HttpRequest.newBuilder(URI.create(url + "/v1/myaggregates?aNumber.gte=" + from + "&aNumber.lt=" + (from + 1000) + "&limit=20"))
+                        .GET().build(), HttpResponse.BodyHandlers.discarding()).statusCode() == 200;
+            }
+        }
+    }
+
+    /**
+     * @return a random id that should be there, or null if a few tries only found deleted ones
+     */
+    private String anyId() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < 8; i++) {
+            final String id = ids.get(random.nextInt(ids.length()));
+            if (id != null) return id;
+        }
+        return null;
+    }
+
+    /**
+     * Like anyId, but takes the id out first, so nothing else reads or deletes it meanwhile.
+     */
+    private String takeId() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < 8; i++) {
+            final String id = ids.getAndSet(random.nextInt(ids.length()), null);
+            if (id != null) return id;
+        }
+        return null;
+    }
+
+    private static HttpRequest.Builder json(final String uri) {
+        return HttpRequest.newBuilder(URI.create(uri)).header("Content-Type", "application/json");
+    }
+
+    private static Map<String, Object> aggregate(final String id, final int aNumber) {
+        final Map<String, Object> aggregate = new HashMap<>();
+        if (id != null) aggregate.put("id", id);
+        aggregate.put("aNumber", aNumber);
+        aggregate.put("aString", "load test " + aNumber);
+        return aggregate;
+    }
+}
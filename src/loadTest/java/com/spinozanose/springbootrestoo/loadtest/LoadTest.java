@@ -0,0 +1,124 @@
+package com.spinozanose.springbootrestoo.loadtest;
+
+import com.spinozanose.springbootrestoo.SpringbootRestOoApplication;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Drives a mix of creates, reads, updates, deletes and searches at MyAggregate at a fixed rate,
+ * and reports the throughput and the latency percentiles of each. Run it with
+ * <pre>
+ *   ./gradlew loadTest -Dload.rate=2000 -Dload.durationSeconds=60
+ * </pre>
+ * Unless load.url points it at a running application, it starts one itself, on a free port on
+ * localhost with its file store in a temporary directory, seeds it with load.seedAggregates
+ * aggregates, and stops it afterwards. Everything stays on this machine. The myaggregate.* and
+ * email.* properties are passed on to the application, so a configuration (group commit, say) can
+ * be load tested as it would run.
+ * <p>
+ * To gate a release on it, set load.maxP99Millis and/or load.maxErrorPercent: if any operation is
+ * over, the exit code is 1. See LoadGenerator for how the load is generated, and why its latencies
+ * are worse than most load tools would report.
+ */
+public final class LoadTest {
+
+    static final String URL_PROPERTY = "load.url";
+    static final String RATE_PROPERTY = "load.rate";
+    static final String DURATION_SECONDS_PROPERTY = "load.durationSeconds";
+    static final String WARMUP_SECONDS_PROPERTY = "load.warmupSeconds";
+    static final String CONNECTIONS_PROPERTY = "load.connections";
+    static final String MIX_PROPERTY = "load.mix";
+    static final String SEED_AGGREGATES_PROPERTY = "load.seedAggregates";
+    static final String MAX_P99_MILLIS_PROPERTY = "load.maxP99Millis";
+    static final String MAX_ERROR_PERCENT_PROPERTY = "load.maxErrorPercent";
+
+    private static final String DEFAULT_MIX = "create=10,read=60,update=20,delete=5,search=5";
+
+    private LoadTest() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final int rate = Integer.getInteger(RATE_PROPERTY, 500);
+        final int durationSeconds = Integer.getInteger(DURATION_SECONDS_PROPERTY, 30);
+        final int warmupSeconds = Integer.getInteger(WARMUP_SECONDS_PROPERTY, 10);
+        final int connections = Integer.getInteger(CONNECTIONS_PROPERTY, 32);
+        final int seedAggregates = Integer.getInteger(SEED_AGGREGATES_PROPERTY, 10_000);
+        final Map<LoadGenerator.Operation, Integer> mix = parseMix(System.getProperty(MIX_PROPERTY, DEFAULT_MIX));
+
+        String url = System.getProperty(URL_PROPERTY);
+        ConfigurableApplicationContext application = null;
+        Path directory = null;
+        if (url == null) {
+            directory = Files.createTempDirectory("myaggregate-load-test");
+            System.setProperty("myaggregate.store.directory", directory.toString());
+            application = SpringApplication.run(SpringbootRestOoApplication.class,
+                    "--server.port=0", "--server.address=127.0.0.1", "--logging.level.root=WARN");
+            url = "http://127.0.0.1:" + ((WebServerApplicationContext) application).getWebServer().getPort();
+        }
+        int exitCode;
+        try {
+            final LoadGenerator generator = new LoadGenerator(url, connections, mix);
+            System.out.printf("Seeding %s with %d aggregates%n", url, seedAggregates);
+            generator.seed(seedAggregates);
+            System.out.printf("Warming up for %d s at %d requests/s%n", warmupSeconds, rate);
+            generator.run(rate, warmupSeconds);
+            System.out.printf("Measuring for %d s at %d requests/s over %d connections%n", durationSeconds, rate, connections);
+            final LoadGenerator.Result result = generator.run(rate, durationSeconds);
+            result.print(System.out);
+            exitCode = check(result) ? 0 : 1;
+        } finally {
+            if (application != null) application.close();
+            if (directory != null) delete(directory);
+        }
+        System.exit(exitCode);
+    }
+
+    /**
+     * @return false if an operation is over one of the limits that were set
+     */
+    private static boolean check(final LoadGenerator.Result result) {
+        final String maxP99Millis = System.getProperty(MAX_P99_MILLIS_PROPERTY);
+        final String maxErrorPercent = System.getProperty(MAX_ERROR_PERCENT_PROPERTY);
+        boolean passed = true;
+        for (LoadGenerator.Operation operation : LoadGenerator.Operation.values()) {
+            final LoadGenerator.Stats stats = result.stats(operation);
+            if (stats.count() == 0) continue;
+            if (maxP99Millis != null && stats.latency.valueAt(99) > Double.parseDouble(maxP99Millis) * 1_000_000) {
+                System.out.printf("FAILED: %s p99 is over %s ms%n", operation.path, maxP99Millis);
+                passed = false;
+            }
+            if (maxErrorPercent != null && 100.0 * stats.errors() / stats.count() > Double.parseDouble(maxErrorPercent)) {
+                System.out.printf("FAILED: %s errors are over %s%%%n", operation.path, maxErrorPercent);
+                passed = false;
+            }
+        }
+        return passed;
+    }
+
+    static Map<LoadGenerator.Operation, Integer> parseMix(final String mix) {
+        final Map<LoadGenerator.Operation, Integer> weights = new EnumMap<>(LoadGenerator.Operation.class);
+        for (String part : mix.split(",")) {
+            final String[] nameAndWeight = part.trim().split("=");
+            if (nameAndWeight.length != 2) {
+                throw new IllegalArgumentException("Not operation=weight in " + MIX_PROPERTY + ": " + part);
+            }
+            weights.put(LoadGenerator.Operation.valueOf(nameAndWeight[0].trim().toUpperCase()), Integer.parseInt(nameAndWeight[1].trim()));
+        }
+        return weights;
+    }
+
+    private static void delete(final Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
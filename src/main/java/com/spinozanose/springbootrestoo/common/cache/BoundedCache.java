@@ -0,0 +1,206 @@
+package com.spinozanose.springbootrestoo.common.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+
+/**
+ * A cache bounded by the total weight of its entries, with a time to live per entry.
+ * <p>
+ * Like any bounded cache it has to choose what to throw out when it is full, and a plain LRU makes
+ * a poor choice when a scan or a burst of one-off reads passes through: it pushes out the entries
+ * that are read all the time. So this cache uses TinyLFU admission on top of LRU order. When an
+ * entry would push out the least recently used one, the two are compared by how often they have
+ * been asked for recently (see FrequencySketch), and the newcomer only gets in if it is asked for
+ * more. A workload where most reads go to a small set of hot keys keeps those keys cached.
+ * <p>
+ * Reads do not block. The entries are in a ConcurrentHashMap, and the bookkeeping a read does
+ * (moving the entry to the back of the LRU order and counting it) is skipped when another thread
+ * holds the policy lock. That loses a little precision under contention, which is a better deal
+ * than making every read queue up behind the lock. Reading a generation takes no lock either.
+ * <p>
+ * Invalidation is meant for write-through use: after changing the source of an entry, invalidate
+ * it. A load that started before the invalidation will not put its (possibly stale) value back,
+ * see {@link #generation(Object)} and {@link #put(Object, Object, long)}.
+ *
+ * @param <K> key
+ * @param <V> value
+ */
+public class BoundedCache<K, V> {
+
+    private static final int GENERATION_STRIPES = 64;
+
+    private final long maximumWeight;
+    private final long timeToLiveNanos;
+    private final ToIntFunction<V> weigher;
+
+    private final Map<K, Node<V>> data = new ConcurrentHashMap<>();
+    private final ReentrantLock policyLock = new ReentrantLock();
+    // guarded by policyLock: least recently used first
+    private final LinkedHashMap<K, Node<V>> order = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+    // changed under policyLock, so that put sees them in step with invalidate, but read without it
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+    private long weight;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maximumWeight   the most the weights of all entries may add up to
+     * @param expectedEntries about how many entries fit, which sizes the frequency sketch
+     * @param timeToLiveNanos how long an entry may be served after it was put
+     * @param weigher         the weight of a value, at least 1
+     */
+    public BoundedCache(final long maximumWeight, final int expectedEntries, final long timeToLiveNanos, final ToIntFunction<V> weigher) {
+        this.maximumWeight = maximumWeight;
+        this.timeToLiveNanos = timeToLiveNanos;
+        this.weigher = weigher;
+        this.sketch = new FrequencySketch(expectedEntries);
+    }
+
+    /**
+     * @return the cached value, or null if there is none or it has expired
+     */
+    public V get(final K key) {
+        final Node<V> node = data.get(key);
+        final boolean hit = node != null && node.expiresAt - System.nanoTime() > 0;
+        if (policyLock.tryLock()) {
+            try {
+                sketch.increment(key);
+                if (hit) {
+                    // touching it in access order moves it to the back
+                    order.get(key);
+                } else if (node != null) {
+                    remove(key, node);
+                }
+            } finally {
+                policyLock.unlock();
+            }
+        }
+        if (hit) {
+            hits.increment();
+            return node.value;
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * To be read before loading a value, and handed to {@link #put(Object, Object, long)} with it.
+     */
+    public long generation(final K key) {
+        return generations.get(stripe(key));
+    }
+
+    /**
+     * Caches the value, unless the key was invalidated since the generation was read (the value may
+     * be stale), or it is not worth as much as what it would push out.
+     */
+    public void put(final K key, final V value, final long generation) {
+        final int valueWeight = Math.max(1, weigher.applyAsInt(value));
+        if (valueWeight > maximumWeight) return;
+        final Node<V> node = new Node<>(value, valueWeight, System.nanoTime() + timeToLiveNanos);
+        policyLock.lock();
+        try {
+            if (generations.get(stripe(key)) != generation) return;
+            final Node<V> previous = data.put(key, node);
+            if (previous != null) {
+                weight -= previous.weight;
+            }
+            order.put(key, node);
+            weight += valueWeight;
+            evictAsNeeded(key);
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    public void invalidate(final K key) {
+        policyLock.lock();
+        try {
+            generations.incrementAndGet(stripe(key));
+            final Node<V> node = data.get(key);
+            if (node != null) {
+                remove(key, node);
+            }
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public int size() {
+        return data.size();
+    }
+
+    public long weight() {
+        policyLock.lock();
+        try {
+            return weight;
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /**
+     * Throws out least recently used entries until the cache fits, unless the candidate (the entry
+     * just put) is asked for less often than the victim, in which case the candidate goes instead.
+     */
+    private void evictAsNeeded(final K candidate) {
+        while (weight > maximumWeight) {
+            final Map.Entry<K, Node<V>> eldest = order.entrySet().iterator().next();
+            final K victim = eldest.getKey();
+            final Node<V> victimNode = eldest.getValue();
+            if (!victim.equals(candidate)
+                    && victimNode.expiresAt - System.nanoTime() > 0
+                    && sketch.frequency(candidate) <= sketch.frequency(victim)) {
+                remove(candidate, data.get(candidate));
+                evictions.increment();
+                return;
+            }
+            remove(victim, victimNode);
+            evictions.increment();
+        }
+    }
+
+    // guarded by policyLock
+    private void remove(final K key, final Node<V> node) {
+        if (data.remove(key, node)) {
+            order.remove(key);
+            weight -= node.weight;
+        }
+    }
+
+    private int stripe(final K key) {
+        return (key.hashCode() & 0x7fffffff) % GENERATION_STRIPES;
+    }
+
+    private static final class Node<V> {
+        final V value;
+        final int weight;
+        final long expiresAt;
+
+        Node(final V value, final int weight, final long expiresAt) {
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.spinozanose.springbootrestoo.common.cache;
+
+/**
+ * A count-min sketch of how often keys have been seen recently, used by the BoundedCache to decide
+ * whether a new entry is worth more than the one it would push out (the TinyLFU admission policy).
+ * <p>
+ * Counters are four bits, sixteen to a long, and each key is counted in four places of the same
+ * table; its frequency is the smallest of the four. So the sketch takes a few bytes per cached
+ * entry no matter how many distinct keys pass through it. To make it forget, every counter is
+ * halved once enough additions have been made, which is what makes the frequency "recent".
+ * <p>
+ * Not thread-safe; the cache only touches it while holding its policy lock.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int counterMask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param expectedEntries about how many entries the cache holds
+     */
+    FrequencySketch(final int expectedEntries) {
+        final int counters = Integer.highestOneBit(Math.max(64, Math.min(expectedEntries, 1 << 26) - 1) << 1);
+        this.table = new long[counters / 16];
+        this.counterMask = counters - 1;
+        this.sampleSize = 10 * counters;
+    }
+
+    int frequency(final Object key) {
+        final int hash = spread(key.hashCode());
+        int frequency = 15;
+        for (int i = 0; i < 4; i++) {
+            final int counter = counterOf(hash, i);
+            frequency = Math.min(frequency, (int) ((table[counter >>> 4] >>> ((counter & 15) << 2)) & 0xfL));
+        }
+        return frequency;
+    }
+
+    void increment(final Object key) {
+        final int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            final int counter = counterOf(hash, i);
+            final int index = counter >>> 4;
+            final int shift = (counter & 15) << 2;
+            if (((table[index] >>> shift) & 0xfL) != 0xfL) {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    private int counterOf(final int hash, final int row) {
+        final long mixed = (hash + SEEDS[row]) * SEEDS[row];
+        return (int) (mixed ^ (mixed >>> 32)) & counterMask;
+    }
+
+    private static int spread(final int hash) {
+        final int h = hash * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+}
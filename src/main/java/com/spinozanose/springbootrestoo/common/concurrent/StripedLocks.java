@@ -0,0 +1,134 @@
+package com.spinozanose.springbootrestoo.common.concurrent;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed table of locks, one of which is picked by the hash of a key. Two threads working on the
+ * same key always get the same lock and take turns; two working on different keys almost always
+ * get different ones and do not wait for each other at all. How rarely they collide is up to the
+ * number of stripes: with 256 of them a hot key holds up about one in 256 of the others.
+ * <p>
+ * Compared to a lock per key there is nothing to create, clean up or leak, and the memory is fixed
+ * however many keys there are. Compared to one lock for everything a hot key only slows down its
+ * own stripe.
+ * <p>
+ * The locks count what they cost: how often a thread had to wait, for how long, and how long the
+ * locks were held. A high wait time with a low hold time points to a hot key (or too few stripes);
+ * a high hold time to slow work being done under the lock.
+ * <p>
+ * With no stripes nothing is ever locked, which is how the locking is turned off.
+ */
+public class StripedLocks {
+
+    /**
+     * What {@link #lock(Object)} returns. Closing it unlocks.
+     */
+    public interface Held extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private static final Held NOT_LOCKED = () -> {
+    };
+
+    /**
+     * A lock and its Held, made once with the table, so taking a lock allocates nothing. Only the
+     * thread holding the lock touches lockedAt.
+     */
+    private final class Stripe implements Held {
+        private final ReentrantLock lock = new ReentrantLock();
+        private long lockedAt;
+
+        @Override
+        public void close() {
+            // a thread that took its own stripe again only lets go of the outer one
+            if (lock.getHoldCount() > 1) {
+                lock.unlock();
+                return;
+            }
+            final long held = System.nanoTime() - lockedAt;
+            lock.unlock();
+            holdNanos.add(held);
+            maxHoldNanos.accumulate(held);
+        }
+    }
+
+    private final Stripe[] locks;
+    private final int mask;
+
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder contended = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder holdNanos = new LongAdder();
+    private final LongAccumulator maxHoldNanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param stripes the number of locks, rounded up to a power of two; 0 for none
+     */
+    public StripedLocks(final int stripes) {
+        if (stripes < 0) throw new IllegalArgumentException("Stripes cannot be negative: " + stripes);
+        final int size = (stripes <= 1) ? stripes : Integer.highestOneBit(stripes - 1) << 1;
+        this.locks = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new Stripe();
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * Waits for the key's lock. Close what it returns in a finally, so it is unlocked however the
+     * work under it ends.
+     *
+     * @return the lock, held until closed
+     */
+    public Held lock(final Object key) {
+        if (locks.length == 0) return NOT_LOCKED;
+        final Stripe stripe = locks[stripeOf(key)];
+        if (!stripe.lock.tryLock()) {
+            contended.increment();
+            final long waitStart = System.nanoTime();
+            stripe.lock.lock();
+            waitNanos.add(System.nanoTime() - waitStart);
+        }
+        acquisitions.increment();
+        if (stripe.lock.getHoldCount() == 1) {
+            stripe.lockedAt = System.nanoTime();
+        }
+        return stripe;
+    }
+
+    int stripeOf(final Object key) {
+        final int hash = (key == null) ? 0 : key.hashCode();
+        // the low bits pick the stripe, so mix the high ones in, as HashMap does
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    public int stripes() {
+        return locks.length;
+    }
+
+    public long acquisitions() {
+        return acquisitions.sum();
+    }
+
+    /**
+     * @return how many times the lock was held by someone else when asked for
+     */
+    public long contended() {
+        return contended.sum();
+    }
+
+    public long waitNanos() {
+        return waitNanos.sum();
+    }
+
+    public long holdNanos() {
+        return holdNanos.sum();
+    }
+
+    public long maxHoldNanos() {
+        return maxHoldNanos.get();
+    }
+}
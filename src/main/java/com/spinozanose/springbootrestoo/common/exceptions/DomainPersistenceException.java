@@ -5,4 +5,16 @@ package com.spinozanose.springbootrestoo.common.exceptions;
  * when needed.
  */
 public class DomainPersistenceException extends Exception {
+
+    public DomainPersistenceException() {
+        super();
+    }
+
+    public DomainPersistenceException(String message) {
+        super(message);
+    }
+
+    public DomainPersistenceException(String message, Throwable cause) {
+        super(message, cause);
+    }
 }
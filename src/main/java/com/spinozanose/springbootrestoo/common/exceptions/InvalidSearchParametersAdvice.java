@@ -12,7 +12,7 @@ public class InvalidSearchParametersAdvice {
     @ResponseBody
     @ExceptionHandler(InvalidSearchParametersException.class)
     @ResponseStatus(HttpStatus.BAD_REQUEST)
-    String invalidSearchParameterHandler(ObjectNotFoundException ex) {
+    String invalidSearchParameterHandler(InvalidSearchParametersException ex) {
         return ex.getMessage();
     }
 }
\ No newline at end of file
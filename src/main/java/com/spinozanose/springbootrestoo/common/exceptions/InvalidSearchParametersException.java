@@ -1,4 +1,12 @@
 package com.spinozanose.springbootrestoo.common.exceptions;
 
 public class InvalidSearchParametersException extends Exception {
+
+    public InvalidSearchParametersException() {
+        super();
+    }
+
+    public InvalidSearchParametersException(String message) {
+        super(message);
+    }
 }
@@ -0,0 +1,18 @@
+package com.spinozanose.springbootrestoo.common.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ControllerAdvice
+public class ServiceBusyAdvice {
+
+    @ResponseBody
+    @ExceptionHandler(ServiceBusyException.class)
+    @ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+    String serviceBusyHandler(ServiceBusyException ex) {
+        return ex.getMessage();
+    }
+}
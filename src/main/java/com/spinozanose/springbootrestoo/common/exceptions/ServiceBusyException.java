@@ -0,0 +1,14 @@
+package com.spinozanose.springbootrestoo.common.exceptions;
+
+/**
+ * There is more work under way than the service takes on at once. Nothing was done, and the
+ * same request may well go through if it is tried again a little later.
+ */
+public class ServiceBusyException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public ServiceBusyException(String message) {
+        super(message);
+    }
+}
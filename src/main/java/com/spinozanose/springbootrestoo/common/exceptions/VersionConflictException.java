@@ -0,0 +1,14 @@
+package com.spinozanose.springbootrestoo.common.exceptions;
+
+/**
+ * A conditional write found the object at another version than the one it was conditioned on:
+ * somebody else changed it in the meantime.
+ */
+public class VersionConflictException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public VersionConflictException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,93 @@
+package com.spinozanose.springbootrestoo.common.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in nanoseconds, cheap enough to record every request in. It is laid
+ * out the way HdrHistogram is: values below 32 have a bucket each, and above that every power of
+ * two is split into 16 buckets, so a bucket is never wider than about 6% of the values in it. That
+ * is 592 counters from a nanosecond up to about 18 minutes; anything longer counts as 18 minutes.
+ * <p>
+ * Recording finds the bucket with a little bit arithmetic and increments it, and the count, sum
+ * and maximum, all with atomic adds: no locks and no allocation, from any number of threads.
+ * Reading is not atomic with recording. A percentile read while requests are recorded is off by
+ * at most the requests recorded meanwhile, which for a metrics endpoint is fine.
+ * <p>
+ * A percentile is reported as the highest value of its bucket, so it errs on the slow side.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    private static final long MAX_VALUE = (1L << 40) - 1;
+    private static final int BUCKETS = indexOf(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    static int indexOf(final long value) {
+        if (value < SUB_BUCKETS) return (int) Math.max(0, value);
+        final long clamped = Math.min(value, MAX_VALUE);
+        final int shift = 63 - Long.numberOfLeadingZeros(clamped) - (SUB_BUCKET_BITS - 1);
+        return shift * HALF_SUB_BUCKETS + (int) (clamped >>> shift);
+    }
+
+    /**
+     * @return the highest value that falls in the bucket
+     */
+    static long highestValueOf(final int index) {
+        if (index < SUB_BUCKETS) return index;
+        final int shift = index / HALF_SUB_BUCKETS - 1;
+        final long lowest = (long) (index % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    public void record(final long nanos) {
+        final long value = Math.max(0, nanos);
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Records the time since a System.nanoTime() taken at the start.
+     */
+    public void recordSince(final long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        final long n = count.sum();
+        return (n == 0) ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the value that percentile of the recorded values are at or below, or 0 if none were
+     */
+    public long valueAt(final double percentile) {
+        final long total = count.sum();
+        if (total == 0) return 0;
+        final long wanted = Math.max(1, (long) Math.ceil(total * Math.min(100, percentile) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= wanted) return Math.min(highestValueOf(i), max.get());
+        }
+        return max.get();
+    }
+}
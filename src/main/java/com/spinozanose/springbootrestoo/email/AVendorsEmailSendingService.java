@@ -1,8 +1,19 @@
 package com.spinozanose.springbootrestoo.email;
 
+import java.util.List;
+
 class AVendorsEmailSendingService {
 
     public void sendEmail(final EmailMessage message) {
         //do something here
     }
+
+    /**
+     * Vendors worth their salt take many messages in one request; this is where that call would go.
+     */
+    public void sendEmails(final List<EmailMessage> messages) {
+        for (EmailMessage message : messages) {
+            sendEmail(message);
+        }
+    }
 }
@@ -0,0 +1,146 @@
+package com.spinozanose.springbootrestoo.email;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends email in the background. Callers put their message in a bounded queue and return at once;
+ * a few worker threads take what has queued up, up to a batch at a time, and hand each batch to
+ * the vendor in one call. Under load the batches fill up by themselves, so the vendor's latency is
+ * paid once per batch instead of once per message.
+ * <p>
+ * The queue is bounded so that a vendor outage cannot eat the heap. When it is full the message is
+ * dropped and counted, rather than making the caller wait: a create should not fail, or hang,
+ * because of an email. A batch the vendor fails on is counted as failed and not retried.
+ * <p>
+ * The counters are what there is to watch: a queue that stays deep, or any drops, mean the workers
+ * cannot keep up with the vendor.
+ * <p>
+ * Closing stops the workers once they have sent what is queued. A message submitted after that is
+ * dropped.
+ */
+final class EmailDispatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(EmailDispatcher.class.getName());
+    // queued behind everything else by close, and passed on by each worker that stops on it
+    private static final EmailMessage STOP = new EmailMessage("", new String[0], "", "");
+
+    private final BlockingQueue<EmailMessage> queue;
+    private final Consumer<List<EmailMessage>> sender;
+    private final int batchSize;
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final List<Thread> workers = new ArrayList<>();
+    private final AtomicInteger running = new AtomicInteger();
+    private volatile boolean closed;
+
+    /**
+     * @param sender    sends a batch to the vendor
+     * @param capacity  the most messages waiting
+     * @param workers   the number of threads sending
+     * @param batchSize the most messages in one call to the sender
+     */
+    EmailDispatcher(final Consumer<List<EmailMessage>> sender, final int capacity, final int workers, final int batchSize) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.sender = sender;
+        this.batchSize = batchSize;
+        for (int i = 0; i < workers; i++) {
+            final Thread worker = new Thread(this::work, "email-sender-" + i);
+            worker.setDaemon(true);
+            this.workers.add(worker);
+            running.incrementAndGet();
+            worker.start();
+        }
+    }
+
+    /**
+     * @return false if the queue was full and the message was dropped
+     */
+    boolean submit(final EmailMessage message) {
+        if (!closed && queue.offer(message)) return true;
+        dropped.increment();
+        return false;
+    }
+
+    int queueDepth() {
+        return queue.size();
+    }
+
+    long sent() {
+        return sent.sum();
+    }
+
+    long failed() {
+        return failed.sum();
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Stops the workers, waiting up to a minute for them to send what is queued.
+     */
+    void close() {
+        synchronized (workers) {
+            if (closed) return;
+            closed = true;
+        }
+        final long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+        try {
+            // the workers are not interrupted, as that could fail a batch the vendor is sending
+            if (!queue.offer(STOP, 1, TimeUnit.MINUTES)) return;
+            for (Thread worker : workers) {
+                TimeUnit.NANOSECONDS.timedJoin(worker, deadline - System.nanoTime());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void work() {
+        final List<EmailMessage> batch = new ArrayList<>(batchSize);
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, batchSize - 1);
+            stopping = batch.removeIf(message -> message == STOP);
+            if (!batch.isEmpty()) send(batch);
+        }
+        if (running.decrementAndGet() > 0) {
+            try {
+                queue.put(STOP);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Whatever the sender throws, an Error included, fails the batch rather than the worker: if the
+     * workers died one by one, the queue would fill up and every message after that be dropped.
+     */
+    private void send(final List<EmailMessage> batch) {
+        try {
+            sender.accept(batch);
+            sent.add(batch.size());
+        } catch (Throwable e) {
+            failed.add(batch.size());
+            LOGGER.log(Level.WARNING, "Could not send " + batch.size() + " email message(s)", e);
+        }
+        batch.clear();
+    }
+}
@@ -0,0 +1,365 @@
+package com.spinozanose.springbootrestoo.email;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * Email that must not be lost. A message is appended to a file and made durable before
+ * {@link #append(EmailMessage)} returns, and a dispatcher thread sends what is in the file, in
+ * batches, until the vendor takes it. Only then does it move the acknowledged offset past it.
+ * <p>
+ * That is at-least-once delivery: if the process dies after the vendor took a batch but before the
+ * offset was written, the batch is sent again after the restart. A batch the vendor fails on is
+ * tried again after a pause that doubles every time, up to a minute, so a vendor outage is waited
+ * out instead of hammered. Nothing behind it is sent meanwhile, which keeps the messages in order.
+ * <p>
+ * The acknowledged offset lives in a file of its own, so a restart starts there and only checks
+ * the records after it, not the whole file. Like the file store, each record carries a checksum,
+ * and a torn record at the end (a crash during an append) is cut off on recovery.
+ * <pre>
+ *   int    length     bytes of the message
+ *   int    checksum   CRC32C of the message
+ *   byte[] message    sender, recipient count, recipients, subject, message; each string as
+ *                     an int length (-1 for null) and UTF-8
+ * </pre>
+ * Once everything is acknowledged and the file has grown past TRUNCATE_BYTES it is emptied, so it
+ * does not grow forever on a node that keeps up.
+ * <p>
+ * Like the file store, it takes an exclusive lock on a file in the directory while it is open, so
+ * a second outbox (in this process or another) cannot append to it, send from it or empty it too.
+ */
+final class EmailOutbox implements Closeable {
+
+    static final String LOG_FILE = "outbox.log";
+    static final String ACKED_FILE = "outbox.acked";
+    static final String LOCK_FILE = "outbox.lock";
+
+    private static final int HEADER_LENGTH = 8;
+    private static final long TRUNCATE_BYTES = 1024 * 1024;
+    private static final long MAX_BACKOFF_MILLIS = 60_000;
+    private static final Logger LOGGER = Logger.getLogger(EmailOutbox.class.getName());
+
+    private final Path directory;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final FileChannel log;
+    private final FileChannel acked;
+    private final Consumer<List<EmailMessage>> sender;
+    private final int batchSize;
+    private final long retryBaseMillis;
+    private final Thread dispatcher;
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    // guarded by this
+    private long end;
+    private long ackedOffset;
+    private int pending;
+    private boolean running = true;
+
+    /**
+     * Opens the outbox in the directory, recovers it, and starts sending whatever was not
+     * acknowledged before.
+     *
+     * @throws IOException if it cannot be read, or another outbox has the directory open
+     * @param sender          sends a batch to the vendor, throwing if it did not take it
+     * @param batchSize       the most messages in one call to the sender
+     * @param retryBaseMillis the pause after the first failure, doubled after each one after that
+     */
+    EmailOutbox(final Path directory, final Consumer<List<EmailMessage>> sender, final int batchSize, final long retryBaseMillis) throws IOException {
+        this.directory = directory;
+        this.sender = sender;
+        this.batchSize = batchSize;
+        this.retryBaseMillis = retryBaseMillis;
+        Files.createDirectories(directory);
+        lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        lock = tryLock(lockChannel);
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("The email outbox in " + directory + " is already open");
+        }
+        log = FileChannel.open(directory.resolve(LOG_FILE), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        acked = FileChannel.open(directory.resolve(ACKED_FILE), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recover();
+        dispatcher = new Thread(this::dispatch, "email-outbox");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Appends the message and makes it durable. One flush per message: this is the price of not
+     * losing any, and it is paid on the caller's thread.
+     */
+    synchronized void append(final EmailMessage message) {
+        if (!running) {
+            throw new IllegalStateException("The email outbox in " + directory + " is closed");
+        }
+        final ByteBuffer record = encode(message);
+        try {
+            final int length = record.remaining();
+            writeFully(log, record, end);
+            log.force(false);
+            end += length;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write to the email outbox in " + directory, e);
+        }
+        pending++;
+        notifyAll();
+    }
+
+    synchronized int pending() {
+        return pending;
+    }
+
+    long sent() {
+        return sent.sum();
+    }
+
+    long retries() {
+        return retries.sum();
+    }
+
+    /**
+     * Stops the dispatcher, after the batch it is sending, if any. What is not acknowledged is sent
+     * when the outbox is opened again.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (!running) return;
+            running = false;
+            notifyAll();
+        }
+        try {
+            dispatcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.close();
+        acked.close();
+        lock.release();
+        lockChannel.close();
+    }
+
+    /**
+     * @return the lock, or null if it is held elsewhere, by this process or another
+     */
+    private static FileLock tryLock(final FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts from the acknowledged offset and checks each record after it, cutting the file off at
+     * the first one that is not whole.
+     */
+    private void recover() throws IOException {
+        final long size = log.size();
+        long position = 0;
+        if (acked.size() >= 8) {
+            final ByteBuffer offset = ByteBuffer.allocate(8);
+            readFully(acked, offset, 0);
+            // past the end if the file was emptied and the crash came before the offset was reset
+            position = Math.min(Math.max(0, offset.getLong(0)), size);
+        }
+        ackedOffset = position;
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        while (size - position >= HEADER_LENGTH) {
+            header.clear();
+            readFully(log, header, position);
+            final int length = header.getInt(0);
+            if (length < 0 || length > size - position - HEADER_LENGTH) break;
+            final ByteBuffer body = ByteBuffer.allocate(length);
+            readFully(log, body, position + HEADER_LENGTH);
+            if (header.getInt(4) != checksum(body.flip())) break;
+            position += HEADER_LENGTH + length;
+            pending++;
+        }
+        end = position;
+        if (position < size) {
+            LOGGER.warning("Cutting off " + (size - position) + " bytes of a torn record at the end of " + directory.resolve(LOG_FILE));
+            log.truncate(position);
+            log.force(true);
+        }
+    }
+
+    private void dispatch() {
+        final List<EmailMessage> batch = new ArrayList<>(batchSize);
+        int failures = 0;
+        while (true) {
+            final long from;
+            final long to;
+            synchronized (this) {
+                while (running && ackedOffset == end) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!running) return;
+                from = ackedOffset;
+                to = end;
+            }
+            batch.clear();
+            try {
+                final long next = read(from, to, batch);
+                sender.accept(batch);
+                sent.add(batch.size());
+                failures = 0;
+                acknowledge(next, batch.size());
+            } catch (IOException | RuntimeException e) {
+                retries.increment();
+                final long backoff = Math.min(MAX_BACKOFF_MILLIS, retryBaseMillis << Math.min(failures++, 20));
+                LOGGER.log(Level.WARNING, "Could not send " + batch.size() + " email message(s), trying again in " + backoff + " ms", e);
+                synchronized (this) {
+                    try {
+                        if (running) wait(backoff);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the offset after the last message read
+     */
+    private long read(final long from, final long to, final List<EmailMessage> batch) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        long position = from;
+        while (position < to && batch.size() < batchSize) {
+            header.clear();
+            readFully(log, header, position);
+            final ByteBuffer body = ByteBuffer.allocate(header.getInt(0));
+            readFully(log, body, position + HEADER_LENGTH);
+            batch.add(decode(body));
+            position += HEADER_LENGTH + body.capacity();
+        }
+        return position;
+    }
+
+    private synchronized void acknowledge(final long offset, final int count) {
+        ackedOffset = offset;
+        pending -= count;
+        try {
+            writeAcked(offset);
+            if (offset == end && end >= TRUNCATE_BYTES) {
+                log.truncate(0);
+                log.force(true);
+                end = 0;
+                ackedOffset = 0;
+                writeAcked(0);
+            }
+        } catch (IOException e) {
+            // the messages have gone out; at worst they go out again after a restart
+            LOGGER.log(Level.WARNING, "Could not record what was sent from the email outbox in " + directory, e);
+        }
+    }
+
+    private void writeAcked(final long offset) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(8).putLong(0, offset);
+        writeFully(acked, buffer, 0);
+        acked.force(false);
+    }
+
+    private static ByteBuffer encode(final EmailMessage message) {
+        final List<byte[]> strings = new ArrayList<>();
+        strings.add(bytesOf(message.sender));
+        final int recipients = (message.recipients == null) ? -1 : message.recipients.length;
+        for (int i = 0; i < recipients; i++) {
+            strings.add(bytesOf(message.recipients[i]));
+        }
+        strings.add(bytesOf(message.subject));
+        strings.add(bytesOf(message.message));
+        int length = 4;
+        for (byte[] string : strings) {
+            length += 4 + ((string == null) ? 0 : string.length);
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + length);
+        buffer.putInt(length).putInt(0);
+        putString(buffer, strings.get(0));
+        buffer.putInt(recipients);
+        for (int i = 1; i < strings.size(); i++) {
+            putString(buffer, strings.get(i));
+        }
+        buffer.flip();
+        buffer.putInt(4, checksum(buffer.duplicate().position(HEADER_LENGTH)));
+        return buffer;
+    }
+
+    private static EmailMessage decode(final ByteBuffer body) {
+        body.rewind();
+        final String sender = getString(body);
+        final int count = body.getInt();
+        final String[] recipients = (count < 0) ? null : new String[count];
+        for (int i = 0; i < count; i++) {
+            recipients[i] = getString(body);
+        }
+        final String subject = getString(body);
+        return new EmailMessage(sender, recipients, subject, getString(body));
+    }
+
+    private static byte[] bytesOf(final String string) {
+        return (string == null) ? null : string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void putString(final ByteBuffer buffer, final byte[] string) {
+        if (string == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(string.length).put(string);
+        }
+    }
+
+    private static String getString(final ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0) return null;
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the CRC32C of the bytes between the position and the limit, which are left alone
+     */
+    private static int checksum(final ByteBuffer bytes) {
+        final CRC32C crc = new CRC32C();
+        crc.update(bytes.duplicate());
+        return (int) crc.getValue();
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) throw new EOFException();
+            position += read;
+        }
+    }
+}
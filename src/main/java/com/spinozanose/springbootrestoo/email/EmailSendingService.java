@@ -1,5 +1,10 @@
 package com.spinozanose.springbootrestoo.email;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 /**
  * This is an example of an anti-corruption layer to a service. it is where the details
  * of sending an email message are removed from the domain implementation.
@@ -15,16 +20,179 @@ package com.spinozanose.springbootrestoo.email;
  * could manage more complexity, like retries, multiple emails, caching, etc.
  *
  * In some way this class is implemented so simply because there are no dependencies to
- * be managed. We don't even need a constructor. If there were any more complexity,
- * however, it would be a good idea to consider a more typical interface-with-named-factory
- * pattern.
+ * be managed. If there were any more complexity, however, it would be a good idea to
+ * consider a more typical interface-with-named-factory pattern.
+ *
+ * It can also send asynchronously, in batches, so that the vendor is no longer in the way of
+ * the request that caused the email (see EmailDispatcher). That is a change of promise: the
+ * message is queued, not sent, when sendEmail returns. So it is switched on with a system
+ * property, and off by default.
+ *
+ * Or it can send through an outbox on disk (see EmailOutbox), for email that must not be lost
+ * to a restart, also switched on with a system property.
  */
 public class EmailSendingService {
 
+    static final String ASYNC_PROPERTY = "email.async";
+    static final String QUEUE_CAPACITY_PROPERTY = "email.queueCapacity";
+    static final String WORKERS_PROPERTY = "email.workers";
+    static final String BATCH_SIZE_PROPERTY = "email.batchSize";
+    static final String OUTBOX_DIRECTORY_PROPERTY = "email.outbox.directory";
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    private static final int DEFAULT_WORKERS = 2;
+    private static final int DEFAULT_BATCH_SIZE = 100;
+    private static final long OUTBOX_RETRY_BASE_MILLIS = 100;
+
     // scoped package-private so it may be stubbed for testing.
     AVendorsEmailSendingService service = new AVendorsEmailSendingService();
 
+    private final boolean async;
+    private final int queueCapacity;
+    private final int workers;
+    private final int batchSize;
+    // started on the first message, so a stubbed vendor service is already in place
+    private volatile EmailDispatcher dispatcher;
+    // opened right away, so that what was left unsent before a restart goes out without waiting
+    private final EmailOutbox outbox;
+
+    /**
+     * Sends on the caller's thread, unless the system property email.outbox.directory is set
+     * (see EmailOutbox), or failing that email.async is true.
+     */
+    public EmailSendingService() {
+        this(Boolean.getBoolean(ASYNC_PROPERTY),
+                Integer.getInteger(QUEUE_CAPACITY_PROPERTY, DEFAULT_QUEUE_CAPACITY),
+                Integer.getInteger(WORKERS_PROPERTY, DEFAULT_WORKERS),
+                Integer.getInteger(BATCH_SIZE_PROPERTY, DEFAULT_BATCH_SIZE),
+                (System.getProperty(OUTBOX_DIRECTORY_PROPERTY) == null) ? null : Paths.get(System.getProperty(OUTBOX_DIRECTORY_PROPERTY)),
+                OUTBOX_RETRY_BASE_MILLIS);
+    }
+
+    EmailSendingService(final boolean async, final int queueCapacity, final int workers, final int batchSize) {
+        this(async, queueCapacity, workers, batchSize, null, OUTBOX_RETRY_BASE_MILLIS);
+    }
+
+    /**
+     * Sends through a durable outbox in the directory.
+     */
+    EmailSendingService(final Path outboxDirectory, final int batchSize, final long outboxRetryBaseMillis) {
+        this(false, 0, 0, batchSize, outboxDirectory, outboxRetryBaseMillis);
+    }
+
+    /**
+     * @param async         hand messages to background workers (see EmailDispatcher) instead of
+     *                      sending them on the caller's thread
+     * @param queueCapacity the most messages waiting to be sent, after which they are dropped
+     * @param workers       the number of threads sending
+     * @param batchSize     the most messages sent to the vendor at once
+     * @param outboxDirectory where to keep the outbox, or null for none
+     * @param outboxRetryBaseMillis the pause after the outbox first fails to send
+     */
+    private EmailSendingService(final boolean async, final int queueCapacity, final int workers, final int batchSize,
+                                final Path outboxDirectory, final long outboxRetryBaseMillis) {
+        this.async = async;
+        this.queueCapacity = queueCapacity;
+        this.workers = workers;
+        this.batchSize = batchSize;
+        if (outboxDirectory == null) {
+            this.outbox = null;
+        } else {
+            try {
+                // the vendor service is looked up for every batch, so it can still be stubbed
+                this.outbox = new EmailOutbox(outboxDirectory, batch -> service.sendEmails(batch), batchSize, outboxRetryBaseMillis);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not open the email outbox in " + outboxDirectory, e);
+            }
+        }
+    }
+
+    /**
+     * In async mode this returns as soon as the message is queued, so the caller never waits for
+     * the vendor. The price is that the caller never hears about a failure either.
+     *
+     * With an outbox it returns once the message is safely on disk. The caller still does not wait
+     * for the vendor, but the message survives a restart, and is sent until the vendor takes it.
+     */
     public void sendEmail(EmailMessage message) {
-        service.sendEmail(message);
+        if (outbox != null) {
+            outbox.append(message);
+        } else if (async) {
+            dispatcher().submit(message);
+        } else {
+            service.sendEmail(message);
+        }
+    }
+
+    /**
+     * @return the number of messages waiting to be sent; always 0 when sending on the caller's thread
+     */
+    public int queueDepth() {
+        if (outbox != null) return outbox.pending();
+        final EmailDispatcher dispatcher = this.dispatcher;
+        return (dispatcher == null) ? 0 : dispatcher.queueDepth();
+    }
+
+    /**
+     * @return the number of messages dropped because the queue was full
+     */
+    public long droppedCount() {
+        final EmailDispatcher dispatcher = this.dispatcher;
+        return (dispatcher == null) ? 0 : dispatcher.dropped();
+    }
+
+    /**
+     * @return the number of messages the vendor failed to send in the background
+     */
+    public long failedCount() {
+        final EmailDispatcher dispatcher = this.dispatcher;
+        return (dispatcher == null) ? 0 : dispatcher.failed();
+    }
+
+    /**
+     * @return the number of messages sent in the background
+     */
+    public long sentCount() {
+        if (outbox != null) return outbox.sent();
+        final EmailDispatcher dispatcher = this.dispatcher;
+        return (dispatcher == null) ? 0 : dispatcher.sent();
+    }
+
+    /**
+     * @return the number of times the outbox failed to send a batch and had to try again
+     */
+    public long retryCount() {
+        return (outbox == null) ? 0 : outbox.retries();
+    }
+
+    /**
+     * Stops the asynchronous workers, if they were started, once they have sent what is queued.
+     * Then closes the outbox, if there is one, which lets go of its directory. Whatever it has not
+     * sent yet is sent when it is opened again.
+     * <p>
+     * This is not a bean, so nothing calls this on its own: MyAggregateService closes it on shutdown
+     * (through the MyAggregateFactory that made it).
+     */
+    public void close() throws IOException {
+        final EmailDispatcher dispatcher = this.dispatcher;
+        try {
+            if (dispatcher != null) dispatcher.close();
+        } finally {
+            if (outbox != null) outbox.close();
+        }
+    }
+
+    private EmailDispatcher dispatcher() {
+        EmailDispatcher dispatcher = this.dispatcher;
+        if (dispatcher == null) {
+            synchronized (this) {
+                dispatcher = this.dispatcher;
+                if (dispatcher == null) {
+                    dispatcher = new EmailDispatcher(batch -> service.sendEmails(batch), queueCapacity, workers, batchSize);
+                    this.dispatcher = dispatcher;
+                }
+            }
+        }
+        return dispatcher;
     }
 }
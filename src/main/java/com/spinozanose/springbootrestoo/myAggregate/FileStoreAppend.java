@@ -0,0 +1,80 @@
+package com.spinozanose.springbootrestoo.myAggregate;
+
+import com.spinozanose.springbootrestoo.common.exceptions.DomainPersistenceException;
+import com.spinozanose.springbootrestoo.common.exceptions.VersionConflictException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * One record waiting to be appended to the file store, and the promise of where it ended up. The
+ * future completes only once the record is durable and visible in the index.
+ * <p>
+ * An append can be conditional on the version the aggregate is at (see
+ * MyAggregateRepository.version). If it is at another one by the time its turn comes, the record is
+ * not written at all and the future fails with a VersionConflictException.
+ */
+final class FileStoreAppend {
+
+    final String id;
+    final byte kind;
+    final byte format;
+    final byte[] payload;
+    final long expectedVersion;
+    final CompletableFuture<FileStoreLocation> done = new CompletableFuture<>();
+
+    FileStoreAppend(final String id, final byte kind, final byte format, final byte[] payload) {
+        this(id, kind, format, payload, MyAggregateRepository.ANY_VERSION);
+    }
+
+    FileStoreAppend(final String id, final byte kind, final byte format, final byte[] payload, final long expectedVersion) {
+        this.id = id;
+        this.kind = kind;
+        this.format = format;
+        this.payload = payload;
+        this.expectedVersion = expectedVersion;
+    }
+
+    boolean isConditional() {
+        return expectedVersion != MyAggregateRepository.ANY_VERSION;
+    }
+
+    /**
+     * Blocks until the append is committed. Being interrupted does not cancel the append: it may
+     * still be committed after this throws.
+     *
+     * @return FileStoreLocation, or null for a delete
+     * @throws DomainPersistenceException
+     */
+    FileStoreLocation await() throws DomainPersistenceException {
+        try {
+            return awaitConditional();
+        } catch (VersionConflictException e) {
+            throw new IllegalStateException("An unconditional append cannot conflict", e);
+        }
+    }
+
+    /**
+     * The same, for a conditional append.
+     *
+     * @return FileStoreLocation, or null for a delete
+     * @throws DomainPersistenceException
+     * @throws VersionConflictException
+     */
+    FileStoreLocation awaitConditional() throws DomainPersistenceException, VersionConflictException {
+        try {
+            return done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DomainPersistenceException("Interrupted waiting for MyAggregate " + id + " to be written", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DomainPersistenceException) {
+                throw (DomainPersistenceException) e.getCause();
+            }
+            if (e.getCause() instanceof VersionConflictException) {
+                throw (VersionConflictException) e.getCause();
+            }
+            throw new DomainPersistenceException("Could not write MyAggregate " + id, e.getCause());
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.spinozanose.springbootrestoo.myAggregate;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reclaims the space taken by dead records in the file store. Every update and delete leaves the
+ * previous record behind, so without this the store, and the time it takes to scan it on startup,
+ * would grow with the number of writes instead of the number of aggregates.
+ * <p>
+ * A compaction takes every sealed segment (all but the one being appended to), copies the records
+ * the index still points at into new segments, moves the index over to the copies, and deletes the
+ * old segments. It takes all sealed segments at once and drops the tombstones, which is only safe
+ * if every record a tombstone could be hiding is sealed too, and goes away with it. So appends
+ * never go to a compaction's output, which holds older records: while the store is open they go to
+ * the segment it rolled to last, and when it is opened again to a new one (see
+ * MyAggregateFileStoreRepository.recover).
+ * <p>
+ * It is careful not to get in the way. Copying happens without any lock, and is throttled to an
+ * I/O budget so the page cache and the disk are left to foreground reads and writes. Records are
+ * copied byte for byte, checksum and sequence included, so a copy is indistinguishable from the
+ * original, and it only becomes visible through the index if the original is still the latest
+ * version when the copy is done. The index is moved over in small locked chunks, so writers are
+ * only ever held up briefly, and readers never.
+ * <p>
+ * A crash at any point leaves a directory that recovers correctly: before the index moves, the
+ * copies are just duplicates with the same sequence as their originals, and old segments are
+ * deleted oldest data first, so a tombstone is never deleted while a record it hides survives.
+ */
+final class FileStoreCompactor {
+
+    private static final int SWAP_CHUNK = 1024;
+
+    private final MyAggregateFileStoreRepository store;
+    private final int segmentBytes;
+    private final long bytesPerSecond;
+    private final double garbageRatio;
+    private volatile boolean stopped;
+
+    /**
+     * @param segmentBytes   the size of the segments it writes
+     * @param bytesPerSecond the I/O budget for copying
+     * @param garbageRatio   how much of the sealed segments must be dead before compacting is worth it
+     */
+    FileStoreCompactor(final MyAggregateFileStoreRepository store, final int segmentBytes, final long bytesPerSecond, final double garbageRatio) {
+        this.store = store;
+        this.segmentBytes = segmentBytes;
+        this.bytesPerSecond = bytesPerSecond;
+        this.garbageRatio = garbageRatio;
+    }
+
+    /**
+     * Makes a running compaction give up at the next record. Nothing it has done so far is lost or
+     * left half-done: until the index moves, the copies are simply garbage for the next compaction.
+     */
+    void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Compacts if enough of the sealed segments is dead.
+     *
+     * @return the number of bytes reclaimed
+     */
+    long compactIfWorthIt() throws IOException {
+        final List<FileStoreSegment> sealed = store.sealedSegments();
+        long used = 0;
+        long garbage = 0;
+        for (FileStoreSegment segment : sealed) {
+            used += segment.end();
+            garbage += segment.garbage();
+        }
+        if (used == 0 || garbage < segmentBytes || (double) garbage / used < garbageRatio) {
+            return 0;
+        }
+        return compact(sealed);
+    }
+
+    /**
+     * @return the number of bytes reclaimed
+     */
+    long compact(final List<FileStoreSegment> sealed) throws IOException {
+        if (sealed.isEmpty()) return 0;
+        final List<FileStoreSegment> outputs = new ArrayList<>();
+        final List<Move> moves = new ArrayList<>();
+        final long start = System.nanoTime();
+        long copied = 0;
+        long used = 0;
+        try {
+            FileStoreSegment output = null;
+            for (FileStoreSegment segment : sealed) {
+                used += segment.end();
+                final ByteBuffer buffer = segment.buffer();
+                int offset = 0;
+                FileStoreRecord record;
+                while (offset < segment.end() && (record = FileStoreRecord.decode(buffer, offset, false)) != null) {
+                    if (stopped) {
+                        store.discard(outputs);
+                        return 0;
+                    }
+                    final FileStoreLocation from = new FileStoreLocation(segment.id, offset, record.length, record.sequence);
+                    if (record.kind == FileStoreRecord.PUT && store.isLatest(record.id, from)) {
+                        if (output == null || output.remaining() < record.length) {
+                            if (output != null) output.force();
+                            output = store.newSegment(Math.max(segmentBytes, record.length));
+                            outputs.add(output);
+                        }
+                        final ByteBuffer bytes = buffer.duplicate();
+                        bytes.limit(offset + record.length).position(offset);
+                        final int to = output.append(bytes);
+                        moves.add(new Move(record.id, from, new FileStoreLocation(output.id, to, record.length, record.sequence)));
+                        copied += record.length;
+                        throttle(start, copied);
+                    }
+                    offset += record.length;
+                }
+            }
+            if (output != null) output.force();
+        } catch (IOException | RuntimeException e) {
+            store.discard(outputs);
+            throw e;
+        }
+
+        for (int i = 0; i < moves.size(); i += SWAP_CHUNK) {
+            store.swap(moves.subList(i, Math.min(moves.size(), i + SWAP_CHUNK)));
+        }
+        store.retire(sealed);
+        return used - copied;
+    }
+
+    /**
+     * Sleeps for as long as it takes to stay within the I/O budget. Every byte copied is read once
+     * and written once.
+     */
+    private void throttle(final long start, final long copied) {
+        final long due = start + (long) (2.0 * copied * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+        final long ahead = due - System.nanoTime();
+        if (ahead > TimeUnit.MILLISECONDS.toNanos(1)) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(ahead);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stopped = true;
+            }
+        }
+    }
+
+    /**
+     * A record that was copied, and where it was copied to.
+     */
+    static final class Move {
+        final String id;
+        final FileStoreLocation from;
+        final FileStoreLocation to;
+
+        Move(final String id, final FileStoreLocation from, final FileStoreLocation to) {
+            this.id = id;
+            this.from = from;
+            this.to = to;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.spinozanose.springbootrestoo.myAggregate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Group commit for the file store. Writers hand their records to a single committer thread and
+ * wait; the committer appends everything that has queued up as one batch and makes it durable
+ * with one fsync. So under concurrent load the cost of a flush is shared by the whole batch instead
+ * of being paid by every write, and durability is unchanged: nobody is acknowledged before their
+ * record is on disk.
+ * <p>
+ * Batching mostly happens by itself: while one batch is being flushed, the next one is queuing up.
+ * On top of that, when a batch already has company the committer waits up to the commit window for
+ * more writers to join. A lone writer never waits for the window.
+ */
+final class FileStoreGroupCommit implements Runnable {
+
+    // marks the end of the queue when stopping
+    private static final FileStoreAppend STOP = new FileStoreAppend("", FileStoreRecord.DELETE, FileStoreRecord.FORMAT_NONE, null);
+
+    private final Consumer<List<FileStoreAppend>> committer;
+    private final long windowNanos;
+    private final int maxBatch;
+    private final BlockingQueue<FileStoreAppend> queue = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    // guarded by queue
+    private boolean running = true;
+
+    /**
+     * @param committer  appends, flushes and completes a batch. It must complete every future in it,
+     *                   unless it throws.
+     * @param windowNanos how long to hold a batch open for more writers
+     * @param maxBatch   the most records committed at once
+     */
+    FileStoreGroupCommit(final Consumer<List<FileStoreAppend>> committer, final long windowNanos, final int maxBatch) {
+        this.committer = committer;
+        this.windowNanos = windowNanos;
+        this.maxBatch = maxBatch;
+        this.thread = new Thread(this, "myaggregate-group-commit");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void submit(final FileStoreAppend append) {
+        synchronized (queue) {
+            if (!running) {
+                throw new IllegalStateException("The MyAggregate store is closed");
+            }
+            queue.add(append);
+        }
+    }
+
+    /**
+     * Commits whatever is still queued and stops the committer thread. The thread is not interrupted,
+     * as that would close the segment channel under an append.
+     */
+    void stop() throws InterruptedException {
+        synchronized (queue) {
+            if (!running) return;
+            running = false;
+            queue.add(STOP);
+        }
+        thread.join();
+    }
+
+    @Override
+    public void run() {
+        final List<FileStoreAppend> batch = new ArrayList<>(maxBatch);
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, maxBatch - batch.size());
+                if (batch.size() > 1 && windowNanos > 0) {
+                    fillWindow(batch);
+                }
+            } catch (InterruptedException e) {
+                // nobody interrupts us on purpose; commit what we have
+            }
+            stopping = batch.remove(STOP);
+            if (!batch.isEmpty()) {
+                commit(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void fillWindow(final List<FileStoreAppend> batch) throws InterruptedException {
+        final long deadline = System.nanoTime() + windowNanos;
+        long remaining = windowNanos;
+        while (batch.size() < maxBatch && remaining > 0) {
+            final FileStoreAppend next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) break;
+            batch.add(next);
+            queue.drainTo(batch, maxBatch - batch.size());
+            remaining = deadline - System.nanoTime();
+        }
+    }
+
+    /**
+     * Whatever the committer throws, an Error included, fails the batch rather than the thread: if
+     * the thread died, every writer after it would wait for ever. Whether the store can go on taking
+     * writes after that is up to the committer (the file store stops, see appendAll).
+     */
+    private void commit(final List<FileStoreAppend> batch) {
+        try {
+            committer.accept(batch);
+        } catch (Throwable e) {
+            for (FileStoreAppend append : batch) {
+                append.done.completeExceptionally(e);
+            }
+        }
+    }
+}
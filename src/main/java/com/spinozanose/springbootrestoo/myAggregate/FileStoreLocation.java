@@ -0,0 +1,28 @@
+package com.spinozanose.springbootrestoo.myAggregate;
+
+/**
+ * Where the latest record for an aggregate lives in the file store: which segment, where in the
+ * segment, and how long it is. This is the value side of the in-memory index, so it is kept small
+ * and immutable. Replacing a location in the index is how a write becomes visible to readers.
+ * <p>
+ * The sequence is the position of the record in the store's global write order. It is what decides
+ * which of two records for the same id is the newer one, no matter which segment either ended up in.
+ */
+final class FileStoreLocation {
+
+    final int segmentId;
+    final int offset;
+    final int length;
+    final long sequence;
+
+    FileStoreLocation(final int segmentId, final int offset, final int length, final long sequence) {
+        this.segmentId = segmentId;
+        this.offset = offset;
+        this.length = length;
+        this.sequence = sequence;
+    }
+
+    boolean isNewerThan(final FileStoreLocation other) {
+        return other == null || this.sequence > other.sequence;
+    }
+}
@@ -0,0 +1,120 @@
+package com.spinozanose.springbootrestoo.myAggregate;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
+
+/**
+ * The layout of one record in a file store segment. Every record is self-delimiting and carries its
+ * own checksum so that a segment can be scanned from the start on recovery, and a torn write at the
+ * tail (a crash in the middle of an append) is detected rather than read back as data.
+ * <pre>
+ *   int    length     bytes that follow this field
+ *   int    checksum   CRC32C of everything after this field
+ *   long   sequence   global write order
+ *   byte   kind       PUT or DELETE
+ *   byte   format     how the payload is encoded
+ *   short  idLength
+ *   byte[] id         UTF-8
+ *   byte[] payload    empty for a DELETE
+ * </pre>
+ * A length of zero marks the end of the written part of a segment, because segment files are
+ * pre-allocated and the unwritten part reads as zeros.
+ * <p>
+ * Decoding does not copy: the id is the only thing materialized, and the payload is a slice of the
+ * buffer that was passed in (usually the memory-mapped segment).
+ */
+final class FileStoreRecord {
+
+    static final byte PUT = 1;
+    static final byte DELETE = 2;
+
+    static final byte FORMAT_NONE = 0;
+    static final byte FORMAT_JSON = 1;
+    // see MyAggregateBinaryCodec
+    static final byte FORMAT_BINARY = 2;
+
+    static final int HEADER_LENGTH = 4 + 4 + 8 + 1 + 1 + 2;
+
+    final long sequence;
+    final byte kind;
+    final byte format;
+    final String id;
+    final ByteBuffer payload;
+    // the full length of the record, including the length field itself
+    final int length;
+
+    private FileStoreRecord(final long sequence, final byte kind, final byte format, final String id,
+                            final ByteBuffer payload, final int length) {
+        this.sequence = sequence;
+        this.kind = kind;
+        this.format = format;
+        this.id = id;
+        this.payload = payload;
+        this.length = length;
+    }
+
+    static ByteBuffer encode(final long sequence, final byte kind, final byte format, final String id, final byte[] payload) {
+        final byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        if (idBytes.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Id is too long to be stored: " + id);
+        }
+        final int payloadLength = (payload == null) ? 0 : payload.length;
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + idBytes.length + payloadLength);
+        buffer.putInt(buffer.capacity() - 4);
+        buffer.putInt(0); // checksum, filled in below
+        buffer.putLong(sequence);
+        buffer.put(kind);
+        buffer.put(format);
+        buffer.putShort((short) idBytes.length);
+        buffer.put(idBytes);
+        if (payloadLength > 0) {
+            buffer.put(payload);
+        }
+        buffer.putInt(4, checksum(buffer, 8, buffer.capacity()));
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Reads the record starting at the given offset of the buffer, or returns null if there is no
+     * complete, valid record there. The buffer's position and limit are left alone.
+     *
+     * @param buffer a segment, or part of one
+     * @param offset where the record starts
+     * @param verify whether to check the checksum. Recovery does, the read path does not, as the
+     *               index only ever points at records that were verified or written by this process.
+     * @return FileStoreRecord or null
+     */
+    static FileStoreRecord decode(final ByteBuffer buffer, final int offset, final boolean verify) {
+        if (offset < 0 || buffer.limit() - offset < HEADER_LENGTH) return null;
+        final int length = buffer.getInt(offset) + 4;
+        if (length < HEADER_LENGTH || length > buffer.limit() - offset) return null;
+        if (verify && buffer.getInt(offset + 4) != checksum(buffer, offset + 8, offset + length)) return null;
+        final long sequence = buffer.getLong(offset + 8);
+        final byte kind = buffer.get(offset + 16);
+        final byte format = buffer.get(offset + 17);
+        final int idLength = buffer.getShort(offset + 18);
+        if (idLength < 0 || HEADER_LENGTH + idLength > length) return null;
+        final byte[] idBytes = new byte[idLength];
+        final ByteBuffer view = buffer.duplicate();
+        view.position(offset + HEADER_LENGTH);
+        view.get(idBytes);
+        view.limit(offset + length);
+        return new FileStoreRecord(sequence, kind, format, new String(idBytes, StandardCharsets.UTF_8), view.slice(), length);
+    }
+
+    byte[] payloadBytes() {
+        final byte[] bytes = new byte[payload.remaining()];
+        payload.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static int checksum(final ByteBuffer buffer, final int from, final int to) {
+        final ByteBuffer view = buffer.duplicate();
+        view.limit(to).position(from);
+        final CRC32C crc = new CRC32C();
+        crc.update(view);
+        return (int) crc.getValue();
+    }
+}
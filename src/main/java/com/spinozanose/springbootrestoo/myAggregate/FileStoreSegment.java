@@ -0,0 +1,135 @@
+package com.spinozanose.springbootrestoo.myAggregate;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * One append-only file of the file store. The file is pre-allocated to its full capacity when it
+ * is created and memory-mapped once, read-only, for its whole life. Appends go through the channel
+ * at the end position and land in the same page cache the mapping reads from, so a record is
+ * readable through the mapping as soon as the append returns, and a read is nothing more than a
+ * positioned slice of the mapping.
+ * <p>
+ * Appending is not thread-safe on its own; the repository serializes it. Reading is, and keeps
+ * working after the segment is closed and its file deleted by compaction, for as long as anybody
+ * still holds on to the mapping.
+ */
+final class FileStoreSegment implements Closeable {
+
+    static final String PREFIX = "segment-";
+    static final String SUFFIX = ".log";
+
+    final int id;
+    final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private int end;
+
+    // guarded by the repository: bytes of records the index points at, and the newest record here
+    int live;
+    long maxSequence = -1;
+
+    private FileStoreSegment(final int id, final Path path, final FileChannel channel, final MappedByteBuffer map) {
+        this.id = id;
+        this.path = path;
+        this.channel = channel;
+        this.map = map;
+    }
+
+    static Path pathFor(final Path directory, final int id) {
+        return directory.resolve(String.format("%s%010d%s", PREFIX, id, SUFFIX));
+    }
+
+    /**
+     * @return the segment id encoded in the file name, or -1 if it is not a segment file
+     */
+    static int idOf(final Path file) {
+        final String name = file.getFileName().toString();
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) return -1;
+        try {
+            return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static FileStoreSegment create(final Path directory, final int id, final int capacity) throws IOException {
+        final Path path = pathFor(directory, id);
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            // sparse on the file systems we care about, so this costs no disk until it is written
+            file.setLength(capacity);
+        }
+        return open(path, id);
+    }
+
+    static FileStoreSegment open(final Path path, final int id) throws IOException {
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            final MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new FileStoreSegment(id, path, channel, map);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    int capacity() {
+        return map.capacity();
+    }
+
+    int end() {
+        return end;
+    }
+
+    int remaining() {
+        return map.capacity() - end;
+    }
+
+    int garbage() {
+        return end - live;
+    }
+
+    /**
+     * Only used by recovery, once the valid part of an existing segment is known.
+     */
+    void setEnd(final int end) {
+        this.end = end;
+    }
+
+    /**
+     * Writes the record at the end of the segment. It is not durable until {@link #force()}.
+     *
+     * @return the offset the record was written at
+     */
+    int append(final ByteBuffer record) throws IOException {
+        final int offset = end;
+        long position = offset;
+        while (record.hasRemaining()) {
+            position += channel.write(record, position);
+        }
+        end = (int) position;
+        return offset;
+    }
+
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * @return a read-only view of the whole mapped segment
+     */
+    ByteBuffer buffer() {
+        return map.duplicate();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -1,23 +1,189 @@
 package com.spinozanose.springbootrestoo.myAggregate;
 
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 /**
  * Notice the scoping. Creation is constrained to the aggregate, but it may be viewed everywhere.
  *
- * Not implemented
+ * InnerObject does not have fields of its own yet, so it holds whatever object it was given, as
+ * two flat arrays: the keys, sorted, and their values. A nested object is another InnerObject, and
+ * a list an unmodifiable list, so the whole thing is immutable, and two InnerObjects with the same
+ * keys and values are equal whatever order the keys came in. The hash is worked out once, up
+ * front.
+ *
+ * Being immutable, one InnerObject can be shared by every aggregate that has the same one, and
+ * many do. So they are made with of(), which hands back the one already made if there is one,
+ * rather than with the constructor. The table of them only holds them weakly: once no aggregate,
+ * cache or index refers to an InnerObject any more, it is collected as usual, and leaves the
+ * table with it. The table is split by hash, so making them from many threads mostly does not
+ * contend.
  */
-public class InnerObject {
+public final class InnerObject {
+
+    private static final int STRIPES = 16;
+    private static final String[] NO_KEYS = {};
+    private static final Object[] NO_VALUES = {};
+
+    // WeakHashMaps of each InnerObject to (a weak reference to) itself, by hash
+    private static final List<Map<InnerObject, WeakReference<InnerObject>>> INTERNED = new ArrayList<>(STRIPES);
 
-    InnerObject(Map<String, Object> data) {
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            INTERNED.add(new WeakHashMap<>());
+        }
+    }
+
+    private final String[] keys;
+    private final Object[] values;
+    private final int hash;
+    private final Map<String, Object> view = new View();
+
+    InnerObject(final Map<String, Object> data) {
+        final int size = data.size();
+        this.keys = (size == 0) ? NO_KEYS : data.keySet().toArray(new String[size]);
+        Arrays.sort(keys);
+        this.values = (size == 0) ? NO_VALUES : new Object[size];
+        int hash = 0;
+        for (int i = 0; i < size; i++) {
+            values[i] = immutable(data.get(keys[i]));
+            // what Map.hashCode would come to, so the view can use it
+            hash += keys[i].hashCode() ^ Objects.hashCode(valueOf(values[i]));
+        }
+        this.hash = hash;
+    }
+
+    /**
+     * @return an InnerObject of the data, the same one as for any equal data made before if it is
+     *         still around
+     */
+    static InnerObject of(final Map<String, Object> data) {
+        return intern(new InnerObject(data));
+    }
+
+    private static InnerObject intern(final InnerObject innerObject) {
+        final Map<InnerObject, WeakReference<InnerObject>> interned = INTERNED.get((innerObject.hash ^ (innerObject.hash >>> 16)) & (STRIPES - 1));
+        synchronized (interned) {
+            final WeakReference<InnerObject> existing = interned.get(innerObject);
+            final InnerObject shared = (existing == null) ? null : existing.get();
+            if (shared != null) return shared;
+            interned.put(innerObject, new WeakReference<>(innerObject));
+            return innerObject;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object immutable(final Object value) {
+        if (value instanceof InnerObject) return value;
+        if (value instanceof Map) return of((Map<String, Object>) value);
+        if (value instanceof List) {
+            final Object[] elements = ((List<?>) value).toArray();
+            for (int i = 0; i < elements.length; i++) {
+                elements[i] = valueOf(immutable(elements[i]));
+            }
+            return Collections.unmodifiableList(Arrays.asList(elements));
+        }
+        return value;
+    }
+
+    // a nested InnerObject is seen as its Map
+    private static Object valueOf(final Object value) {
+        return (value instanceof InnerObject) ? ((InnerObject) value).view : value;
     }
 
     /**
      * This should return an immutable view of the object.
      *
+     * It is made with the InnerObject, so this costs nothing.
+     *
      * @return Map<String, Object>
      */
     public Map<String, Object> toMap() {
-        return null;
+        return view;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        final InnerObject that = (InnerObject) o;
+        return hash == that.hash && Arrays.equals(keys, that.keys) && Arrays.equals(values, that.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * The keys and values, as a Map that cannot be changed. Lookups are a binary search of the
+     * sorted keys.
+     */
+    private final class View extends AbstractMap<String, Object> {
+
+        @Override
+        public Object get(final Object key) {
+            final int i = indexOf(key);
+            return (i < 0) ? null : valueOf(values[i]);
+        }
+
+        @Override
+        public boolean containsKey(final Object key) {
+            return indexOf(key) >= 0;
+        }
+
+        private int indexOf(final Object key) {
+            return (key instanceof String) ? Arrays.binarySearch(keys, key) : -1;
+        }
+
+        @Override
+        public int size() {
+            return keys.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            return new AbstractSet<Entry<String, Object>>() {
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    return new Iterator<Entry<String, Object>>() {
+                        private int next;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < keys.length;
+                        }
+
+                        @Override
+                        public Entry<String, Object> next() {
+                            if (!hasNext()) throw new NoSuchElementException();
+                            final int i = next++;
+                            return new SimpleImmutableEntry<>(keys[i], valueOf(values[i]));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return keys.length;
+                }
+            };
+        }
     }
 }
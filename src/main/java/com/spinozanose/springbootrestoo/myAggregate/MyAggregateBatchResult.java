@@ -0,0 +1,27 @@
+package com.spinozanose.springbootrestoo.myAggregate;
+
+/**
+ * What became of one item of a batch: the id of the MyAggregate it created, or why it could not be
+ * created. Exactly one of the two is set.
+ *
+ * Like MyAggregateDto this is nothing but public final data, so the controller can hand it
+ * straight to the framework to be written out.
+ */
+public class MyAggregateBatchResult {
+
+    public final String id;
+    public final String error;
+
+    private MyAggregateBatchResult(final String id, final String error) {
+        this.id = id;
+        this.error = error;
+    }
+
+    static MyAggregateBatchResult created(final String id) {
+        return new MyAggregateBatchResult(id, null);
+    }
+
+    static MyAggregateBatchResult failed(final String error) {
+        return new MyAggregateBatchResult(null, error);
+    }
+}
@@ -0,0 +1,447 @@
+package com.spinozanose.springbootrestoo.myAggregate;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A compact binary form of a MyAggregate's data, for the file store (see FileStoreRecord's
+ * FORMAT_BINARY). It is laid out by MyAggregateDto.FIELDS rather than describing itself the way
+ * JSON does, so no field names are stored, and each field has the encoding that suits it:
+ * <pre>
+ *   byte    schema     the version of FIELDS it was written with, see SCHEMAS
+ *   byte    present    a bit per field of the schema that is there (not null), plus UUID_ID
+ *   id          16 bytes if it is a UUID in the usual form (UUID_ID), else a string
+ *   aNumber     a varint, zig-zag encoded so small negative numbers stay short too
+ *   aString     a varint length and the UTF-8 bytes
+ *   innerObject a tagged value, since InnerObject has no fields of its own yet
+ * </pre>
+ * A tagged value is a byte for its type, then the value: a varint, 8 bytes of a double, a string
+ * as above, or a count and that many values (and keys, for a map).
+ * <p>
+ * A typical MyAggregate is around half the size of its JSON, so more of them fit in a segment and
+ * in the page cache, and decoding is a walk over the bytes with no parsing of text.
+ * <p>
+ * The schema byte is what lets FIELDS change without rewriting the store. A record is decoded
+ * with the schema it was written with, however old, and is only written in the current one when
+ * the aggregate is next written. Changing FIELDS means adding its new list at the end of SCHEMAS,
+ * which the check at class loading makes sure nobody forgets.
+ * <p>
+ * Not every Map fits: a key that is not in FIELDS, a field that is there but null (the present
+ * byte cannot tell that from one that is missing), or a value of a type JSON would not give us.
+ * For those encode returns null, and the store keeps them as JSON.
+ * <p>
+ * Encoding writes into a buffer kept per thread and copies out the result, and decoding reads
+ * strings through another, so the only allocations are the result and its values. A buffer that
+ * had to grow past MAX_RETAINED_BYTES for one large record is dropped afterwards, so each thread
+ * does not keep the largest record it has ever seen.
+ */
+final class MyAggregateBinaryCodec {
+
+    // index is the schema byte; 0 is never written, so a payload of zeros is not mistaken for one
+    private static final String[][] SCHEMAS = {
+            null,
+            {MyAggregateDto.ID, MyAggregateDto.A_NUMBER, MyAggregateDto.A_STRING, MyAggregateDto.INNER_OBJECT}
+    };
+    private static final int CURRENT_SCHEMA = SCHEMAS.length - 1;
+    // the field bits, and after them the bit that says the id is a UUID
+    private static final int MAX_FIELDS = 7;
+    private static final int UUID_ID = 1 << MAX_FIELDS;
+
+    static {
+        if (!Arrays.equals(SCHEMAS[CURRENT_SCHEMA], MyAggregateDto.FIELDS)) {
+            throw new IllegalStateException("MyAggregateDto.FIELDS has changed: add it to MyAggregateBinaryCodec.SCHEMAS");
+        }
+        if (MyAggregateDto.FIELDS.length > MAX_FIELDS) {
+            throw new IllegalStateException("More fields than bits in the present byte");
+        }
+    }
+
+    private static final byte NULL = 0;
+    private static final byte FALSE = 1;
+    private static final byte TRUE = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte STRING = 5;
+    private static final byte MAP = 6;
+    private static final byte LIST = 7;
+
+    // the most a thread's buffers keep between records
+    private static final int MAX_RETAINED_BYTES = 64 * 1024;
+    private static final int INITIAL_BYTES = 256;
+
+    private static final ThreadLocal<Writer> WRITER = ThreadLocal.withInitial(Writer::new);
+    private static final ThreadLocal<byte[][]> SCRATCH = ThreadLocal.withInitial(() -> new byte[][]{new byte[INITIAL_BYTES]});
+
+    private MyAggregateBinaryCodec() {
+    }
+
+    /**
+     * @return the encoded data, or null if it does not fit the schema and has to be stored as JSON
+     */
+    static byte[] encode(final Map<String, Object> data) {
+        final String[] fields = SCHEMAS[CURRENT_SCHEMA];
+        int present = 0;
+        int known = 0;
+        for (int i = 0; i < fields.length; i++) {
+            if (!data.containsKey(fields[i])) continue;
+            if (data.get(fields[i]) == null) return null;
+            known++;
+            present |= 1 << i;
+        }
+        if (known != data.size()) return null;
+        final Object id = data.get(MyAggregateDto.ID);
+        if (id != null && !(id instanceof String)) return null;
+        if (id != null && isUuid((String) id)) present |= UUID_ID;
+
+        final Writer writer = WRITER.get();
+        writer.position = 0;
+        try {
+            writer.put(CURRENT_SCHEMA);
+            writer.put(present);
+            for (int i = 0; i < fields.length; i++) {
+                final Object value = data.get(fields[i]);
+                if (value == null) continue;
+                switch (fields[i]) {
+                    case MyAggregateDto.ID:
+                        if ((present & UUID_ID) != 0) {
+                            writer.putUuid((String) value);
+                        } else {
+                            writer.putString((String) value);
+                        }
+                        break;
+                    case MyAggregateDto.A_NUMBER:
+                        if (!isWhole(value)) return null;
+                        writer.putVarLong(zigZag(((Number) value).longValue()));
+                        break;
+                    case MyAggregateDto.A_STRING:
+                        if (!(value instanceof String)) return null;
+                        writer.putString((String) value);
+                        break;
+                    default:
+                        if (!writer.putValue(value)) return null;
+                }
+            }
+            return Arrays.copyOf(writer.bytes, writer.position);
+        } finally {
+            if (writer.bytes.length > MAX_RETAINED_BYTES) writer.bytes = new byte[INITIAL_BYTES];
+        }
+    }
+
+    /**
+     * @param payload the encoded data, from its position to its limit; the position is left alone
+     * @return the data as the JSON form would have given it: numbers as Long, objects as JSONObject
+     * @throws IllegalArgumentException if it is not something encode wrote
+     */
+    static Map<String, Object> decode(final ByteBuffer payload) {
+        final Reader reader = new Reader(payload);
+        final int schema = reader.get();
+        if (schema <= 0 || schema >= SCHEMAS.length) {
+            throw new IllegalArgumentException("Unknown schema " + schema);
+        }
+        final String[] fields = SCHEMAS[schema];
+        final int present = reader.get();
+        final JSONObject data = new JSONObject();
+        for (int i = 0; i < fields.length; i++) {
+            if ((present & (1 << i)) == 0) continue;
+            switch (fields[i]) {
+                case MyAggregateDto.ID:
+                    put(data, MyAggregateDto.ID, ((present & UUID_ID) != 0) ? reader.getUuid() : reader.getString());
+                    break;
+                case MyAggregateDto.A_NUMBER:
+                    put(data, MyAggregateDto.A_NUMBER, unZigZag(reader.getVarLong()));
+                    break;
+                case MyAggregateDto.A_STRING:
+                    put(data, MyAggregateDto.A_STRING, reader.getString());
+                    break;
+                default:
+                    put(data, fields[i], reader.getValue());
+            }
+        }
+        return asMap(data);
+    }
+
+    /**
+     * @return the same data as UTF-8 JSON, for handing out to those who asked for JSON
+     */
+    static byte[] toJson(final ByteBuffer payload) {
+        return JSONObject.toJSONString(decode(payload)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The lower-case, dashed form MyUUID and UUID.toString write. Anything else, even an upper-case
+     * UUID, is kept as a string, so it reads back exactly as it was written.
+     */
+    static boolean isUuid(final String id) {
+        if (id.length() != 36) return false;
+        for (int i = 0; i < 36; i++) {
+            final char c = id.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') return false;
+            } else if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // json-simple's JSONObject and JSONArray are raw types
+    @SuppressWarnings("unchecked")
+    private static void put(final JSONObject object, final String key, final Object value) {
+        object.put(key, value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asMap(final JSONObject object) {
+        return object;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void add(final JSONArray array, final Object value) {
+        array.add(value);
+    }
+
+    private static boolean isWhole(final Object value) {
+        return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+    }
+
+    private static long zigZag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(final long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static final class Writer {
+        byte[] bytes = new byte[INITIAL_BYTES];
+        int position;
+
+        private void ensure(final int more) {
+            if (position + more > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, position + more));
+            }
+        }
+
+        void put(final int b) {
+            ensure(1);
+            bytes[position++] = (byte) b;
+        }
+
+        void putVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[position++] = (byte) value;
+        }
+
+        void putLong(final long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                bytes[position++] = (byte) (value >>> shift);
+            }
+        }
+
+        void putUuid(final String uuid) {
+            long most = 0;
+            long least = 0;
+            int digits = 0;
+            for (int i = 0; i < 36; i++) {
+                final int digit = Character.digit(uuid.charAt(i), 16);
+                if (digit < 0) continue;
+                if (digits++ < 16) {
+                    most = (most << 4) | digit;
+                } else {
+                    least = (least << 4) | digit;
+                }
+            }
+            putLong(most);
+            putLong(least);
+        }
+
+        /**
+         * UTF-8 by hand, straight into the buffer, rather than through getBytes and a copy. A lone
+         * surrogate becomes a question mark, as it would with getBytes.
+         */
+        void putString(final String value) {
+            final int length = value.length();
+            int utf8Length = 0;
+            for (int i = 0; i < length; i++) {
+                final char c = value.charAt(i);
+                if (c < 0x80) {
+                    utf8Length += 1;
+                } else if (c < 0x800) {
+                    utf8Length += 2;
+                } else if (isPair(value, i)) {
+                    utf8Length += 4;
+                    i++;
+                } else {
+                    utf8Length += Character.isSurrogate(c) ? 1 : 3;
+                }
+            }
+            putVarLong(utf8Length);
+            ensure(utf8Length);
+            for (int i = 0; i < length; i++) {
+                final char c = value.charAt(i);
+                if (c < 0x80) {
+                    bytes[position++] = (byte) c;
+                } else if (c < 0x800) {
+                    bytes[position++] = (byte) (0xC0 | (c >> 6));
+                    bytes[position++] = (byte) (0x80 | (c & 0x3F));
+                } else if (isPair(value, i)) {
+                    final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    bytes[position++] = (byte) (0xF0 | (codePoint >> 18));
+                    bytes[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    bytes[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    bytes[position++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    bytes[position++] = (byte) '?';
+                } else {
+                    bytes[position++] = (byte) (0xE0 | (c >> 12));
+                    bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    bytes[position++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        private static boolean isPair(final String value, final int i) {
+            return Character.isHighSurrogate(value.charAt(i)) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1));
+        }
+
+        /**
+         * @return false if there is something in it JSON would not have given us
+         */
+        boolean putValue(final Object value) {
+            if (value == null) {
+                put(NULL);
+            } else if (value instanceof Boolean) {
+                put((Boolean) value ? TRUE : FALSE);
+            } else if (isWhole(value)) {
+                put(LONG);
+                putVarLong(zigZag(((Number) value).longValue()));
+            } else if (value instanceof Double || value instanceof Float) {
+                put(DOUBLE);
+                putLong(Double.doubleToRawLongBits(((Number) value).doubleValue()));
+            } else if (value instanceof String) {
+                put(STRING);
+                putString((String) value);
+            } else if (value instanceof Map) {
+                put(MAP);
+                putVarLong(((Map<?, ?>) value).size());
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                    if (!(entry.getKey() instanceof String)) return false;
+                    putString((String) entry.getKey());
+                    if (!putValue(entry.getValue())) return false;
+                }
+            } else if (value instanceof List) {
+                put(LIST);
+                putVarLong(((List<?>) value).size());
+                for (Object element : (List<?>) value) {
+                    if (!putValue(element)) return false;
+                }
+            } else {
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private static final class Reader {
+        private final ByteBuffer buffer;
+        private int position;
+
+        Reader(final ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.position = buffer.position();
+        }
+
+        int get() {
+            if (position >= buffer.limit()) throw new IllegalArgumentException("Truncated at " + position);
+            return buffer.get(position++) & 0xFF;
+        }
+
+        long getVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final int b = get();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IllegalArgumentException("Varint too long at " + position);
+        }
+
+        long getLong() {
+            if (buffer.limit() - position < 8) throw new IllegalArgumentException("Truncated at " + position);
+            final long value = buffer.getLong(position);
+            position += 8;
+            return value;
+        }
+
+        String getUuid() {
+            return new UUID(getLong(), getLong()).toString();
+        }
+
+        String getString() {
+            final long length = getVarLong();
+            if (length < 0 || length > buffer.limit() - position) {
+                throw new IllegalArgumentException("String of " + length + " bytes at " + position);
+            }
+            final int size = (int) length;
+            final byte[][] scratch = SCRATCH.get();
+            if (scratch[0].length < size) scratch[0] = new byte[Math.max(size, scratch[0].length * 2)];
+            final byte[] bytes = scratch[0];
+            for (int i = 0; i < size; i++) {
+                bytes[i] = buffer.get(position + i);
+            }
+            position += size;
+            final String value = new String(bytes, 0, size, StandardCharsets.UTF_8);
+            if (bytes.length > MAX_RETAINED_BYTES) scratch[0] = new byte[INITIAL_BYTES];
+            return value;
+        }
+
+        Object getValue() {
+            final int tag = get();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case FALSE:
+                    return Boolean.FALSE;
+                case TRUE:
+                    return Boolean.TRUE;
+                case LONG:
+                    return unZigZag(getVarLong());
+                case DOUBLE:
+                    return Double.longBitsToDouble(getLong());
+                case STRING:
+                    return getString();
+                case MAP: {
+                    final long size = getVarLong();
+                    final JSONObject map = new JSONObject();
+                    for (long i = 0; i < size; i++) {
+                        final String key = getString();
+                        put(map, key, getValue());
+                    }
+                    return map;
+                }
+                case LIST: {
+                    final long size = getVarLong();
+                    final JSONArray list = new JSONArray();
+                    for (long i = 0; i < size; i++) {
+                        add(list, getValue());
+                    }
+                    return list;
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown value type " + tag + " at " + (position - 1));
+            }
+        }
+    }
+}
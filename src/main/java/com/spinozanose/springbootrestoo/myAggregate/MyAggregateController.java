@@ -1,19 +1,27 @@
 package com.spinozanose.springbootrestoo.myAggregate;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.spinozanose.springbootrestoo.common.exceptions.DomainPersistenceException;
 import com.spinozanose.springbootrestoo.common.exceptions.InvalidDomainDataException;
 import com.spinozanose.springbootrestoo.common.exceptions.ObjectNotFoundException;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.server.ResponseStatusException;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * This is the main implementation of the Springboot functionality and is implemented in the
@@ -23,42 +31,79 @@ import java.util.Map;
  * Notice that all of the RESTful interface concerns are managed here and do not bleed into the
  * rest of MyAggregate. For example, converting application exceptions to the appropriate RESTful
  * responses is left as much as possible to the Springboot framework: it is why we have it.
+ *
+ * The writes return a CompletableFuture, which Spring answers when it completes. Meanwhile the
+ * servlet thread goes back to serve other requests, instead of waiting for the disk (and the
+ * email vendor). A future that fails is handled by the ControllerAdvice, the same as a throw.
+ * Reads are answered on the servlet thread: they come from the cache or the file store's memory,
+ * and what they wait on is not worth the hand-off.
  */
 @RestController
 @RequestMapping("/v1/myaggregate")
 public class MyAggregateController {
 
+    static final String ZERO_COPY_READS_PROPERTY = "myaggregate.read.zeroCopy";
+
+    private static final int WRITE_CHUNK_BYTES = 8192;
+
     @Autowired
     private MyAggregateService service;
 
+    // package-private so it can be switched in tests
+    boolean zeroCopyReads = Boolean.getBoolean(ZERO_COPY_READS_PROPERTY);
+
     /**
      * We throw exceptions that are handled through the Spring ControllerAdvice functionality.
      *
+     * The body is read as a stream, straight into the DTO (see MyAggregateDtoReader), rather than
+     * into a String and then a Map, which makes for a lot less garbage per request.
+     *
      * @param body
-     * @return ResponseEntity<URI>
+     * @return CompletableFuture<ResponseEntity<URI>>
      * @throws InvalidDomainDataException
+     * @throws IOException
      */
     @PostMapping
     @ResponseStatus(HttpStatus.CREATED)
-    public ResponseEntity<URI> create(@RequestBody String body) throws InvalidDomainDataException, DomainPersistenceException {
-        final Map<String, Object> jsonObject;
-        // Note: JSONObject class extends HashMap
-        try {
-            jsonObject = (JSONObject) new JSONParser().parse(body);
-        } catch (ClassCastException e) {
-            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Not a JSON Object", e);
-        } catch (ParseException e) {
-            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "JSON Parse Error", e);
-        }
-        //
-        final MyAggregate myAggregate = service.create(jsonObject);
-        //
-        final URI location = URI.create("/v1/myaggregate/" + myAggregate.toDto().id);
-        return ResponseEntity.created(location).build();
+    public CompletableFuture<ResponseEntity<URI>> create(InputStream body) throws InvalidDomainDataException, IOException {
+        return service.createAsync(readDto(body)).thenApply(myAggregate -> {
+            final URI location = URI.create("/v1/myaggregate/" + myAggregate.toDto().id);
+            return ResponseEntity.<URI>created(location).build();
+        });
     }
 
+    /**
+     * With myaggregate.read.zeroCopy set, the JSON the repository stored is written to the response
+     * as it is (see MyAggregateRepository.readJson). No MyAggregate, DTO or Map is made of it, and
+     * Jackson is not involved, so a read costs little more than copying its bytes into the response.
+     * We write the response ourselves, and return null to tell Spring it has been handled.
+     *
+     * Otherwise the MyAggregate is read, from the service's cache if it is there, and its Map is
+     * written out by the framework.
+     *
+     * Either way the response has an ETag, the version of the MyAggregate. A client that polls can
+     * send it back in If-None-Match, and as long as nothing changed it gets a 304 for which only
+     * the version was looked up: the MyAggregate itself is not read at all.
+     *
+     * @param id
+     * @param request
+     * @param response
+     * @return ResponseEntity<Map<String,Object>>, or null if the response is already written
+     * @throws DomainPersistenceException
+     * @throws IOException
+     */
     @GetMapping("/{id}")
-    public ResponseEntity<Map<String,Object>> read( @PathVariable String id) throws DomainPersistenceException {
+    public ResponseEntity<Map<String,Object>> read(@PathVariable String id, WebRequest request, HttpServletResponse response) throws DomainPersistenceException, IOException {
+        // the version first, so what we send is at least as new as its ETag
+        final long version = service.version(id);
+        if (version != MyAggregateRepository.NO_VERSION && request.checkNotModified(etagOf(version))) {
+            // Spring has set the 304 and the ETag
+            return null;
+        }
+        if (zeroCopyReads) {
+            writeJson(service.readJson(id), response);
+            return null;
+        }
         final MyAggregate myAggregate = service.read(id);
         if (myAggregate==null) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Object not found");
@@ -66,29 +111,109 @@ public class MyAggregateController {
         return ResponseEntity.ok(myAggregate.toMap());
     }
 
+    static String etagOf(final long version) {
+        return "\"" + version + "\"";
+    }
+
+    private static void writeJson(final ByteBuffer json, final HttpServletResponse response) throws IOException {
+        if (json == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Object not found");
+        }
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setContentLength(json.remaining());
+        final OutputStream out = response.getOutputStream();
+        if (json.hasArray()) {
+            // written straight from its array, with no copy of ours
+            out.write(json.array(), json.arrayOffset() + json.position(), json.remaining());
+        } else {
+            // a mapped segment has no array, and a servlet stream only takes arrays, so it goes
+            // through a small one of ours, a chunk at a time: one copy more, but never all of it
+            final byte[] chunk = new byte[Math.min(json.remaining(), WRITE_CHUNK_BYTES)];
+            while (json.hasRemaining()) {
+                final int length = Math.min(json.remaining(), chunk.length);
+                json.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * A client that sends If-Match with the ETag it read only gets its update through if nobody
+     * changed the MyAggregate since; otherwise it gets a 412 (from the ControllerAdvice) and can
+     * read it again. Without If-Match the update is simply applied to whatever is there.
+     *
+     * A weak ETag never matches here, and neither does anything we did not hand out.
+     *
+     * @param body
+     * @param id
+     * @param ifMatch
+     * @return CompletableFuture, completed when the update is
+     * @throws InvalidDomainDataException
+     * @throws IOException
+     */
     @PutMapping("/{id}")
-    public void update(@RequestBody String body, @PathVariable String id) throws InvalidDomainDataException, ObjectNotFoundException, DomainPersistenceException {
-        final Map<String, Object> data;
+    public CompletableFuture<Void> update(InputStream body, @PathVariable String id, @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch)
+            throws InvalidDomainDataException, IOException {
+        final MyAggregateDto data = readDto(body);
+        final long expectedVersion = (ifMatch == null || ifMatch.trim().equals("*")) ? MyAggregateRepository.ANY_VERSION : versionOf(ifMatch);
+        return service.updateAsync(data, expectedVersion);
+    }
+
+    /**
+     * @return the version in the ETag, if it is one of ours, or else a version nothing is at
+     */
+    private static long versionOf(final String etag) {
+        final String trimmed = etag.trim();
+        if (trimmed.length() > 2 && trimmed.startsWith("\"") && trimmed.endsWith("\"")) {
+            try {
+                final long version = Long.parseLong(trimmed.substring(1, trimmed.length() - 1));
+                if (version >= 0) return version;
+            } catch (NumberFormatException e) {
+                // not ours
+            }
+        }
+        return MyAggregateRepository.NO_VERSION - 1;
+    }
+
+    /**
+     * A body that is not JSON at all is a bad request here. One that is JSON, but not a
+     * MyAggregate, is invalid domain data, which the ControllerAdvice turns into a bad request too.
+     */
+    private MyAggregateDto readDto(final InputStream body) throws InvalidDomainDataException, IOException {
+        final long start = System.nanoTime();
         try {
-            // this is an ok cast
-            data = (JSONObject) new JSONParser().parse(body);
-        } catch (ClassCastException e) {
-            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "JSON is not an Object", e);
-        } catch (ParseException e) {
+            return MyAggregateDtoReader.read(body);
+        } catch (JsonProcessingException e) {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "JSON Parse Error", e);
+        } finally {
+            service.parsed(start);
         }
+    }
 
-        service.update(data);
-
+    /**
+     * Where the time goes, in the manner of a Spring Boot Actuator endpoint: for each operation and
+     * each stage of one (parse, validate, persist, email) the count, the mean, the 50th, 90th, 99th
+     * and 99.9th percentiles and the maximum, in nanoseconds; the failures by exception; and the
+     * numbers of the locks, the email queue and the cache.
+     *
+     * @return the metrics, as JSON
+     */
+    @GetMapping("/_metrics")
+    public Map<String, Object> metrics() {
+        return service.metricsMap();
     }
 
     @DeleteMapping("/{id}")
-    public void delete(@RequestParam(value = "id") String id) {
-        try {
-            service.delete(id);
-        } catch (ObjectNotFoundException | DomainPersistenceException e) {
-            // Delete is idempotent, so this is fine.
-        }
+    public CompletableFuture<Void> delete(@RequestParam(value = "id") String id) {
+        return service.deleteAsync(id).handle((deleted, e) -> {
+            final Throwable cause = (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e;
+            if (cause == null || cause instanceof ObjectNotFoundException || cause instanceof DomainPersistenceException) {
+                // Delete is idempotent, so this is fine.
+                return null;
+            }
+            throw new CompletionException(cause);
+        });
     }
 
 }
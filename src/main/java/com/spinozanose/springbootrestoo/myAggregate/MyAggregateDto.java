@@ -25,9 +25,29 @@ public class MyAggregateDto {
      */
     public MyAggregateDto(final Map<String, Object> data) {
         id = (String) data.get(ID);
-        aNumber = (Integer) data.get(A_NUMBER);
+        aNumber = toInteger(data.get(A_NUMBER));
         aString = (String) data.get(A_STRING);
         final Map<String, Object> innerObjectData = (Map<String, Object>) data.get("innerObject");
-        this.innerObject = (innerObjectData == null) ? null : new InnerObject(innerObjectData);
+        this.innerObject = (innerObjectData == null) ? null : InnerObject.of(innerObjectData);
+    }
+
+    /**
+     * For when the fields are already at hand, like from MyAggregateDtoReader, so no Map is needed.
+     */
+    MyAggregateDto(final String id, final Integer aNumber, final String aString, final InnerObject innerObject) {
+        this.id = id;
+        this.aNumber = aNumber;
+        this.aString = aString;
+        this.innerObject = innerObject;
+    }
+
+    /**
+     * JSON has no integer type of its own, so depending on where the data comes from a number can
+     * arrive as any kind of Number (json-simple, for one, always gives us a Long). It is still an
+     * error for it not to fit in an int.
+     */
+    private static Integer toInteger(final Object value) {
+        if (value == null || value instanceof Integer) return (Integer) value;
+        return Math.toIntExact(((Number) value).longValue());
     }
 }
@@ -0,0 +1,149 @@
+package com.spinozanose.springbootrestoo.myAggregate;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.exc.InputCoercionException;
+import com.spinozanose.springbootrestoo.common.exceptions.InvalidDomainDataException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads a MyAggregateDto straight from the JSON in a request body, a token at a time, without
+ * building the body as a String or the object as a Map first. Since the DTO has a fixed set of
+ * fields (MyAggregateDto.FIELDS), each one is read into its own type as it comes: aNumber as an
+ * int, so a number that does not fit is an error here rather than a surprise later. Anything else
+ * in the object is skipped.
+ * <p>
+ * The innerObject is the exception. InnerObject does not know its fields yet, so it is still
+ * handed a Map, built from just that part of the body.
+ * <p>
+ * Notice that this is JSON, so it belongs to the RESTful side. But it is here, next to the DTO,
+ * because it has to know the DTO's fields, and the DTO does not have to know about it.
+ */
+final class MyAggregateDtoReader {
+
+    // thread-safe, and expensive enough to share; the batch endpoints read with it too
+    static final JsonFactory JSON = new JsonFactory();
+
+    private MyAggregateDtoReader() {
+    }
+
+    /**
+     * @param in the JSON, which must be one object
+     * @return MyAggregateDto
+     * @throws InvalidDomainDataException if it is JSON, but not a MyAggregate
+     * @throws IOException                if it is not JSON, or cannot be read
+     */
+    static MyAggregateDto read(final InputStream in) throws InvalidDomainDataException, IOException {
+        try (JsonParser parser = JSON.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new InvalidDomainDataException("Not a JSON Object");
+            }
+            String id = null;
+            Integer aNumber = null;
+            String aString = null;
+            InnerObject innerObject = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                final JsonToken value = parser.nextToken();
+                switch (field) {
+                    case MyAggregateDto.ID:
+                        id = readString(parser, field);
+                        break;
+                    case MyAggregateDto.A_NUMBER:
+                        aNumber = readInteger(parser, field);
+                        break;
+                    case MyAggregateDto.A_STRING:
+                        aString = readString(parser, field);
+                        break;
+                    case MyAggregateDto.INNER_OBJECT:
+                        if (value == JsonToken.VALUE_NULL) {
+                            innerObject = null;
+                        } else if (value == JsonToken.START_OBJECT) {
+                            innerObject = InnerObject.of(readObject(parser));
+                        } else {
+                            throw new InvalidDomainDataException("MyAggregate field " + field + " is not an object!");
+                        }
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+            if (parser.nextToken() != null) {
+                throw new InvalidDomainDataException("There is more after the JSON Object");
+            }
+            return new MyAggregateDto(id, aNumber, aString, innerObject);
+        }
+    }
+
+    private static String readString(final JsonParser parser, final String field) throws InvalidDomainDataException, IOException {
+        switch (parser.currentToken()) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_STRING:
+                return parser.getText();
+            default:
+                throw new InvalidDomainDataException("MyAggregate field " + field + " is not a string!");
+        }
+    }
+
+    private static Integer readInteger(final JsonParser parser, final String field) throws InvalidDomainDataException, IOException {
+        switch (parser.currentToken()) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_NUMBER_INT:
+                try {
+                    return parser.getIntValue();
+                } catch (InputCoercionException e) {
+                    throw new InvalidDomainDataException("MyAggregate field " + field + " does not fit in an int!");
+                }
+            default:
+                throw new InvalidDomainDataException("MyAggregate field " + field + " is not an integer!");
+        }
+    }
+
+    /**
+     * Reads the object the parser is at the start of, the way json-simple would have: whole
+     * numbers as Longs, others as Doubles.
+     */
+    static Map<String, Object> readObject(final JsonParser parser) throws IOException {
+        final Map<String, Object> object = new HashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            parser.nextToken();
+            object.put(field, readValue(parser));
+        }
+        return object;
+    }
+
+    private static Object readValue(final JsonParser parser) throws IOException {
+        switch (parser.currentToken()) {
+            case START_OBJECT:
+                return readObject(parser);
+            case START_ARRAY:
+                final List<Object> array = new ArrayList<>();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    array.add(readValue(parser));
+                }
+                return array;
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+                return parser.getLongValue();
+            case VALUE_NUMBER_FLOAT:
+                return parser.getDoubleValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            default:
+                return null;
+        }
+    }
+}
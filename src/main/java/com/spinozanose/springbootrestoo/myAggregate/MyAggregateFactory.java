@@ -1,32 +1,154 @@
 package com.spinozanose.springbootrestoo.myAggregate;
 
 import com.spinozanose.springbootrestoo.common.MyUUID;
+import com.spinozanose.springbootrestoo.common.concurrent.StripedLocks;
 import com.spinozanose.springbootrestoo.common.exceptions.DomainPersistenceException;
 import com.spinozanose.springbootrestoo.common.exceptions.InvalidDomainDataException;
 import com.spinozanose.springbootrestoo.common.exceptions.InvalidSearchParametersException;
 import com.spinozanose.springbootrestoo.common.exceptions.ObjectNotFoundException;
+import com.spinozanose.springbootrestoo.common.exceptions.ServiceBusyException;
+import com.spinozanose.springbootrestoo.common.exceptions.VersionConflictException;
 import com.spinozanose.springbootrestoo.email.EmailSendingService;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class MyAggregateFactory {
 
+    static final String LOCK_STRIPES_PROPERTY = "myaggregate.lockStripes";
+    static final String ASYNC_THREADS_PROPERTY = "myaggregate.async.threads";
+
+    private static final int DEFAULT_LOCK_STRIPES = 256;
+    private static final int MAX_UPDATE_ATTEMPTS = 8;
+    private static final int DEFAULT_ASYNC_THREADS = 64;
+    private static final int ASYNC_QUEUE_PER_THREAD = 16;
+
     /**
      * Services are default scope and non-final so they can be replaced in test code.
      * <p>
-     * We are pretending that in the final version of this application we are using
-     * Elasticsearch for search and the file system for persistence.
+     * We use the file system for persistence, and search with an index kept in memory
+     * (the Elasticsearch one is still around, if we ever want a search cluster instead).
+     * The search index is told about every change persisted here.
+     * <p>
+     * The search index reads the aggregates it finds from the repository, so it is made in the
+     * constructor, from the repository the factory is given. Code that replaces the repository
+     * afterwards has to replace the search service as well.
      * <p>
      * Notice that there are lots of options here. These could be lazy-loaded singletons
      * or calls to factories that set the services up with caches or other neat additions.
      * They can spawn jobs and return immediately if the service's operation(s) are not
      * required to be in the application transaction. And all nicely decoupled.
      */
-    MyAggregateRepository repository = new MyAggregateFileStoreRepository();
-    MyAggregateSearchService searchService = new MyAggregateElasticSearchService();
+    MyAggregateRepository repository;
+    MyAggregateSearchService searchService;
     EmailSendingService emailSendingService = new EmailSendingService();
 
+    /**
+     * Updates and deletes read, then write, and the optimistic check in update only catches a
+     * write in between after the fact. Some clients would rather never see a conflict, so here the
+     * read and the write for an id happen under its lock, and updates to the same MyAggregate
+     * take turns instead of retrying. Each lock covers a stripe of ids (see StripedLocks), so a
+     * hot MyAggregate holds up only the few others that share its stripe, and nothing else.
+     * <p>
+     * The lock only orders what goes through this factory; the repository still checks versions
+     * on its own, so nothing relies on every writer taking it. Set the stripes to 0 to turn it off.
+     */
+    final StripedLocks locks = new StripedLocks(Integer.getInteger(LOCK_STRIPES_PROPERTY, DEFAULT_LOCK_STRIPES));
+
+    /**
+     * The time spent in each stage of the work here, see MyAggregateMetrics. The service adds the
+     * operations as a whole.
+     */
+    final MyAggregateMetrics metrics = new MyAggregateMetrics();
+
+    /**
+     * Runs the async operations' blocking parts, so that the thread that asked (a servlet thread,
+     * usually) is free to serve other requests meanwhile. That work is mostly waiting, for a lock,
+     * the disk or the email vendor, not computing, so the pool is sized for the waits rather than
+     * for the cores: 64 threads unless myaggregate.async.threads says otherwise, and they go away
+     * when idle. Those are the writes that can be under way at once, and 16 per thread more can
+     * queue for them. That is the limit of this factory, however fast the disk.
+     * <p>
+     * Past it a write is turned away with a ServiceBusyException (a 503 for the client) rather
+     * than run by whoever handed it in. For a create that would be the thread completing its write,
+     * which in group commit mode is the file store's one committer thread, and every writer in the
+     * store would wait behind an email.
+     * <p>
+     * Default scope and non-final so it can be replaced in test code.
+     */
+    Executor executor = newExecutor(Integer.getInteger(ASYNC_THREADS_PROPERTY, DEFAULT_ASYNC_THREADS));
+
+    MyAggregateFactory() {
+        this(new MyAggregateFileStoreRepository());
+    }
+
+    MyAggregateFactory(final MyAggregateRepository repository) {
+        this.repository = repository;
+        this.searchService = new MyAggregateIndexSearchService(repository);
+    }
+
+    private static Executor newExecutor(final int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(ASYNC_QUEUE_PER_THREAD * threads),
+                runnable -> {
+                    final Thread thread = new Thread(runnable, "myaggregate-blocking-" + count.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        // an idle factory holds no threads
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Lets the async work already handed in finish, then closes the email service and the
+     * repository, if it has anything to close (the file store has threads, mapped files and the
+     * lock on its directory). Whatever a new factory is made with after this can open them again.
+     */
+    void close() throws IOException {
+        if (executor instanceof ExecutorService) {
+            final ExecutorService executorService = (ExecutorService) executor;
+            executorService.shutdown();
+            try {
+                executorService.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            emailSendingService.close();
+        } finally {
+            if (repository instanceof Closeable) {
+                ((Closeable) repository).close();
+            }
+        }
+    }
+
+    /**
+     * Blocking work, for {@link #completeAsync(CompletableFuture, Work)}.
+     */
+    private interface Work<T> {
+        T run() throws Exception;
+    }
+
     /**
      * In this implementation we return a list of MyAggregate objects in JSON (passed through). We could
      * have also returned MyAggregate objects themselves if we wanted to instantiate them.
@@ -34,11 +156,24 @@ class MyAggregateFactory {
      * @param searchParams
      * @return
      * @throws InvalidSearchParametersException
+     * @throws DomainPersistenceException
      */
-    List<String> search(final Map<String, String> searchParams) throws InvalidSearchParametersException {
+    List<String> search(final Map<String, String> searchParams) throws InvalidSearchParametersException, DomainPersistenceException {
         return searchService.search(searchParams);
     }
 
+    /**
+     * The streaming version of the search, see MyAggregateSearchService.
+     *
+     * @param searchParams
+     * @param sink
+     * @throws InvalidSearchParametersException
+     * @throws DomainPersistenceException
+     */
+    void search(final Map<String, String> searchParams, final SearchResultSink sink) throws InvalidSearchParametersException, DomainPersistenceException {
+        searchService.search(searchParams, sink);
+    }
+
     /**
      * Note that we have decided that assigning the id a value is done in the factory and the domain knows
      * and cares nothing about it. But it is also fine to have the domain object assign it for itself, or
@@ -53,6 +188,9 @@ class MyAggregateFactory {
      * For some reason we send an email to someone when a MyAggregate is created. I'm not sure why you would do
      * this, but for now just recognize it as an example of a service that should be set into the AggregateRoot
      * object because only the aggregate root itself has access to its aggregate root data.
+     * <p>
+     * The write and the indexing happen under the id's lock (see locks), like those of an update, so
+     * the search index is told about the changes to a MyAggregate in the order they were made.
      *
      * @param data
      * @return MyAggregate
@@ -60,8 +198,135 @@ class MyAggregateFactory {
      * @throws DomainPersistenceException
      */
     MyAggregate create(final Map<String, Object> data) throws InvalidDomainDataException, DomainPersistenceException {
+        return create(new MyAggregateDto(data));
+    }
+
+    /**
+     * The same, for data that is already in a DTO.
+     *
+     * @param data
+     * @return MyAggregate
+     * @throws InvalidDomainDataException
+     * @throws DomainPersistenceException
+     */
+    MyAggregate create(final MyAggregateDto data) throws InvalidDomainDataException, DomainPersistenceException {
+        final MyAggregateRoot myAggregateRoot = newRoot(data);
+        final Map<String, Object> created = myAggregateRoot.toMap();
+        final StripedLocks.Held held = locks.lock(created.get(MyAggregateDto.ID));
+        try {
+            // throws exception on persistence failure. This could be a crappy user experience, though.
+            final long persistStart = System.nanoTime();
+            myAggregateRoot.persist();
+            metrics.record(MyAggregateMetrics.Stage.PERSIST, persistStart);
+            searchService.index(created);
+        } finally {
+            held.close();
+        }
+        // again, this could be a crappy user experience. So other implementations can be considered.
+        sendEmail(myAggregateRoot);
+        // note that the object is only returned if all the services are without error. No rollback required.
+        return myAggregateRoot;
+    }
+
+    /**
+     * The same as create, except that it returns once the MyAggregate is valid and its write is
+     * under way. Nothing waits for the write to become durable: the repository completes the
+     * future then (see MyAggregateRepository.writeAsync), and the search index and the email are
+     * seen to on the executor after that. An invalid MyAggregate fails the future at once.
+     * <p>
+     * The lock cannot be held from here until the executor gets to it, so only the indexing is
+     * under it (see indexCreated).
+     * <p>
+     * The thread that completes the write only hands the rest to the executor, and does none of it
+     * itself, not even when the executor is full (see executor).
+     *
+     * @param data
+     * @return CompletableFuture of the MyAggregate, created
+     */
+    CompletableFuture<MyAggregate> createAsync(final MyAggregateDto data) {
+        final MyAggregateRoot myAggregateRoot;
+        try {
+            myAggregateRoot = newRoot(data);
+        } catch (InvalidDomainDataException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        final CompletableFuture<MyAggregate> created = new CompletableFuture<>();
+        final long persistStart = System.nanoTime();
+        myAggregateRoot.persistAsync().whenComplete((written, failure) -> {
+            if (failure != null) {
+                created.completeExceptionally((failure instanceof CompletionException && failure.getCause() != null) ? failure.getCause() : failure);
+                return;
+            }
+            completeAsync(created, () -> {
+                // including the hand-off to the executor, which is part of the wait
+                metrics.record(MyAggregateMetrics.Stage.PERSIST, persistStart);
+                indexCreated(myAggregateRoot.toMap());
+                sendEmail(myAggregateRoot);
+                return myAggregateRoot;
+            });
+        });
+        return created;
+    }
 
-        if (data.get(MyAggregateDto.ID) != null) {
+    /**
+     * Creates many MyAggregates at once, for imports. Every item is checked just like in create, but
+     * an invalid item only fails itself: it gets an error in its result and the rest go on. The valid
+     * ones are then written with a single call to the repository, which can batch the work (the
+     * file store makes them durable with one flush per thousand or so, instead of one each).
+     * <p>
+     * Failing to persist, on the other hand, fails the whole batch, the same as it fails a single
+     * create. The repository cannot tell us which items made it, so we cannot claim any of them did.
+     *
+     * @param items
+     * @return a result for each item, in the same order
+     * @throws DomainPersistenceException
+     */
+    List<MyAggregateBatchResult> createAll(final List<Map<String, Object>> items) throws DomainPersistenceException {
+        final MyAggregateBatchResult[] results = new MyAggregateBatchResult[items.size()];
+        final List<MyAggregateRoot> roots = new ArrayList<>(items.size());
+        final List<Map<String, Object>> batch = new ArrayList<>(items.size());
+        final int[] positions = new int[items.size()];
+        for (int i = 0; i < items.size(); i++) {
+            try {
+                final MyAggregateRoot myAggregateRoot = newRoot(new MyAggregateDto(items.get(i)));
+                positions[roots.size()] = i;
+                roots.add(myAggregateRoot);
+                batch.add(myAggregateRoot.toMap());
+            } catch (InvalidDomainDataException e) {
+                results[i] = MyAggregateBatchResult.failed(e.getMessage());
+            } catch (ClassCastException | ArithmeticException e) {
+                // the DTO found a field of the wrong type, which create leaves to the framework
+                results[i] = MyAggregateBatchResult.failed("MyAggregate data has a field of the wrong type!");
+            }
+        }
+        final long persistStart = System.nanoTime();
+        repository.writeAll(batch);
+        metrics.record(MyAggregateMetrics.Stage.PERSIST, persistStart);
+        for (int i = 0; i < roots.size(); i++) {
+            final MyAggregateRoot myAggregateRoot = roots.get(i);
+            indexCreated(batch.get(i));
+            sendEmail(myAggregateRoot);
+            results[positions[i]] = MyAggregateBatchResult.created(myAggregateRoot.toDto().id);
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * The same as createAll, run on the executor.
+     *
+     * @param items
+     * @return CompletableFuture of a result for each item, in the same order
+     */
+    CompletableFuture<List<MyAggregateBatchResult>> createAllAsync(final List<Map<String, Object>> items) {
+        return supplyAsync(() -> createAll(items));
+    }
+
+    /**
+     * Everything create does before persisting: gives the data an id, and makes sure it is a valid
+     * new MyAggregateRoot.
+     */
+    private MyAggregateRoot newRoot(final MyAggregateDto data) throws InvalidDomainDataException {
+        if (data.id != null) {
             /**
              * This seems less surprising and less magical than accepting the passed id or replacing it
              * with a different one.
@@ -69,21 +334,38 @@ class MyAggregateFactory {
             throw new InvalidDomainDataException("Do not specify an id when creating a new MyAggregateRoot!");
         }
         // create and add id
-        data.put(MyAggregateDto.ID, new MyUUID().toString());
-        // wrap in dto
-        final MyAggregateDto dto = new MyAggregateDto(data);
-        // validate
-        final MyAggregateNewValidator validator = new MyAggregateNewValidator();
-        // throws exception on invalid data
-        validator.validityCheck(dto);
-        // create MyAggregateRoot
-        final MyAggregateRoot myAggregateRoot = new MyAggregateRoot(dto, repository, emailSendingService);
-        // throws exception on persistence failure. This could be a crappy user experience, though.
-        myAggregateRoot.persist();
-        // again, this could be a crappy user experience. So other implementations can be considered.
+        final MyAggregateDto dto = new MyAggregateDto(new MyUUID().toString(), data.aNumber, data.aString, data.innerObject);
+        final long validateStart = System.nanoTime();
+        try {
+            // validate
+            final MyAggregateNewValidator validator = new MyAggregateNewValidator();
+            // throws exception on invalid data
+            validator.validityCheck(dto);
+            // create MyAggregateRoot
+            return new MyAggregateRoot(dto, repository, emailSendingService);
+        } finally {
+            metrics.record(MyAggregateMetrics.Stage.VALIDATE, validateStart);
+        }
+    }
+
+    /**
+     * Indexes a MyAggregate that was written without holding its lock, under the lock. Its id is
+     * only handed out once the create is done, so nothing can have changed it since the write, and
+     * from here on any change waits for the indexing to be done.
+     */
+    private void indexCreated(final Map<String, Object> created) {
+        final StripedLocks.Held held = locks.lock(created.get(MyAggregateDto.ID));
+        try {
+            searchService.index(created);
+        } finally {
+            held.close();
+        }
+    }
+
+    private void sendEmail(final MyAggregateRoot myAggregateRoot) {
+        final long emailStart = System.nanoTime();
         myAggregateRoot.sendEmail();
-        // note that the object is only returned if all the services are without error. No rollback required.
-        return myAggregateRoot;
+        metrics.record(MyAggregateMetrics.Stage.EMAIL, emailStart);
     }
 
     /**
@@ -103,6 +385,49 @@ class MyAggregateFactory {
         }
     }
 
+    /**
+     * See MyAggregateRepository.version.
+     *
+     * @param id
+     * @return the version, or MyAggregateRepository.NO_VERSION
+     * @throws DomainPersistenceException
+     */
+    long version(final String id) throws DomainPersistenceException {
+        return repository.version(id);
+    }
+
+    /**
+     * The stored JSON, passed through without making a MyAggregate of it, see
+     * MyAggregateRepository.readJson. Everything in the repository is valid, so there is nothing
+     * the domain would add.
+     *
+     * @param id
+     * @return UTF-8 JSON, or null
+     * @throws DomainPersistenceException
+     */
+    ByteBuffer readJson(final String id) throws DomainPersistenceException {
+        return repository.readJson(id);
+    }
+
+    /**
+     * Many reads at once, see MyAggregateRepository.readAll.
+     *
+     * @param ids
+     * @return the MyAggregates found, by id
+     * @throws DomainPersistenceException
+     */
+    Map<String, MyAggregate> readAll(final Collection<String> ids) throws DomainPersistenceException {
+        final Map<String, MyAggregate> found = new HashMap<>();
+        for (Map.Entry<String, Map<String, Object>> entry : repository.readAll(ids).entrySet()) {
+            try {
+                found.put(entry.getKey(), new MyAggregateRoot(new MyAggregateDto(entry.getValue()), repository, emailSendingService));
+            } catch (InvalidDomainDataException e) {
+                throw new RuntimeException("This should not happen as all data in the repository should be valid! Right?");
+            }
+        }
+        return found;
+    }
+
     /**
      * @param updateData
      * @throws ObjectNotFoundException
@@ -110,27 +435,114 @@ class MyAggregateFactory {
      */
     void update(final Map<String, Object> updateData) throws ObjectNotFoundException, InvalidDomainDataException, DomainPersistenceException {
         // convert to DTO
-        final MyAggregateDto updateDataDto = new MyAggregateDto(updateData);
-        // get existing data
+        update(new MyAggregateDto(updateData));
+    }
+
+    /**
+     * The same, for data that is already in a DTO.
+     *
+     * @param updateDataDto
+     * @throws ObjectNotFoundException
+     * @throws InvalidDomainDataException
+     * @throws DomainPersistenceException
+     */
+    void update(final MyAggregateDto updateDataDto) throws ObjectNotFoundException, InvalidDomainDataException, DomainPersistenceException {
+        try {
+            update(updateDataDto, MyAggregateRepository.ANY_VERSION);
+        } catch (VersionConflictException e) {
+            throw new DomainPersistenceException("Gave up on updating MyAggregate " + updateDataDto.id + ", it keeps changing", e);
+        }
+    }
+
+    /**
+     * The same as update, run on the executor. An update waits for the id's lock (see locks) and
+     * holds it until its write is durable, and a lock cannot be handed from one thread to another,
+     * so the whole update runs on one of the executor's threads rather than the caller's.
+     *
+     * @param updateDataDto
+     * @param expectedVersion ANY_VERSION for update(MyAggregateDto)
+     * @return CompletableFuture, completed when the update is
+     */
+    CompletableFuture<Void> updateAsync(final MyAggregateDto updateDataDto, final long expectedVersion) {
+        return supplyAsync(() -> {
+            if (expectedVersion == MyAggregateRepository.ANY_VERSION) {
+                update(updateDataDto);
+            } else {
+                update(updateDataDto, expectedVersion);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * An update is a read, a change and a write, and without care two of them at the same time
+     * both read the same thing, and the second write silently undoes the first. So the write only
+     * goes through if the aggregate is still at the version it was read at (a compare-and-set, see
+     * MyAggregateRepository.write).
+     * <p>
+     * A client that read the aggregate itself, and knows its version, passes that version, and then
+     * any change since is a conflict for the client to sort out. Otherwise (ANY_VERSION) the update
+     * only has to be applied to the latest data. Under the id's lock (see locks) the version cannot
+     * change between our read and our write, unless someone writes around this factory; if it does,
+     * we just read again and reapply, a few times before giving up.
+     *
+     * @param updateDataDto
+     * @param expectedVersion
+     * @throws ObjectNotFoundException
+     * @throws InvalidDomainDataException
+     * @throws DomainPersistenceException
+     * @throws VersionConflictException
+     */
+    void update(final MyAggregateDto updateDataDto, final long expectedVersion) throws ObjectNotFoundException, InvalidDomainDataException, DomainPersistenceException, VersionConflictException {
         final String id = updateDataDto.id;
         if (id == null) throw new ObjectNotFoundException("No id specified!");
-        final Map<String, Object> existingData = repository.read(id);
-        if (existingData == null) {
-            throw new ObjectNotFoundException("No MyAggregate to update with id " + id);
-        }
-        // wrap in DTO
-        final MyAggregateDto existingDataDto = new MyAggregateDto(existingData);
-        // instantiate myAggregateData
-        final MyAggregateRoot myAggregateRoot;
+        final StripedLocks.Held held = locks.lock(id);
         try {
-            myAggregateRoot = new MyAggregateRoot(existingDataDto, repository, emailSendingService);
-        } catch (InvalidDomainDataException e) {
-            throw new RuntimeException("This should not happen unless the data in the repository is invalid!", e);
+            updateLocked(updateDataDto, expectedVersion);
+        } finally {
+            held.close();
+        }
+    }
+
+    private void updateLocked(final MyAggregateDto updateDataDto, final long expectedVersion) throws ObjectNotFoundException, InvalidDomainDataException, DomainPersistenceException, VersionConflictException {
+        final String id = updateDataDto.id;
+        for (int attempt = 1; ; attempt++) {
+            // the version before the data, so the data is at least that new
+            final long version = (expectedVersion == MyAggregateRepository.ANY_VERSION) ? repository.version(id) : expectedVersion;
+            // get existing data
+            final Map<String, Object> existingData = repository.read(id);
+            if (existingData == null) {
+                throw new ObjectNotFoundException("No MyAggregate to update with id " + id);
+            }
+            // wrap in DTO
+            final MyAggregateDto existingDataDto = new MyAggregateDto(existingData);
+            // instantiate myAggregateData
+            final MyAggregateRoot myAggregateRoot;
+            try {
+                myAggregateRoot = new MyAggregateRoot(existingDataDto, repository, emailSendingService);
+            } catch (InvalidDomainDataException e) {
+                throw new RuntimeException("This should not happen unless the data in the repository is invalid!", e);
+            }
+            // update
+            final long validateStart = System.nanoTime();
+            try {
+                myAggregateRoot.update(updateDataDto);
+            } finally {
+                metrics.record(MyAggregateMetrics.Stage.VALIDATE, validateStart);
+            }
+            // persist, if nobody beat us to it
+            final long persistStart = System.nanoTime();
+            try {
+                myAggregateRoot.persist(version);
+            } catch (VersionConflictException e) {
+                if (expectedVersion != MyAggregateRepository.ANY_VERSION || attempt == MAX_UPDATE_ATTEMPTS) throw e;
+                continue;
+            } finally {
+                metrics.record(MyAggregateMetrics.Stage.PERSIST, persistStart);
+            }
+            searchService.index(myAggregateRoot.toMap());
+            return;
         }
-        // update
-        myAggregateRoot.update(updateDataDto);
-        // persist
-        myAggregateRoot.persist();
     }
 
     /**
@@ -144,11 +556,57 @@ class MyAggregateFactory {
      * @throws DomainPersistenceException
      */
     void delete(final String id) throws ObjectNotFoundException, DomainPersistenceException {
-        final Map<String, Object> data = repository.read(id);
-        if (data == null) {
-            throw new ObjectNotFoundException("No MyAggregate with id " + id);
-        } else {
-            repository.delete(id);
+        final StripedLocks.Held held = locks.lock(id);
+        try {
+            final Map<String, Object> data = repository.read(id);
+            if (data == null) {
+                throw new ObjectNotFoundException("No MyAggregate with id " + id);
+            } else {
+                final long persistStart = System.nanoTime();
+                repository.delete(id);
+                metrics.record(MyAggregateMetrics.Stage.PERSIST, persistStart);
+                searchService.remove(id);
+            }
+        } finally {
+            held.close();
+        }
+    }
+
+    /**
+     * The same as delete, run on the executor, for the same reason as updateAsync.
+     *
+     * @param id
+     * @return CompletableFuture, completed when the delete is
+     */
+    CompletableFuture<Void> deleteAsync(final String id) {
+        return supplyAsync(() -> {
+            delete(id);
+            return null;
+        });
+    }
+
+    private <T> CompletableFuture<T> supplyAsync(final Work<T> work) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        completeAsync(future, work);
+        return future;
+    }
+
+    /**
+     * The future fails with whatever the work throws, checked or not, as it is: not wrapped, so the
+     * controller's caller sees the same exceptions as from the blocking methods. If the executor
+     * is full the work is not done at all, and the future fails with a ServiceBusyException.
+     */
+    private <T> void completeAsync(final CompletableFuture<T> future, final Work<T> work) {
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(work.run());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new ServiceBusyException("Too many MyAggregate writes under way, try again later"));
         }
     }
 }
@@ -1,25 +1,859 @@
 package com.spinozanose.springbootrestoo.myAggregate;
 
+import com.spinozanose.springbootrestoo.common.exceptions.DomainPersistenceException;
+import com.spinozanose.springbootrestoo.common.exceptions.VersionConflictException;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
- * Not implemented. We are pretending that we will be saving to the local file system. Of course,
- * we could swap out an implementation for MongoDb, a Database, or S3, or anything else.
+ * Saves MyAggregates to the local file system as a log-structured store. Of course, we could swap
+ * out an implementation for MongoDb, a Database, or S3, or anything else.
+ * <p>
+ * Nothing is ever written in place. Every write and every delete is appended as a record to the
+ * end of the current segment file, and an in-memory index maps each id to the location of its
+ * latest record. So a write is one sequential append, and a read is one index lookup followed by
+ * one positioned read of a memory-mapped segment. There is no directory scan and no file per
+ * aggregate.
+ * <p>
+ * The index only lives in memory. When the store is opened it is rebuilt by scanning the segments,
+ * and whichever record for an id has the highest sequence wins. That is also why a delete is a
+ * record (a tombstone) and not just an index removal.
+ * <p>
+ * The store is opened lazily, on first use, so constructing one (as the MyAggregateFactory does
+ * for every instance) costs nothing. Only one repository may have a directory open at a time; the
+ * second one gets a DomainPersistenceException.
+ * <p>
+ * Records are stored as JSON, the same format the rest of the application speaks. With
+ * myaggregate.store.binary on they are stored in the compact binary form of MyAggregateBinaryCodec
+ * instead, which is about half the size and quicker to decode. The price is that readJson has to
+ * build the JSON, where otherwise it hands out the stored bytes as they are. A store can hold both
+ * (each record says which it is), so the setting can be changed at any time.
+ * <p>
+ * By default every write is flushed to disk on its own before it returns. With group commit on
+ * (myaggregate.store.groupCommit) concurrent writes are batched behind one flush instead, see
+ * FileStoreGroupCommit. The guarantee to the caller is the same either way.
+ * <p>
+ * Once a write has failed part way, every later write fails the same way, because what is at the
+ * end of the segment is no longer known. Closing the store and using it again (or a restart)
+ * rebuilds the index from disk, which ignores the torn write, and writing goes on.
+ * <p>
+ * Dead records, the versions left behind by updates and deletes, are cleaned up by a background
+ * compactor, see FileStoreCompactor, so the size of the store follows the number of aggregates
+ * rather than the number of writes.
  */
-public class MyAggregateFileStoreRepository implements MyAggregateRepository {
+public class MyAggregateFileStoreRepository implements MyAggregateRepository, Closeable {
+
+    static final String DIRECTORY_PROPERTY = "myaggregate.store.directory";
+    static final String SEGMENT_BYTES_PROPERTY = "myaggregate.store.segmentBytes";
+    static final String GROUP_COMMIT_PROPERTY = "myaggregate.store.groupCommit";
+    static final String GROUP_COMMIT_WINDOW_PROPERTY = "myaggregate.store.groupCommitWindowMicros";
+    static final String COMPACTION_INTERVAL_PROPERTY = "myaggregate.store.compactionIntervalSeconds";
+    static final String COMPACTION_BYTES_PER_SECOND_PROPERTY = "myaggregate.store.compactionBytesPerSecond";
+    static final String BINARY_PROPERTY = "myaggregate.store.binary";
+    static final String READ_THREADS_PROPERTY = "myaggregate.store.readThreads";
+
+    private static final String DEFAULT_DIRECTORY = "data/myaggregate";
+    private static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+    private static final long DEFAULT_GROUP_COMMIT_WINDOW_MICROS = 200;
+    private static final int MAX_GROUP_COMMIT_BATCH = 1024;
+    private static final int PARALLEL_READ_MINIMUM = 64;
+    private static final int DEFAULT_READ_THREADS = 8;
+    private static final long DEFAULT_COMPACTION_INTERVAL_SECONDS = 60;
+    private static final long DEFAULT_COMPACTION_BYTES_PER_SECOND = 16 * 1024 * 1024;
+    private static final double COMPACTION_GARBAGE_RATIO = 0.5;
+    private static final String LOCK_FILE = "store.lock";
+    private static final Logger LOGGER = Logger.getLogger(MyAggregateFileStoreRepository.class.getName());
+
+    private final Path directory;
+    private final int segmentBytes;
+    // negative when group commit is off
+    private final long groupCommitWindowNanos;
+    // zero when background compaction is off
+    private final long compactionIntervalSeconds;
+    private final long compactionBytesPerSecond;
+    private final boolean binary;
+    private final int readThreads = Integer.getInteger(READ_THREADS_PROPERTY, DEFAULT_READ_THREADS);
+    private final Object compactionLock = new Object();
+
+    private final Map<String, FileStoreLocation> index = new ConcurrentHashMap<>();
+    private final Map<Integer, FileStoreSegment> segments = new ConcurrentHashMap<>();
+
+    // guarded by this
+    private FileStoreSegment active;
+    private int nextSegmentId;
+    private long nextSequence;
+    private FileChannel lockChannel;
+    private FileLock lock;
+    // set when an append fails part way, until the store is closed and opened again
+    private DomainPersistenceException failure;
+    // segments being written by the compactor, which are not sealed yet
+    private final Set<FileStoreSegment> compacting = new HashSet<>();
+
+    private volatile FileStoreGroupCommit groupCommit;
+    private volatile ScheduledExecutorService compaction;
+    // the threads of readAll, see there
+    private volatile ExecutorService readers;
+    private volatile FileStoreCompactor compactor;
+
+    private volatile boolean open;
+
+    public MyAggregateFileStoreRepository() {
+        this(Paths.get(System.getProperty(DIRECTORY_PROPERTY, DEFAULT_DIRECTORY)),
+                Integer.getInteger(SEGMENT_BYTES_PROPERTY, DEFAULT_SEGMENT_BYTES),
+                Boolean.getBoolean(GROUP_COMMIT_PROPERTY)
+                        ? TimeUnit.MICROSECONDS.toNanos(Long.getLong(GROUP_COMMIT_WINDOW_PROPERTY, DEFAULT_GROUP_COMMIT_WINDOW_MICROS))
+                        : -1,
+                Long.getLong(COMPACTION_INTERVAL_PROPERTY, DEFAULT_COMPACTION_INTERVAL_SECONDS),
+                Long.getLong(COMPACTION_BYTES_PER_SECOND_PROPERTY, DEFAULT_COMPACTION_BYTES_PER_SECOND),
+                Boolean.getBoolean(BINARY_PROPERTY));
+    }
+
+    MyAggregateFileStoreRepository(final Path directory, final int segmentBytes) {
+        this(directory, segmentBytes, -1);
+    }
+
+    MyAggregateFileStoreRepository(final Path directory, final int segmentBytes, final long groupCommitWindowNanos) {
+        this(directory, segmentBytes, groupCommitWindowNanos, 0, DEFAULT_COMPACTION_BYTES_PER_SECOND, false);
+    }
+
+    MyAggregateFileStoreRepository(final Path directory, final int segmentBytes, final boolean binary) {
+        this(directory, segmentBytes, -1, 0, DEFAULT_COMPACTION_BYTES_PER_SECOND, binary);
+    }
+
+    /**
+     * @param groupCommitWindowNanos    how long a commit batch is held open for more writers, or a
+     *                                  negative number to flush every write on its own
+     * @param compactionIntervalSeconds how often to check whether compacting is worth it, or zero to
+     *                                  only compact when asked to
+     * @param compactionBytesPerSecond  the I/O budget of the compactor
+     * @param binary                    whether to write records in the binary form rather than JSON
+     */
+    MyAggregateFileStoreRepository(final Path directory, final int segmentBytes, final long groupCommitWindowNanos,
+                                   final long compactionIntervalSeconds, final long compactionBytesPerSecond,
+                                   final boolean binary) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.groupCommitWindowNanos = groupCommitWindowNanos;
+        this.compactionIntervalSeconds = compactionIntervalSeconds;
+        this.compactionBytesPerSecond = compactionBytesPerSecond;
+        this.binary = binary;
+    }
+
+    @Override
+    public void write(final Map<String, Object> data) throws DomainPersistenceException {
+        append(putOf(data, ANY_VERSION));
+    }
+
+    /**
+     * In group commit mode the committer thread completes the future, so nobody waits for the flush
+     * but the future. Otherwise the record is appended and flushed before this returns, as in write.
+     */
+    @Override
+    public CompletableFuture<Void> writeAsync(final Map<String, Object> data) {
+        try {
+            final FileStoreAppend append = putOf(data, ANY_VERSION);
+            submit(append);
+            return append.done.thenApply(location -> null);
+        } catch (DomainPersistenceException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * The version is checked when the record's turn comes to be appended, against the index, so
+     * nothing is locked while the caller works out what to write. The check cannot come any
+     * earlier: once a record is in the log it would win on recovery, whether it lost the race or
+     * not. It costs a map lookup in a lock the append takes anyway, so writers to different ids
+     * wait on each other no more than before.
+     */
+    @Override
+    public void write(final Map<String, Object> data, final long expectedVersion) throws DomainPersistenceException, VersionConflictException {
+        final FileStoreAppend append = putOf(data, expectedVersion);
+        submit(append);
+        append.awaitConditional();
+    }
+
+    /**
+     * The whole list is appended directly, without waiting for a group commit window, in batches
+     * of the same size the committer uses. Each batch is one flush, instead of one per aggregate,
+     * and holds the lock only for that long, so other writers still get their turn in a big import.
+     * <p>
+     * The batches are not one transaction. If the store fails part way, the aggregates in the
+     * batches before are durable and the rest are not.
+     */
+    @Override
+    public void writeAll(final List<Map<String, Object>> batch) throws DomainPersistenceException {
+        final List<FileStoreAppend> appends = new ArrayList<>(batch.size());
+        for (Map<String, Object> data : batch) {
+            appends.add(putOf(data, ANY_VERSION));
+        }
+        ensureOpen();
+        for (int from = 0; from < appends.size(); from += MAX_GROUP_COMMIT_BATCH) {
+            appendAll(appends.subList(from, Math.min(appends.size(), from + MAX_GROUP_COMMIT_BATCH)));
+        }
+        for (FileStoreAppend append : appends) {
+            append.await();
+        }
+    }
+
+    /**
+     * In binary mode, data that does not fit the binary form is still stored, as JSON.
+     */
+    private FileStoreAppend putOf(final Map<String, Object> data, final long expectedVersion) throws DomainPersistenceException {
+        final Object id = data.get(MyAggregateDto.ID);
+        if (!(id instanceof String)) {
+            throw new DomainPersistenceException("Cannot store a MyAggregate without an id");
+        }
+        final byte[] encoded = binary ? MyAggregateBinaryCodec.encode(data) : null;
+        if (encoded != null) {
+            return new FileStoreAppend((String) id, FileStoreRecord.PUT, FileStoreRecord.FORMAT_BINARY, encoded, expectedVersion);
+        }
+        final byte[] payload = JSONObject.toJSONString(data).getBytes(StandardCharsets.UTF_8);
+        return new FileStoreAppend((String) id, FileStoreRecord.PUT, FileStoreRecord.FORMAT_JSON, payload, expectedVersion);
+    }
 
     @Override
-    public void write(Map<String, Object> data) {
-        throw new UnsupportedOperationException();
+    public Map<String, Object> read(final String id) throws DomainPersistenceException {
+        ensureOpen();
+        final FileStoreRecord record = recordFor(id);
+        return (record == null) ? null : decode(record);
     }
 
+    /**
+     * The sequence of the latest record is the version: it goes up with every write, and compaction
+     * keeps it. It comes from the index alone.
+     */
     @Override
-    public Map<String, Object> read(String id) {
-        throw new UnsupportedOperationException();
+    public long version(final String id) throws DomainPersistenceException {
+        ensureOpen();
+        return version(index.get(id));
     }
 
+    /**
+     * A view of the record's payload right in the mapped segment: no copy, nothing decoded. It
+     * stays readable even if compaction moves the record away meanwhile. A record in the binary
+     * form has to be decoded and written as JSON instead.
+     */
     @Override
-    public void delete(String id) {
-        throw new UnsupportedOperationException();
+    public ByteBuffer readJson(final String id) throws DomainPersistenceException {
+        ensureOpen();
+        final FileStoreRecord record = recordFor(id);
+        if (record == null) return null;
+        if (record.format == FileStoreRecord.FORMAT_BINARY) {
+            try {
+                return ByteBuffer.wrap(MyAggregateBinaryCodec.toJson(record.payload)).asReadOnlyBuffer();
+            } catch (IllegalArgumentException e) {
+                throw new DomainPersistenceException("Stored MyAggregate " + id + " is not readable", e);
+            }
+        }
+        if (record.format != FileStoreRecord.FORMAT_JSON) {
+            throw new DomainPersistenceException("Stored MyAggregate " + id + " is not JSON");
+        }
+        return record.payload.asReadOnlyBuffer();
+    }
+
+    /**
+     * The lookups in the index are cheap; reading the records is what costs, since each one may
+     * touch a page of a segment that is not in memory, and then has to be parsed. So the records
+     * are read in the order they sit in the store, segment by segment and front to back, which
+     * keeps the reads of one segment together and lets the operating system read ahead. With
+     * enough of them, they are also read in parallel, in ranges of that same order, so the waits
+     * for the disk overlap. That is on the store's own reader threads (see readers) and the
+     * caller's: a read that blocks on a page fault must not hold up a shared pool like the common
+     * fork-join pool.
+     */
+    @Override
+    public Map<String, Map<String, Object>> readAll(final Collection<String> ids) throws DomainPersistenceException {
+        ensureOpen();
+        final List<Map.Entry<String, FileStoreLocation>> located = new ArrayList<>(ids.size());
+        for (String id : new HashSet<>(ids)) {
+            final FileStoreLocation location = index.get(id);
+            if (location != null) {
+                located.add(new AbstractMap.SimpleImmutableEntry<>(id, location));
+            }
+        }
+        located.sort(Comparator.<Map.Entry<String, FileStoreLocation>>comparingInt(entry -> entry.getValue().segmentId)
+                .thenComparingInt(entry -> entry.getValue().offset));
+        // each range is only ever set by one thread, and the future of it is waited for
+        final List<Map<String, Object>> data = new ArrayList<>(Collections.nCopies(located.size(), null));
+        final ExecutorService readers = this.readers;
+        if (located.size() < PARALLEL_READ_MINIMUM || readers == null) {
+            readRange(located, data, 0, located.size());
+        } else {
+            // a range for each reader thread, and the first one for the caller
+            final int rangeSize = Math.max(PARALLEL_READ_MINIMUM / 2, (located.size() + readThreads) / (readThreads + 1));
+            final List<Future<?>> ranges = new ArrayList<>();
+            for (int from = rangeSize; from < located.size(); from += rangeSize) {
+                final int start = from;
+                final int end = Math.min(located.size(), from + rangeSize);
+                try {
+                    ranges.add(readers.submit(() -> {
+                        readRange(located, data, start, end);
+                        return null;
+                    }));
+                } catch (RejectedExecutionException e) {
+                    // the store is closing
+                    readRange(located, data, start, end);
+                }
+            }
+            readRange(located, data, 0, Math.min(located.size(), rangeSize));
+            for (Future<?> range : ranges) {
+                awaitRange(range);
+            }
+        }
+        final Map<String, Map<String, Object>> found = new HashMap<>();
+        for (int i = 0; i < data.size(); i++) {
+            if (data.get(i) != null) found.put(located.get(i).getKey(), data.get(i));
+        }
+        return found;
+    }
+
+    private void readRange(final List<Map.Entry<String, FileStoreLocation>> located, final List<Map<String, Object>> data,
+                           final int from, final int to) throws DomainPersistenceException {
+        for (int i = from; i < to; i++) {
+            final FileStoreRecord record = recordFor(located.get(i).getKey());
+            // null if it was deleted since we looked it up
+            if (record != null) data.set(i, decode(record));
+        }
+    }
+
+    private static void awaitRange(final Future<?> range) throws DomainPersistenceException {
+        try {
+            range.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DomainPersistenceException("Interrupted reading MyAggregates", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DomainPersistenceException) {
+                throw (DomainPersistenceException) e.getCause();
+            }
+            throw new DomainPersistenceException("Could not read MyAggregates", e.getCause());
+        }
+    }
+
+    /**
+     * Walks the index rather than the segments, so only the latest version of each aggregate is
+     * decoded, and the scan does not care about compaction moving records around underneath it.
+     * The aggregates come in the order they were last written, which costs a sort, but means a
+     * search index built from the scan has the same order as one that saw the writes happen.
+     */
+    @Override
+    public void scan(final Consumer<Map<String, Object>> action) throws DomainPersistenceException {
+        ensureOpen();
+        final List<Map.Entry<String, FileStoreLocation>> entries = new ArrayList<>(index.entrySet());
+        entries.sort(Comparator.comparingLong(entry -> entry.getValue().sequence));
+        for (Map.Entry<String, FileStoreLocation> entry : entries) {
+            final FileStoreRecord record = recordFor(entry.getKey());
+            if (record != null) {
+                action.accept(decode(record));
+            }
+        }
+    }
+
+    @Override
+    public void delete(final String id) throws DomainPersistenceException {
+        append(new FileStoreAppend(id, FileStoreRecord.DELETE, FileStoreRecord.FORMAT_NONE, null));
+    }
+
+    @Override
+    public void close() throws IOException {
+        final FileStoreCompactor compactor = this.compactor;
+        if (compactor != null) {
+            compactor.stop();
+        }
+        final ScheduledExecutorService compaction = this.compaction;
+        if (compaction != null) {
+            compaction.shutdown();
+            try {
+                compaction.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        final ExecutorService readers = this.readers;
+        if (readers != null) {
+            readers.shutdown();
+        }
+        // the committer needs the lock to finish what is queued, so it is stopped first
+        final FileStoreGroupCommit committer = this.groupCommit;
+        if (committer != null) {
+            try {
+                committer.stop();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (!open) return;
+            open = false;
+            groupCommit = null;
+            this.readers = null;
+            this.compaction = null;
+            this.compactor = null;
+            for (FileStoreSegment segment : segments.values()) {
+                segment.close();
+            }
+            segments.clear();
+            index.clear();
+            active = null;
+            lock.release();
+            lockChannel.close();
+        }
+    }
+
+    /**
+     * In group commit mode the append joins the next batch, otherwise it is a batch of its own.
+     * Either way this returns only when the record is durable.
+     */
+    private void append(final FileStoreAppend append) throws DomainPersistenceException {
+        submit(append);
+        append.await();
+    }
+
+    private void submit(final FileStoreAppend append) throws DomainPersistenceException {
+        ensureOpen();
+        final FileStoreGroupCommit committer = this.groupCommit;
+        if (committer != null) {
+            try {
+                committer.submit(append);
+            } catch (IllegalStateException e) {
+                throw new DomainPersistenceException(e.getMessage(), e);
+            }
+        } else {
+            appendAll(Collections.singletonList(append));
+        }
+    }
+
+    /**
+     * Appends the batch, makes it durable with one flush per segment it touched, and only then
+     * publishes it in the index and completes the appends. Holding the lock through the index update
+     * keeps the index in the same order as the log, so a delete can never be overtaken by the write
+     * it follows.
+     * <p>
+     * If the file system fails us the store stops taking writes. Part of the batch may have reached
+     * the disk, and carrying on would mean reading those unacknowledged records back after a
+     * restart. Reopening the store is the way back.
+     * <p>
+     * A conditional append whose aggregate is not at the expected version is left out. Its version
+     * is the one in the index, or the one an append before it in the same batch is about to give it.
+     */
+    private synchronized void appendAll(final List<FileStoreAppend> batch) {
+        if (failure != null) {
+            failAll(batch, failure);
+            return;
+        }
+        final FileStoreLocation[] locations = new FileStoreLocation[batch.size()];
+        final boolean[] conflicts = new boolean[batch.size()];
+        final Map<String, Long> versions = hasConditional(batch) ? new HashMap<>() : null;
+        final List<FileStoreSegment> touched = new ArrayList<>(2);
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                final FileStoreAppend append = batch.get(i);
+                if (versions != null) {
+                    final Long pending = versions.get(append.id);
+                    final long current = (pending != null) ? pending : version(index.get(append.id));
+                    if (append.isConditional() && current != append.expectedVersion) {
+                        conflicts[i] = true;
+                        continue;
+                    }
+                    versions.put(append.id, (append.kind == FileStoreRecord.DELETE) ? NO_VERSION : nextSequence);
+                }
+                final long sequence = nextSequence++;
+                final ByteBuffer record = FileStoreRecord.encode(sequence, append.kind, append.format, append.id, append.payload);
+                final int length = record.remaining();
+                if (active.remaining() < length) {
+                    roll(length);
+                }
+                final int offset = active.append(record);
+                locations[i] = new FileStoreLocation(active.id, offset, length, sequence);
+                if (!touched.contains(active)) {
+                    touched.add(active);
+                }
+            }
+            for (FileStoreSegment segment : touched) {
+                segment.force();
+            }
+        } catch (IOException | RuntimeException | Error e) {
+            // an Error too, such as running out of memory part way: the batch is just as torn
+            failure = new DomainPersistenceException("Could not write to the MyAggregate store in " + directory, e);
+            failAll(batch, failure);
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            final FileStoreAppend append = batch.get(i);
+            if (conflicts[i]) {
+                append.done.completeExceptionally(new VersionConflictException(
+                        "MyAggregate " + append.id + " is not at version " + append.expectedVersion));
+                continue;
+            }
+            segments.get(locations[i].segmentId).maxSequence = locations[i].sequence;
+            if (append.kind == FileStoreRecord.DELETE) {
+                account(index.remove(append.id), null);
+                append.done.complete(null);
+            } else {
+                account(index.put(append.id, locations[i]), locations[i]);
+                append.done.complete(locations[i]);
+            }
+        }
+    }
+
+    /**
+     * Keeps the live byte count of each segment up to date as the index moves from one location of
+     * a record to the next. Whatever is not live is garbage for the compactor.
+     */
+    private void account(final FileStoreLocation previous, final FileStoreLocation next) {
+        if (previous != null) {
+            final FileStoreSegment segment = segments.get(previous.segmentId);
+            if (segment != null) segment.live -= previous.length;
+        }
+        if (next != null) {
+            segments.get(next.segmentId).live += next.length;
+        }
+    }
+
+    private static boolean hasConditional(final List<FileStoreAppend> batch) {
+        for (FileStoreAppend append : batch) {
+            if (append.isConditional()) return true;
+        }
+        return false;
+    }
+
+    private static long version(final FileStoreLocation location) {
+        return (location == null) ? NO_VERSION : location.sequence;
+    }
+
+    private static void failAll(final List<FileStoreAppend> batch, final DomainPersistenceException failure) {
+        for (FileStoreAppend append : batch) {
+            append.done.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * Compaction may retire a segment between reading a location from the index and reading the
+     * segment, but only after the index has moved on, so looking again is enough.
+     */
+    private FileStoreRecord recordFor(final String id) throws DomainPersistenceException {
+        for (int attempt = 0; attempt < 3; attempt++) {
+            final FileStoreLocation location = index.get(id);
+            if (location == null) return null;
+            final FileStoreSegment segment = segments.get(location.segmentId);
+            if (segment == null) continue;
+            final FileStoreRecord record = FileStoreRecord.decode(segment.buffer(), location.offset, false);
+            if (record == null) {
+                throw new DomainPersistenceException("No record at " + location.offset + " in " + segment.path);
+            }
+            return record;
+        }
+        throw new DomainPersistenceException("The segment holding MyAggregate " + id + " is missing from " + directory);
+    }
+
+    private static Map<String, Object> decode(final FileStoreRecord record) throws DomainPersistenceException {
+        if (record.format == FileStoreRecord.FORMAT_BINARY) {
+            try {
+                return MyAggregateBinaryCodec.decode(record.payload);
+            } catch (IllegalArgumentException e) {
+                throw new DomainPersistenceException("Stored MyAggregate " + record.id + " is not readable", e);
+            }
+        }
+        final String json = new String(record.payloadBytes(), StandardCharsets.UTF_8);
+        try {
+            return parseObject(json);
+        } catch (ParseException | ClassCastException e) {
+            throw new DomainPersistenceException("Stored MyAggregate " + record.id + " is not a JSON object", e);
+        }
+    }
+
+    // Note: JSONObject class extends HashMap, but is a raw type
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> parseObject(final String json) throws ParseException {
+        return (JSONObject) new JSONParser().parse(json);
+    }
+
+    /**
+     * Seals the active segment and starts a new one. A record larger than a segment gets a segment
+     * of its own.
+     */
+    private void roll(final int recordLength) throws IOException {
+        final FileStoreSegment segment = FileStoreSegment.create(directory, nextSegmentId++, Math.max(segmentBytes, recordLength));
+        segments.put(segment.id, segment);
+        active = segment;
+    }
+
+    /**
+     * Runs a compaction now, if there is enough garbage to make it worth it. The background
+     * compactor calls this on a schedule.
+     *
+     * @return the number of bytes reclaimed
+     */
+    long compact() throws DomainPersistenceException {
+        ensureOpen();
+        try {
+            synchronized (compactionLock) {
+                return compactor.compactIfWorthIt();
+            }
+        } catch (IOException e) {
+            throw new DomainPersistenceException("Could not compact the MyAggregate store in " + directory, e);
+        }
+    }
+
+    private void compactInBackground() {
+        try {
+            compact();
+        } catch (DomainPersistenceException | RuntimeException e) {
+            // nothing is lost by a failed compaction, it is simply tried again next time
+            LOGGER.log(Level.WARNING, "Compaction failed", e);
+        }
+    }
+
+    synchronized List<FileStoreSegment> sealedSegments() {
+        final List<FileStoreSegment> sealed = new ArrayList<>();
+        for (FileStoreSegment segment : segments.values()) {
+            if (segment != active && !compacting.contains(segment)) sealed.add(segment);
+        }
+        sealed.sort(Comparator.comparingInt(segment -> segment.id));
+        return sealed;
+    }
+
+    boolean isLatest(final String id, final FileStoreLocation location) {
+        final FileStoreLocation current = index.get(id);
+        return current != null && current.segmentId == location.segmentId && current.offset == location.offset;
+    }
+
+    /**
+     * A segment for the compactor to write to. It is visible to readers straight away, which does
+     * no harm because nothing in the index points at it until the compactor swaps.
+     */
+    synchronized FileStoreSegment newSegment(final int capacity) throws IOException {
+        final FileStoreSegment segment = FileStoreSegment.create(directory, nextSegmentId++, capacity);
+        segments.put(segment.id, segment);
+        compacting.add(segment);
+        return segment;
+    }
+
+    /**
+     * Throws away the output of a compaction that did not get as far as the swap.
+     */
+    void discard(final List<FileStoreSegment> outputs) {
+        synchronized (this) {
+            for (FileStoreSegment segment : outputs) {
+                segments.remove(segment.id);
+                compacting.remove(segment);
+            }
+        }
+        delete(outputs);
+    }
+
+    /**
+     * Points the index at the copies, but only for records that have not been written again or
+     * deleted since they were copied. Those copies are garbage already.
+     */
+    synchronized void swap(final List<FileStoreCompactor.Move> moves) {
+        for (FileStoreCompactor.Move move : moves) {
+            final FileStoreSegment target = segments.get(move.to.segmentId);
+            target.maxSequence = Math.max(target.maxSequence, move.to.sequence);
+            if (isLatest(move.id, move.from)) {
+                index.put(move.id, move.to);
+                account(move.from, move.to);
+            }
+        }
+    }
+
+    /**
+     * Removes compacted segments once the index no longer points into them, and hands the new ones
+     * over to the regular sealed segments. The files are deleted oldest data first, see
+     * FileStoreCompactor.
+     */
+    void retire(final List<FileStoreSegment> compacted) {
+        synchronized (this) {
+            compacting.clear();
+            for (FileStoreSegment segment : compacted) {
+                segments.remove(segment.id);
+            }
+        }
+        final List<FileStoreSegment> oldestFirst = new ArrayList<>(compacted);
+        oldestFirst.sort(Comparator.comparingLong(segment -> segment.maxSequence));
+        delete(oldestFirst);
+    }
+
+    /**
+     * Stops at the first file that cannot be deleted. Whatever is left is scanned again on the next
+     * start, which is safe because of the order the files are deleted in, and then compacted again.
+     */
+    private void delete(final List<FileStoreSegment> obsolete) {
+        for (FileStoreSegment segment : obsolete) {
+            try {
+                segment.close();
+                Files.deleteIfExists(segment.path);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not delete " + segment.path, e);
+                return;
+            }
+        }
+    }
+
+    private void ensureOpen() throws DomainPersistenceException {
+        if (!open) {
+            synchronized (this) {
+                if (!open) {
+                    try {
+                        recover();
+                    } catch (IOException e) {
+                        throw new DomainPersistenceException("Could not open the MyAggregate store in " + directory, e);
+                    }
+                    compactor = new FileStoreCompactor(this, segmentBytes, compactionBytesPerSecond, COMPACTION_GARBAGE_RATIO);
+                    if (compactionIntervalSeconds > 0) {
+                        compaction = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                            final Thread thread = new Thread(runnable, "myaggregate-compactor");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+                        compaction.scheduleWithFixedDelay(this::compactInBackground,
+                                compactionIntervalSeconds, compactionIntervalSeconds, TimeUnit.SECONDS);
+                    }
+                    if (groupCommitWindowNanos >= 0) {
+                        groupCommit = new FileStoreGroupCommit(this::appendAll, groupCommitWindowNanos, MAX_GROUP_COMMIT_BATCH);
+                        groupCommit.start();
+                    }
+                    if (readThreads > 0) {
+                        readers = newReaders(readThreads);
+                    }
+                    open = true;
+                }
+            }
+        }
+    }
+
+    private static ExecutorService newReaders(final int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        final ThreadPoolExecutor readers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    final Thread thread = new Thread(runnable, "myaggregate-reader-" + count.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        // a store that is not read in bulk holds no threads
+        readers.allowCoreThreadTimeOut(true);
+        return readers;
+    }
+
+    /**
+     * Takes the directory lock, maps every segment, and rebuilds the index by scanning them. A record
+     * that does not check out ends the scan of its segment: it can only be a write that was torn by
+     * a crash, and is ignored from then on.
+     * <p>
+     * Appends then go to a new segment, unless the last one is empty. The last segment is not
+     * necessarily the newest data: it can be a compaction's output, with records older than a
+     * tombstone in the segment that was being appended to. If appends went on there, that segment
+     * would never be sealed, and the tombstone could be compacted away without the record it hides
+     * (see FileStoreCompactor).
+     * <p>
+     * A failure from before the store was closed is forgotten, for the same reason: whatever it
+     * left at the end of a segment is never appended to again.
+     */
+    private void recover() throws IOException {
+        Files.createDirectories(directory);
+        lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("The MyAggregate store in " + directory + " is already open");
+        }
+
+        final List<Integer> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, FileStoreSegment.PREFIX + "*" + FileStoreSegment.SUFFIX)) {
+            for (Path file : files) {
+                final int id = FileStoreSegment.idOf(file);
+                if (id >= 0) ids.add(id);
+            }
+        }
+        Collections.sort(ids);
+
+        // tombstones are kept in the index while scanning, because segments are not in sequence order
+        final Map<String, FileStoreLocation> deleted = new HashMap<>();
+        for (int id : ids) {
+            final FileStoreSegment segment = FileStoreSegment.open(FileStoreSegment.pathFor(directory, id), id);
+            segments.put(id, segment);
+            segment.setEnd(scan(segment, deleted));
+            nextSegmentId = id + 1;
+        }
+        for (Map.Entry<String, FileStoreLocation> tombstone : deleted.entrySet()) {
+            index.remove(tombstone.getKey(), tombstone.getValue());
+        }
+        for (FileStoreLocation location : index.values()) {
+            segments.get(location.segmentId).live += location.length;
+        }
+
+        final FileStoreSegment last = ids.isEmpty() ? null : segments.get(ids.get(ids.size() - 1));
+        if (last != null && last.end() == 0) {
+            active = last;
+        } else {
+            roll(0);
+        }
+        failure = null;
+    }
+
+    private int scan(final FileStoreSegment segment, final Map<String, FileStoreLocation> deleted) {
+        final ByteBuffer buffer = segment.buffer();
+        int offset = 0;
+        FileStoreRecord record;
+        while ((record = FileStoreRecord.decode(buffer, offset, true)) != null) {
+            final FileStoreLocation location = new FileStoreLocation(segment.id, offset, record.length, record.sequence);
+            final FileStoreLocation current = index.get(record.id);
+            if (location.isNewerThan(current)) {
+                index.put(record.id, location);
+                if (record.kind == FileStoreRecord.DELETE) {
+                    deleted.put(record.id, location);
+                } else {
+                    deleted.remove(record.id);
+                }
+            }
+            nextSequence = Math.max(nextSequence, record.sequence + 1);
+            segment.maxSequence = Math.max(segment.maxSequence, record.sequence);
+            offset += record.length;
+        }
+        return offset;
     }
 }
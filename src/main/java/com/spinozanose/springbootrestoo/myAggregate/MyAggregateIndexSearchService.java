@@ -0,0 +1,719 @@
+package com.spinozanose.springbootrestoo.myAggregate;
+
+import com.spinozanose.springbootrestoo.common.exceptions.DomainPersistenceException;
+import com.spinozanose.springbootrestoo.common.exceptions.InvalidSearchParametersException;
+import org.json.simple.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
+
+/**
+ * A search service that keeps its index in memory, in this process, so searching needs no search
+ * cluster next to the application.
+ * <p>
+ * It is an inverted index: for every term, the list of aggregates that contain it (a PostingList).
+ * The terms are
+ * <ul>
+ *     <li>the words of aString, lower case, so aString=Hello matches "hello, world"</li>
+ *     <li>every value in innerObject, whole but lower case, under its dotted path, so
+ *     innerObject.color=red matches {"innerObject": {"color": "Red"}}</li>
+ * </ul>
+ * aNumber is not a term but is kept sorted (a SortedIntIndex), so it can be searched by range as
+ * well as exactly: aNumber>=100&aNumber<500, or aNumber.gte=100&aNumber.lt=500 for clients that
+ * would rather not put operators in a URL. The results can be sorted on it with sort=aNumber or
+ * sort=-aNumber, and limit=K keeps the first K. So the smallest aNumber is sort=aNumber&limit=1,
+ * and without other parameters that costs a binary search and no more.
+ * <p>
+ * The parameters of a search are all of these, plus id, and an aggregate has to match all of them.
+ * Without parameters everything matches. Anything else is an InvalidSearchParametersException, so
+ * a typo does not silently match everything. Unless sorted, matches come in the order they were
+ * last changed.
+ * <p>
+ * With pageSize=N a search stops after N results and hands the sink a cursor for the next page,
+ * to be passed back as cursor=... with the same parameters. The cursor is where the walk through
+ * the index stopped, so the next page starts right there instead of skipping over the pages
+ * before it, and every page costs about the same however deep it is. The order is stable, and an
+ * aggregate changed between pages moves to the end, so a walk over all pages sees its latest
+ * version. A cursor still works after the index has been renumbered up to RENUMBERINGS_KEPT times
+ * since; after that the search has to start again.
+ * <p>
+ * The index only holds ordinals (see SearchOrdinals), not the aggregates. The matches are read
+ * from the repository, which for the file store is a lookup in its in-memory index and a read from
+ * a mapped file. That keeps the whole index to a handful of bytes per term of each aggregate.
+ * <p>
+ * The index is built from the repository the first time it is needed, and after that kept up to
+ * date by the factory calling {@link #index(Map)} and {@link #remove(String)} after each change.
+ * Searches share a read lock and changes take the write lock, which they hold only for as long as
+ * it takes to append to a few posting lists. An update that changes aNumber is no different from
+ * any other: the aggregate is indexed under a new ordinal and the old entries stop matching, all
+ * under the write lock, so a search sees either the old aNumber or the new one, never both.
+ */
+class MyAggregateIndexSearchService implements MyAggregateSearchService {
+
+    static final String INNER_OBJECT_PREFIX = MyAggregateDto.INNER_OBJECT + ".";
+    static final String SORT = "sort";
+    static final String LIMIT = "limit";
+    static final String PAGE_SIZE = "pageSize";
+    static final int MAX_PAGE_SIZE = 10_000;
+    private static final char SEPARATOR = '\u0000';
+    private static final int RENUMBER_MINIMUM = 1024;
+    private static final int BATCH = 256;
+    private static final byte CURSOR_VERSION = 1;
+    private static final int CURSOR_BYTES = 30;
+    // how many renumberings back a cursor can still be moved through; each costs an int per ordinal
+    private static final int RENUMBERINGS_KEPT = 4;
+
+    private final MyAggregateRepository repository;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // tells cursors from this index apart from those of an index before a restart
+    private final long epoch = ThreadLocalRandom.current().nextLong();
+    private volatile boolean loaded;
+
+    // guarded by lock
+    private final SearchOrdinals ordinals = new SearchOrdinals();
+    private Map<String, PostingList> postings = new HashMap<>();
+    private final SortedIntIndex numbers = new SortedIntIndex();
+    // the renumbering the index is at now, and the oldest one a cursor can still start from
+    private Renumbering latest = new Renumbering(0, null);
+    private Renumbering oldestKept = latest;
+
+    MyAggregateIndexSearchService(final MyAggregateRepository repository) {
+        this.repository = repository;
+    }
+
+    public List<String> search(final Map<String, String> searchParams) throws InvalidSearchParametersException, DomainPersistenceException {
+        final List<String> results = new ArrayList<>();
+        search(searchParams, results::add);
+        return results;
+    }
+
+    /**
+     * The index is walked a batch at a time, holding the read lock only while collecting the ids
+     * of a batch. Reading the batch from the repository and handing it to the sink, which may be
+     * a slow client, happens without the lock, so writers are not held up by readers.
+     * <p>
+     * Between batches the walk remembers where it was, not what it has seen. An aggregate that
+     * stays unchanged during the walk is seen exactly once, but one that changes during it may be
+     * seen before and after, or not at all, as with any cursor that is not a snapshot.
+     * <p>
+     * A page is collected completely before any of it is read, so the cursor to the next page can
+     * go to the sink first (a controller may want to put it in a header). That takes a list of
+     * at most MAX_PAGE_SIZE ids.
+     * <p>
+     * Whatever can be wrong with a search, its cursor included, is found in the first batch,
+     * before the sink has anything. After that a walk keeps its place however much the index is
+     * renumbered under it (see Renumbering), so a streamed response is never cut short by an
+     * error it can no longer report.
+     */
+    @Override
+    public void search(final Map<String, String> searchParams, final SearchResultSink sink) throws InvalidSearchParametersException, DomainPersistenceException {
+        final Query query = Query.of(searchParams);
+        ensureLoaded();
+        final Walk walk = new Walk(query);
+        if (query.cursor != null) {
+            walk.resume(query.cursor);
+        }
+        if (query.pageSize > 0) {
+            final int size = Math.min(query.pageSize, query.limit);
+            final List<String> page = new ArrayList<>(Math.min(size, BATCH));
+            while (page.size() < size && !walk.done) {
+                lock.readLock().lock();
+                try {
+                    collect(walk, Math.min(size, page.size() + BATCH), page);
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+            if (!walk.done) {
+                sink.nextCursor(walk.cursor());
+            }
+            emit(page, sink);
+            return;
+        }
+        final List<String> ids = new ArrayList<>(BATCH);
+        int remaining = query.limit;
+        while (remaining > 0 && !walk.done) {
+            ids.clear();
+            lock.readLock().lock();
+            try {
+                collect(walk, Math.min(BATCH, remaining), ids);
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (!emit(ids, sink)) return;
+            remaining -= ids.size();
+        }
+    }
+
+    /**
+     * @return false if the sink wants no more
+     */
+    private boolean emit(final List<String> ids, final SearchResultSink sink) throws DomainPersistenceException {
+        for (String id : ids) {
+            final Map<String, Object> data = repository.read(id);
+            // it may have been deleted since it matched
+            if (data != null && !sink.accept(JSONObject.toJSONString(data))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Before the index is loaded there is nothing to do: the data has already been persisted, so
+     * loading will find it. If loading is under way this waits for it, because it holds the lock.
+     */
+    @Override
+    public void index(final Map<String, Object> data) {
+        lock.writeLock().lock();
+        try {
+            if (loaded) add(data);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void remove(final String id) {
+        lock.writeLock().lock();
+        try {
+            if (loaded && ordinals.remove(id) >= 0) {
+                renumberIfWorthIt();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void ensureLoaded() throws DomainPersistenceException {
+        if (loaded) return;
+        lock.writeLock().lock();
+        try {
+            if (loaded) return;
+            repository.scan(this::add);
+            loaded = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // guarded by the write lock
+    private void add(final Map<String, Object> data) {
+        final Object id = data.get(MyAggregateDto.ID);
+        if (!(id instanceof String)) return;
+        final int ordinal = ordinals.add((String) id);
+        for (String term : termsOf(data)) {
+            postings.computeIfAbsent(term, key -> new PostingList()).add(ordinal);
+        }
+        final Object aNumber = data.get(MyAggregateDto.A_NUMBER);
+        if (aNumber instanceof Number) {
+            ordinals.setNumber(ordinal, ((Number) aNumber).intValue());
+            numbers.add(((Number) aNumber).intValue(), ordinal);
+        }
+        renumberIfWorthIt();
+    }
+
+    /**
+     * Collects the ids of the next batch of the walk, until there are max ids.
+     * <p>
+     * Sorted results come from walking the sorted index over the range, so with nothing else to
+     * match that costs O(log n) to find the start and then a step per result. With other parameters,
+     * the walk picks out the matches. A walk in one go matches those parameters once, up front, and
+     * keeps the matches in a BitSet. A page only looks up each ordinal it passes in the posting
+     * lists, so that it costs what it walks rather than all the matches again, which over all the
+     * pages would be quadratic. A range without a sort is walked the same way, so it comes out in
+     * aNumber order. Everything else is intersecting posting lists,
+     * with the range (if any) checked per match.
+     */
+    // guarded by the read lock
+    private void collect(final Walk walk, final int max, final List<String> ids) throws InvalidSearchParametersException {
+        walk.catchUp();
+        final Query query = walk.query;
+        final List<PostingList> lists = postingsFor(query);
+        if (lists == null || query.low > query.high) {
+            walk.done = true;
+            return;
+        }
+        final int sort = (query.sort == 0 && query.ranged && lists.isEmpty()) ? 1 : query.sort;
+        final IntPredicate emit = ordinal -> {
+            ids.add(ordinals.idOf(ordinal));
+            walk.passed(ordinal, sort < 0);
+            return ids.size() < max;
+        };
+        if (sort != 0) {
+            final IntPredicate matches;
+            if (lists.isEmpty()) {
+                matches = ordinals::isLive;
+            } else if (query.pageSize > 0) {
+                matches = ordinal -> ordinals.isLive(ordinal) && containsAll(lists, ordinal);
+            } else {
+                final BitSet matching = walk.matching(lists);
+                matches = ordinal -> matching.get(ordinal) && ordinals.isLive(ordinal);
+            }
+            final long first;
+            final long last;
+            if (sort > 0) {
+                first = walk.started ? SortedIntIndex.entry(walk.value, walk.boundary) : SortedIntIndex.entry((int) query.low, 0);
+                last = SortedIntIndex.entry((int) query.high, -1);
+            } else {
+                first = SortedIntIndex.entry((int) query.low, 0);
+                final long after = SortedIntIndex.entry(walk.value, walk.boundary);
+                if (walk.started && after == Long.MIN_VALUE) {
+                    walk.done = true;
+                    return;
+                }
+                last = walk.started ? after - 1 : SortedIntIndex.entry((int) query.high, -1);
+            }
+            walk.done = numbers.forEach(first, last, sort < 0, ordinal -> !matches.test(ordinal) || emit.test(ordinal));
+            return;
+        }
+        final IntPredicate inRange = ordinal -> !query.ranged
+                || (ordinals.hasNumber(ordinal) && ordinals.numberOf(ordinal) >= query.low && ordinals.numberOf(ordinal) <= query.high);
+        if (lists.isEmpty()) {
+            for (int ordinal = ordinals.nextLive(walk.boundary); ordinal >= 0; ordinal = ordinals.nextLive(ordinal + 1)) {
+                if (inRange.test(ordinal) && !emit.test(ordinal)) return;
+            }
+            walk.done = true;
+            return;
+        }
+        walk.done = intersect(lists, walk.boundary, ordinal -> !inRange.test(ordinal) || emit.test(ordinal));
+    }
+
+    /**
+     * @return the posting lists of the id and terms of the query, or null if one of them matches nothing
+     */
+    // guarded by the read lock
+    private List<PostingList> postingsFor(final Query query) {
+        final List<PostingList> lists = new ArrayList<>();
+        if (query.id != null) {
+            final int ordinal = ordinals.ordinalOf(query.id);
+            if (ordinal < 0) return null;
+            final PostingList single = new PostingList();
+            single.add(ordinal);
+            lists.add(single);
+        }
+        for (String term : query.terms) {
+            final PostingList list = postings.get(term);
+            if (list == null) return null;
+            lists.add(list);
+        }
+        return lists;
+    }
+
+    // guarded by the read lock
+    private static boolean containsAll(final List<PostingList> lists, final int ordinal) {
+        for (PostingList list : lists) {
+            if (!list.contains(ordinal)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Finds the ordinals in all of the posting lists by leapfrogging: the shortest list proposes a
+     * candidate, and every other list skips ahead to it. If one of them overshoots, its ordinal is
+     * the next candidate. So the work is about the length of the shortest list, not of the longest.
+     * The live ones from the given ordinal on are handed to the action, in order, until it returns
+     * false.
+     *
+     * @return false if the action stopped it
+     */
+    // guarded by the read lock
+    private boolean intersect(final List<PostingList> lists, final int from, final IntPredicate action) {
+        lists.sort(Comparator.comparingInt(PostingList::size));
+        final PostingList.Cursor[] cursors = new PostingList.Cursor[lists.size()];
+        for (int i = 0; i < cursors.length; i++) {
+            cursors[i] = lists.get(i).cursor();
+        }
+        int candidate = cursors[0].advance(from);
+        while (candidate != PostingList.NO_MORE) {
+            int i = 1;
+            for (; i < cursors.length; i++) {
+                final int ordinal = cursors[i].advance(candidate);
+                if (ordinal != candidate) {
+                    candidate = (ordinal == PostingList.NO_MORE) ? ordinal : cursors[0].advance(ordinal);
+                    break;
+                }
+            }
+            if (i == cursors.length) {
+                if (ordinals.isLive(candidate) && !action.test(candidate)) return false;
+                candidate = cursors[0].next();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the renumbering that started the generation, or null if it is too old to be kept
+     */
+    // guarded by the read lock
+    private Renumbering renumberingOf(final long generation) {
+        for (Renumbering renumbering = oldestKept; renumbering != null; renumbering = renumbering.next) {
+            if (renumbering.generation == generation) return renumbering;
+        }
+        return null;
+    }
+
+    /**
+     * Dead ordinals cost room in the posting lists and time in every search that passes them.
+     * Once they outnumber the live ones, everything is renumbered and the posting lists rebuilt
+     * without them. That is a pass over the whole index, but it only comes after at least as
+     * many changes, so it averages out to a small cost per change.
+     */
+    // guarded by the write lock
+    private void renumberIfWorthIt() {
+        if (ordinals.deadCount() < RENUMBER_MINIMUM || ordinals.deadCount() <= ordinals.liveCount()) return;
+        final int[] renumbered = ordinals.renumber();
+        numbers.renumber(renumbered);
+        final Renumbering renumbering = new Renumbering(latest.generation + 1, renumbered);
+        latest.next = renumbering;
+        latest = renumbering;
+        while (latest.generation - oldestKept.generation > RENUMBERINGS_KEPT) {
+            oldestKept = oldestKept.next;
+        }
+        final Map<String, PostingList> rebuilt = new HashMap<>();
+        for (Map.Entry<String, PostingList> entry : postings.entrySet()) {
+            final PostingList list = new PostingList();
+            final PostingList.Cursor cursor = entry.getValue().cursor();
+            for (int ordinal = cursor.next(); ordinal != PostingList.NO_MORE; ordinal = cursor.next()) {
+                if (renumbered[ordinal] >= 0) {
+                    list.add(renumbered[ordinal]);
+                }
+            }
+            if (list.size() > 0) {
+                rebuilt.put(entry.getKey(), list);
+            }
+        }
+        postings = rebuilt;
+    }
+
+    private static Set<String> termsOf(final Map<String, Object> data) {
+        final Set<String> terms = new LinkedHashSet<>();
+        final Object aString = data.get(MyAggregateDto.A_STRING);
+        if (aString instanceof String) {
+            for (String word : words((String) aString)) {
+                terms.add(term(MyAggregateDto.A_STRING, word));
+            }
+        }
+        final Object innerObject = data.get(MyAggregateDto.INNER_OBJECT);
+        if (innerObject instanceof Map) {
+            addInnerTerms(MyAggregateDto.INNER_OBJECT, (Map<?, ?>) innerObject, terms);
+        }
+        return terms;
+    }
+
+    private static void addInnerTerms(final String path, final Map<?, ?> data, final Set<String> terms) {
+        for (Map.Entry<?, ?> entry : data.entrySet()) {
+            final String field = path + "." + entry.getKey();
+            final Object value = entry.getValue();
+            if (value instanceof Map) {
+                addInnerTerms(field, (Map<?, ?>) value, terms);
+            } else if (value != null) {
+                terms.add(term(field, value.toString().toLowerCase(Locale.ROOT)));
+            }
+        }
+    }
+
+    private static String term(final String field, final String value) {
+        return field + SEPARATOR + value;
+    }
+
+    /**
+     * @return the distinct words of the text, lower case
+     */
+    private static Set<String> words(final String text) {
+        final Set<String> words = new LinkedHashSet<>();
+        final String lowerCase = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lowerCase.length(); i++) {
+            final boolean inWord = i < lowerCase.length() && Character.isLetterOrDigit(lowerCase.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                words.add(lowerCase.substring(start, i));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * One renumbering of the index (see renumberIfWorthIt): the generation it started, what each
+     * ordinal before it became, and the renumbering after it, once there is one.
+     * <p>
+     * Renumbering moves every ordinal, so a walk that was between two of them has to be told where
+     * it is now. A walk holds on to the last renumbering it has caught up with and follows the
+     * ones after it, however many, so a walk in progress is never lost. The index itself keeps
+     * only the last RENUMBERINGS_KEPT, for cursors, which come back from outside.
+     */
+    private static final class Renumbering {
+        final long generation;
+        final int[] renumbered;
+        // guarded by the lock
+        Renumbering next;
+
+        Renumbering(final long generation, final int[] renumbered) {
+            this.generation = generation;
+            this.renumbered = renumbered;
+        }
+
+        /**
+         * With the old ordinals on one side of the boundary, the new boundary is the number of
+         * live old ordinals below it.
+         */
+        int boundaryOf(final int boundary) {
+            for (int ordinal = Math.min(boundary, renumbered.length) - 1; ordinal >= 0; ordinal--) {
+                if (renumbered[ordinal] >= 0) return renumbered[ordinal] + 1;
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Where a search is in the index: past the entry (value, boundary) of the sorted index if it
+     * is walking that, or at the ordinal boundary if it is walking posting lists.
+     */
+    private final class Walk {
+        final Query query;
+        long generation;
+        boolean started;
+        int value;
+        int boundary;
+        boolean done;
+        private boolean resumed;
+        // the last renumbering the walk has caught up with; null before its first batch
+        private Renumbering since;
+        private BitSet matching;
+        private long matchingGeneration;
+
+        Walk(final Query query) {
+            this.query = query;
+        }
+
+        /**
+         * The walk so far, for a client to come back with: where it is, and enough to tell
+         * whether it is still about the same index and the same search.
+         */
+        String cursor() {
+            final ByteBuffer buffer = ByteBuffer.allocate(CURSOR_BYTES);
+            buffer.put(CURSOR_VERSION)
+                    .putLong(epoch)
+                    .putLong(generation)
+                    .putInt(query.fingerprint())
+                    .put((byte) (started ? 1 : 0))
+                    .putInt(value)
+                    .putInt(boundary);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+        }
+
+        void resume(final String cursor) throws InvalidSearchParametersException {
+            final ByteBuffer buffer;
+            try {
+                buffer = ByteBuffer.wrap(Base64.getUrlDecoder().decode(cursor));
+            } catch (IllegalArgumentException e) {
+                throw new InvalidSearchParametersException("Not a cursor: " + cursor);
+            }
+            if (buffer.remaining() != CURSOR_BYTES || buffer.get() != CURSOR_VERSION) {
+                throw new InvalidSearchParametersException("Not a cursor: " + cursor);
+            }
+            if (buffer.getLong() != epoch) {
+                throw new InvalidSearchParametersException("The cursor has expired, please start the search again");
+            }
+            generation = buffer.getLong();
+            resumed = true;
+            if (buffer.getInt() != query.fingerprint()) {
+                throw new InvalidSearchParametersException("The cursor is for a different search");
+            }
+            started = buffer.get() != 0;
+            value = buffer.getInt();
+            boundary = buffer.getInt();
+            if (boundary < 0) {
+                throw new InvalidSearchParametersException("Not a cursor: " + cursor);
+            }
+        }
+
+        /**
+         * Moves the boundary past the ordinal: ascending, the next one is above it, and
+         * descending, below it.
+         */
+        void passed(final int ordinal, final boolean descending) {
+            started = true;
+            value = ordinals.numberOf(ordinal);
+            boundary = descending ? ordinal : ordinal + 1;
+        }
+
+        // guarded by the read lock
+        void catchUp() throws InvalidSearchParametersException {
+            if (since == null) {
+                // a walk that has not passed anything yet has nothing to move
+                since = (resumed && (started || boundary > 0)) ? renumberingOf(generation) : latest;
+                if (since == null) {
+                    throw new InvalidSearchParametersException("The search index has changed too much since this search started, please start it again");
+                }
+            }
+            for (Renumbering renumbering = since.next; renumbering != null; renumbering = renumbering.next) {
+                boundary = renumbering.boundaryOf(boundary);
+                since = renumbering;
+            }
+            generation = since.generation;
+        }
+
+        /**
+         * The ordinals that match the posting lists, kept between batches until a renumbering.
+         * Aggregates indexed since are not in it, which only means a walk may miss what changes
+         * during it, as it may anyway.
+         */
+        // guarded by the read lock
+        BitSet matching(final List<PostingList> lists) {
+            if (matching == null || matchingGeneration != generation) {
+                final BitSet bits = new BitSet();
+                intersect(lists, 0, ordinal -> {
+                    bits.set(ordinal);
+                    return true;
+                });
+                matching = bits;
+                matchingGeneration = generation;
+            }
+            return matching;
+        }
+    }
+
+    /**
+     * The search parameters, checked and turned into terms and an aNumber range.
+     */
+    private static final class Query {
+        // aNumber operators, the longest first so that >= is not taken for >
+        private static final String[] OPERATORS = {".gte=", ".lte=", ".gt=", ".lt=", ">=", "<=", ">", "<", "="};
+
+        String id;
+        final List<String> terms = new ArrayList<>();
+        boolean ranged;
+        // inclusive, as longs so that > Integer.MAX_VALUE can be an empty range
+        long low = Integer.MIN_VALUE;
+        long high = Integer.MAX_VALUE;
+        // 1 for ascending aNumber, -1 for descending, 0 for unsorted
+        int sort;
+        int limit = Integer.MAX_VALUE;
+        int pageSize;
+        String cursor;
+
+        static Query of(final Map<String, String> searchParams) throws InvalidSearchParametersException {
+            final Query query = new Query();
+            if (searchParams == null) return query;
+            for (Map.Entry<String, String> parameter : searchParams.entrySet()) {
+                final String name = parameter.getKey();
+                final String value = parameter.getValue();
+                if (value == null) {
+                    throw new InvalidSearchParametersException("No value for search parameter " + name);
+                }
+                if (MyAggregateDto.ID.equals(name)) {
+                    query.id = value;
+                } else if (MyAggregateDto.A_STRING.equals(name)) {
+                    final Set<String> words = words(value);
+                    if (words.isEmpty()) {
+                        throw new InvalidSearchParametersException("No words to search for in " + name);
+                    }
+                    for (String word : words) {
+                        query.terms.add(term(name, word));
+                    }
+                } else if (name.startsWith(MyAggregateDto.A_NUMBER)) {
+                    query.restrict(name, value);
+                } else if (name.startsWith(INNER_OBJECT_PREFIX) && name.length() > INNER_OBJECT_PREFIX.length()) {
+                    query.terms.add(term(name, value.toLowerCase(Locale.ROOT)));
+                } else if (SORT.equals(name)) {
+                    if (MyAggregateDto.A_NUMBER.equals(value)) {
+                        query.sort = 1;
+                    } else if (("-" + MyAggregateDto.A_NUMBER).equals(value)) {
+                        query.sort = -1;
+                    } else {
+                        throw new InvalidSearchParametersException("Cannot sort on " + value);
+                    }
+                } else if (LIMIT.equals(name)) {
+                    query.limit = positive(name, value);
+                } else if (PAGE_SIZE.equals(name)) {
+                    query.pageSize = positive(name, value);
+                    if (query.pageSize > MAX_PAGE_SIZE) {
+                        throw new InvalidSearchParametersException(name + " can be at most " + MAX_PAGE_SIZE);
+                    }
+                } else if (SearchResultSink.CURSOR.equals(name)) {
+                    query.cursor = value;
+                } else {
+                    throw new InvalidSearchParametersException("Unknown search parameter " + name);
+                }
+            }
+            return query;
+        }
+
+        /**
+         * A URL like ?aNumber>=100&aNumber<500 reaches us as the parameters "aNumber>" with the
+         * value "100" and "aNumber<500" without a value, because the query string is split at
+         * the equals signs. So the expression is put back together before it is taken apart.
+         */
+        private void restrict(final String name, final String value) throws InvalidSearchParametersException {
+            final String expression = value.isEmpty() ? name : name + "=" + value;
+            final String rest = expression.substring(MyAggregateDto.A_NUMBER.length());
+            for (String operator : OPERATORS) {
+                if (!rest.startsWith(operator)) continue;
+                final long number;
+                try {
+                    number = Integer.parseInt(rest.substring(operator.length()).trim());
+                } catch (NumberFormatException e) {
+                    throw new InvalidSearchParametersException("Not a number in " + expression);
+                }
+                switch (operator) {
+                    case ".gte=":
+                    case ">=":
+                        low = Math.max(low, number);
+                        break;
+                    case ".gt=":
+                    case ">":
+                        low = Math.max(low, number + 1);
+                        break;
+                    case ".lte=":
+                    case "<=":
+                        high = Math.min(high, number);
+                        break;
+                    case ".lt=":
+                    case "<":
+                        high = Math.min(high, number - 1);
+                        break;
+                    default:
+                        low = Math.max(low, number);
+                        high = Math.min(high, number);
+                }
+                ranged = true;
+                return;
+            }
+            throw new InvalidSearchParametersException("Unknown search parameter " + expression);
+        }
+
+        /**
+         * What a cursor has to agree on to be used for this query. The order of the parameters
+         * does not matter, nor do limit and pageSize, which may change from page to page.
+         */
+        int fingerprint() {
+            return Objects.hash(id, new HashSet<>(terms), ranged, low, high, sort);
+        }
+
+        private static int positive(final String name, final String value) throws InvalidSearchParametersException {
+            try {
+                final int number = Integer.parseInt(value.trim());
+                if (number > 0) return number;
+            } catch (NumberFormatException e) {
+                // same as not positive
+            }
+            throw new InvalidSearchParametersException(name + " must be a positive number: " + value);
+        }
+    }
+}
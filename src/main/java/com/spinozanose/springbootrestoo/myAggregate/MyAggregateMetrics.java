@@ -0,0 +1,147 @@
+package com.spinozanose.springbootrestoo.myAggregate;
+
+import com.spinozanose.springbootrestoo.common.exceptions.DomainPersistenceException;
+import com.spinozanose.springbootrestoo.common.exceptions.InvalidDomainDataException;
+import com.spinozanose.springbootrestoo.common.exceptions.InvalidSearchParametersException;
+import com.spinozanose.springbootrestoo.common.exceptions.ObjectNotFoundException;
+import com.spinozanose.springbootrestoo.common.exceptions.VersionConflictException;
+import com.spinozanose.springbootrestoo.common.metrics.LatencyHistogram;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Where the time goes in MyAggregate: a latency histogram for each operation, as the service sees
+ * it from start to finish, and one for each stage of the work inside, plus a count of the failures
+ * by the exception they failed with.
+ * <p>
+ * The histograms and counters are all made up front, and picked by enum or by a walk over a fixed
+ * array, so recording allocates nothing (see LatencyHistogram). Only asking for the numbers
+ * (toMap) does.
+ */
+final class MyAggregateMetrics {
+
+    enum Operation { CREATE, CREATE_ALL, READ, READ_ALL, UPDATE, DELETE, SEARCH }
+
+    enum Stage { PARSE, VALIDATE, PERSIST, EMAIL }
+
+    // the failures worth telling apart; anything else counts as "other"
+    private static final Class<?>[] ERROR_TYPES = {
+            InvalidDomainDataException.class,
+            ObjectNotFoundException.class,
+            DomainPersistenceException.class,
+            VersionConflictException.class,
+            InvalidSearchParametersException.class
+    };
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private final LatencyHistogram[] operations = histograms(Operation.values().length);
+    private final LatencyHistogram[] stages = histograms(Stage.values().length);
+    private final LongAdder[] errors = new LongAdder[ERROR_TYPES.length + 1];
+
+    MyAggregateMetrics() {
+        for (int i = 0; i < errors.length; i++) {
+            errors[i] = new LongAdder();
+        }
+    }
+
+    private static LatencyHistogram[] histograms(final int count) {
+        final LatencyHistogram[] histograms = new LatencyHistogram[count];
+        for (int i = 0; i < count; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        return histograms;
+    }
+
+    /**
+     * @param startNanos System.nanoTime() when the operation started
+     */
+    void record(final Operation operation, final long startNanos) {
+        operations[operation.ordinal()].recordSince(startNanos);
+    }
+
+    void record(final Stage stage, final long startNanos) {
+        stages[stage.ordinal()].recordSince(startNanos);
+    }
+
+    /**
+     * Counts a failure by its exception, looking through the wrapping a future puts around it.
+     */
+    void failed(final Throwable e) {
+        Throwable cause = e;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        for (int i = 0; i < ERROR_TYPES.length; i++) {
+            if (ERROR_TYPES[i].isInstance(cause)) {
+                errors[i].increment();
+                return;
+            }
+        }
+        errors[ERROR_TYPES.length].increment();
+    }
+
+    LatencyHistogram histogram(final Operation operation) {
+        return operations[operation.ordinal()];
+    }
+
+    LatencyHistogram histogram(final Stage stage) {
+        return stages[stage.ordinal()];
+    }
+
+    long errors(final Class<? extends Exception> type) {
+        for (int i = 0; i < ERROR_TYPES.length; i++) {
+            if (ERROR_TYPES[i] == type) return errors[i].sum();
+        }
+        return errors[ERROR_TYPES.length].sum();
+    }
+
+    /**
+     * @return the numbers, as nested Maps ready to be written as JSON; times in nanoseconds
+     */
+    Map<String, Object> toMap() {
+        final Map<String, Object> operationMap = new LinkedHashMap<>();
+        for (Operation operation : Operation.values()) {
+            operationMap.put(nameOf(operation), toMap(operations[operation.ordinal()]));
+        }
+        final Map<String, Object> stageMap = new LinkedHashMap<>();
+        for (Stage stage : Stage.values()) {
+            stageMap.put(nameOf(stage), toMap(stages[stage.ordinal()]));
+        }
+        final Map<String, Object> errorMap = new LinkedHashMap<>();
+        for (int i = 0; i < ERROR_TYPES.length; i++) {
+            errorMap.put(ERROR_TYPES[i].getSimpleName(), errors[i].sum());
+        }
+        errorMap.put("other", errors[ERROR_TYPES.length].sum());
+        final Map<String, Object> map = new LinkedHashMap<>();
+        map.put("operations", operationMap);
+        map.put("stages", stageMap);
+        map.put("errors", errorMap);
+        return map;
+    }
+
+    private static Map<String, Object> toMap(final LatencyHistogram histogram) {
+        final Map<String, Object> map = new LinkedHashMap<>();
+        map.put("count", histogram.count());
+        map.put("mean", Math.round(histogram.mean()));
+        for (double percentile : PERCENTILES) {
+            map.put("p" + (percentile == Math.rint(percentile) ? String.valueOf((int) percentile) : String.valueOf(percentile)), histogram.valueAt(percentile));
+        }
+        map.put("max", histogram.max());
+        return map;
+    }
+
+    // CREATE_ALL is createAll
+    private static String nameOf(final Enum<?> value) {
+        final String[] words = value.name().toLowerCase(Locale.ROOT).split("_");
+        final StringBuilder name = new StringBuilder(words[0]);
+        for (int i = 1; i < words.length; i++) {
+            name.append(Character.toUpperCase(words[i].charAt(0))).append(words[i].substring(1));
+        }
+        return name.toString();
+    }
+}
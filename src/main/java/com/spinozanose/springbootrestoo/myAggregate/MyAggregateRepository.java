@@ -1,8 +1,17 @@
 package com.spinozanose.springbootrestoo.myAggregate;
 
 import com.spinozanose.springbootrestoo.common.exceptions.DomainPersistenceException;
+import com.spinozanose.springbootrestoo.common.exceptions.VersionConflictException;
+import org.json.simple.JSONObject;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 /**
  * We use an interface primarily so it can be mocked for testing.
@@ -18,9 +27,132 @@ import java.util.Map;
  */
 interface MyAggregateRepository {
 
+    long NO_VERSION = -1;
+    // for a write that does not care what version it replaces
+    long ANY_VERSION = Long.MIN_VALUE;
+
     void write(Map<String, Object> data) throws DomainPersistenceException;
 
+    /**
+     * Writes the aggregate only if it is still at the expected version (see version), or else
+     * throws VersionConflictException and writes nothing. Expecting NO_VERSION means expecting
+     * there to be no such aggregate yet, and ANY_VERSION makes it an ordinary write.
+     * <p>
+     * The check and the write must happen as one, which the default cannot promise: it is only
+     * good for repositories without versions, where there is nothing to conflict with.
+     *
+     * @param data
+     * @param expectedVersion
+     * @throws DomainPersistenceException
+     * @throws VersionConflictException
+     */
+    default void write(Map<String, Object> data, long expectedVersion) throws DomainPersistenceException, VersionConflictException {
+        if (expectedVersion != ANY_VERSION && version((String) data.get(MyAggregateDto.ID)) != expectedVersion) {
+            throw new VersionConflictException("MyAggregate " + data.get(MyAggregateDto.ID) + " is not at version " + expectedVersion);
+        }
+        write(data);
+    }
+
+    /**
+     * The same as write, but it may return before the write is durable, with a future that
+     * completes (or fails with the DomainPersistenceException) once it is. A repository that waits
+     * on something else to make a write durable, like the file store in group commit mode, then
+     * does not hold the caller's thread while it waits. The default just writes.
+     *
+     * @param data
+     * @return CompletableFuture, completed when the aggregate is written
+     */
+    default CompletableFuture<Void> writeAsync(Map<String, Object> data) {
+        try {
+            write(data);
+            return CompletableFuture.completedFuture(null);
+        } catch (DomainPersistenceException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Writes many aggregates in one go. A repository that can batch its writes, like one flush or
+     * one round trip for all of them, should. The default just writes them one by one.
+     * <p>
+     * If this throws, some of the aggregates may have been written.
+     *
+     * @param batch
+     * @throws DomainPersistenceException
+     */
+    default void writeAll(List<Map<String, Object>> batch) throws DomainPersistenceException {
+        for (Map<String, Object> data : batch) {
+            write(data);
+        }
+    }
+
     Map<String, Object> read(String id) throws DomainPersistenceException;
 
+    /**
+     * Reads many aggregates in one go. A repository that can do better than one read after the
+     * other, by ordering the reads to suit its storage or running them side by side, should. The
+     * default just reads them one by one.
+     *
+     * @param ids
+     * @return the data of each aggregate found, by id; the ones not found are simply absent
+     * @throws DomainPersistenceException
+     */
+    default Map<String, Map<String, Object>> readAll(Collection<String> ids) throws DomainPersistenceException {
+        final Map<String, Map<String, Object>> found = new HashMap<>();
+        for (String id : ids) {
+            final Map<String, Object> data = read(id);
+            if (data != null) found.put(id, data);
+        }
+        return found;
+    }
+
+    /**
+     * The version of an aggregate changes, and only ever goes up, every time the aggregate is
+     * written. It is meant to be cheap, so it can be checked before deciding whether to read the
+     * aggregate at all. Read it before the aggregate, not after, so the data is at least as new as
+     * the version.
+     * <p>
+     * A repository that does not keep versions returns NO_VERSION for everything.
+     *
+     * @param id
+     * @return the version, or NO_VERSION if there is no aggregate with the id
+     * @throws DomainPersistenceException
+     */
+    default long version(String id) throws DomainPersistenceException {
+        return NO_VERSION;
+    }
+
+    /**
+     * The aggregate as the JSON text the repository holds, for passing on as it is, with nothing
+     * decoded or built on the way. A repository that stores JSON can hand out its own bytes (the
+     * file store gives a view of its memory-mapped segment, without a copy). The default has to
+     * encode what read gives it.
+     * <p>
+     * The buffer is read-only, and the caller may move its position.
+     *
+     * @param id
+     * @return UTF-8 JSON, or null if there is no aggregate with the id
+     * @throws DomainPersistenceException
+     */
+    default ByteBuffer readJson(String id) throws DomainPersistenceException {
+        final Map<String, Object> data = read(id);
+        if (data == null) return null;
+        return ByteBuffer.wrap(JSONObject.toJSONString(data).getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
     void delete(String id) throws DomainPersistenceException;
+
+    /**
+     * Hands every stored aggregate to the action, in no particular order. Aggregates written or
+     * deleted during the scan may or may not be seen.
+     * <p>
+     * This is for rebuilding things derived from the repository, like a search index. A repository
+     * that cannot list its contents simply does nothing, and whatever is built on it then only
+     * knows about what is written from then on.
+     *
+     * @param action
+     * @throws DomainPersistenceException
+     */
+    default void scan(Consumer<Map<String, Object>> action) throws DomainPersistenceException {
+    }
 }
@@ -2,12 +2,12 @@ package com.spinozanose.springbootrestoo.myAggregate;
 
 import com.spinozanose.springbootrestoo.common.exceptions.DomainPersistenceException;
 import com.spinozanose.springbootrestoo.common.exceptions.InvalidDomainDataException;
+import com.spinozanose.springbootrestoo.common.exceptions.VersionConflictException;
 import com.spinozanose.springbootrestoo.email.EmailMessage;
 import com.spinozanose.springbootrestoo.email.EmailSendingService;
 
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Note the scopes! These are intentional. In OO we do not make everything public. We hide
@@ -74,24 +74,20 @@ class MyAggregateRoot implements MyAggregate{
      * Not all the data needs to be returned, even if in this case we do. We only should return data
      * that is appropriate to share.
      *
+     * Every read ends here, so this does not build a Map. It is a view of the fields as they are
+     * now, which cannot be changed (see MyAggregateView).
+     *
      * @return Map<String, Object>
      */
     public Map<String, Object> toMap() {
-        final Map<String, Object> data = new HashMap<>();
-        data.put(MyAggregateDto.ID, this.id);
-        data.put(MyAggregateDto.A_NUMBER, this.aNumber);
-        data.put(MyAggregateDto.A_STRING, this.aString);
-        if (this.innerObject != null) {
-            data.put(MyAggregateDto.INNER_OBJECT, this.innerObject.toMap());
-        }
-        return Collections.unmodifiableMap(data);
+        return new MyAggregateView(this.id, this.aNumber, this.aString, this.innerObject);
     }
 
     /**
      * @return MyAggregateDto
      */
     public MyAggregateDto toDto() {
-        return new MyAggregateDto(toMap());
+        return new MyAggregateDto(this.id, this.aNumber, this.aString, this.innerObject);
     }
 
     void update(final MyAggregateDto dto) throws InvalidDomainDataException {
@@ -115,6 +111,20 @@ class MyAggregateRoot implements MyAggregate{
         repository.write(this.toMap());
     }
 
+    /**
+     * Persists only if the stored aggregate is still at the version this one was read at.
+     */
+    void persist(final long expectedVersion) throws DomainPersistenceException, VersionConflictException {
+        repository.write(this.toMap(), expectedVersion);
+    }
+
+    /**
+     * See MyAggregateRepository.writeAsync.
+     */
+    CompletableFuture<Void> persistAsync() {
+        return repository.writeAsync(this.toMap());
+    }
+
     void sendEmail() {
         // here we set the values of the email message based on data in the aggregate.
         // or, well, we would if we actually implemented it.
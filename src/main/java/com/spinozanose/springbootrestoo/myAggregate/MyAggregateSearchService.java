@@ -1,5 +1,6 @@
 package com.spinozanose.springbootrestoo.myAggregate;
 
+import com.spinozanose.springbootrestoo.common.exceptions.DomainPersistenceException;
 import com.spinozanose.springbootrestoo.common.exceptions.InvalidSearchParametersException;
 
 import java.util.List;
@@ -14,7 +15,42 @@ import java.util.Map;
  * implementation, this may not even need to be defined as part of MyAggregate. If it is, the
  * implementing class could be extending a shared base class with most of the functionality.
  *
+ * The factory tells the search service about every change it persists. An external search engine
+ * that feeds itself from the database can ignore that, which is why those methods do nothing
+ * by default.
  */
 interface MyAggregateSearchService {
-    List<String> search(Map<String, String> searchParams) throws InvalidSearchParametersException;
+    List<String> search(Map<String, String> searchParams) throws InvalidSearchParametersException, DomainPersistenceException;
+
+    /**
+     * The same search, but handing each result to the sink as it is found, until the sink returns
+     * false. An implementation that cannot do better than finding everything first is still
+     * correct, which is what this default does.
+     *
+     * @param searchParams
+     * @param sink
+     * @throws InvalidSearchParametersException
+     * @throws DomainPersistenceException
+     */
+    default void search(Map<String, String> searchParams, SearchResultSink sink) throws InvalidSearchParametersException, DomainPersistenceException {
+        for (String json : search(searchParams)) {
+            if (!sink.accept(json)) return;
+        }
+    }
+
+    /**
+     * Called after an aggregate has been persisted, with its current data.
+     *
+     * @param data
+     */
+    default void index(Map<String, Object> data) {
+    }
+
+    /**
+     * Called after an aggregate has been deleted.
+     *
+     * @param id
+     */
+    default void remove(String id) {
+    }
 }
@@ -4,10 +4,20 @@ import com.spinozanose.springbootrestoo.common.exceptions.DomainPersistenceExcep
 import com.spinozanose.springbootrestoo.common.exceptions.InvalidDomainDataException;
 import com.spinozanose.springbootrestoo.common.exceptions.InvalidSearchParametersException;
 import com.spinozanose.springbootrestoo.common.exceptions.ObjectNotFoundException;
+import com.spinozanose.springbootrestoo.common.exceptions.VersionConflictException;
+import com.spinozanose.springbootrestoo.common.cache.BoundedCache;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This service is for managing the aggregate and its encapsulated objects. It
@@ -39,28 +49,340 @@ import java.util.Map;
 @Service
 class MyAggregateService {
 
+    static final String CACHE_MAXIMUM_WEIGHT_PROPERTY = "myaggregate.cache.maximumWeight";
+    static final String CACHE_TTL_SECONDS_PROPERTY = "myaggregate.cache.ttlSeconds";
+
     // package-private so it can be mocked in tests
     MyAggregateFactory factory = new MyAggregateFactory();
 
+    /**
+     * Most reads go to a small set of aggregates, so they are cached here, in front of the factory.
+     * Because all writes come through this service as well, the cache can be kept honest by
+     * invalidating on every update and delete, before the write and again after it. The time to
+     * live is for whatever might still slip past that, like another process writing to the same
+     * store.
+     * <p>
+     * That still leaves the write itself: the repository has the new version before the write
+     * returns and the cache is invalidated, and a read in between would get the new version (the
+     * ETag) with the old MyAggregate (the body). So each entry also keeps the version it was read
+     * at, and is only served while the repository is still at that version. Looking the version up
+     * costs a map lookup in the file store.
+     * <p>
+     * Package-private so it can be replaced in tests.
+     */
+    BoundedCache<String, Versioned> cache = new BoundedCache<>(
+            Long.getLong(CACHE_MAXIMUM_WEIGHT_PROPERTY, 64 * 1024),
+            8 * 1024,
+            TimeUnit.SECONDS.toNanos(Long.getLong(CACHE_TTL_SECONDS_PROPERTY, 300)),
+            MyAggregateService::weigh);
+
+    /**
+     * A cached MyAggregate, and the version of it the repository had before it was read. The
+     * MyAggregate is at least that new.
+     */
+    static final class Versioned {
+        final MyAggregate myAggregate;
+        final long version;
+
+        Versioned(final MyAggregate myAggregate, final long version) {
+            this.myAggregate = myAggregate;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Every operation is timed and every failure counted, see MyAggregateMetrics. The pattern is
+     * the same in each: note the start, count the exception on the way out, and record the time
+     * in a finally, so failures are timed too. The async ones record when their future completes.
+     */
+    MyAggregateMetrics metrics() {
+        return factory.metrics;
+    }
+
+    /**
+     * The controller parses the request body, but the time it takes belongs with the rest.
+     *
+     * @param startNanos System.nanoTime() when parsing started
+     */
+    void parsed(final long startNanos) {
+        factory.metrics.record(MyAggregateMetrics.Stage.PARSE, startNanos);
+    }
+
+    /**
+     * @return the metrics, and those of the locks and the email, as nested Maps
+     */
+    Map<String, Object> metricsMap() {
+        final Map<String, Object> map = factory.metrics.toMap();
+        final Map<String, Object> locks = new LinkedHashMap<>();
+        locks.put("stripes", factory.locks.stripes());
+        locks.put("acquisitions", factory.locks.acquisitions());
+        locks.put("contended", factory.locks.contended());
+        locks.put("waitNanos", factory.locks.waitNanos());
+        locks.put("holdNanos", factory.locks.holdNanos());
+        locks.put("maxHoldNanos", factory.locks.maxHoldNanos());
+        map.put("locks", locks);
+        final Map<String, Object> email = new LinkedHashMap<>();
+        email.put("queueDepth", factory.emailSendingService.queueDepth());
+        email.put("sent", factory.emailSendingService.sentCount());
+        email.put("failed", factory.emailSendingService.failedCount());
+        email.put("dropped", factory.emailSendingService.droppedCount());
+        map.put("email", email);
+        final Map<String, Object> cacheMap = new LinkedHashMap<>();
+        cacheMap.put("hits", cache.hits());
+        cacheMap.put("misses", cache.misses());
+        cacheMap.put("evictions", cache.evictions());
+        cacheMap.put("size", cache.size());
+        map.put("cache", cacheMap);
+        return map;
+    }
+
     // List of JSON string with MyAggregate objects
-    List<String> search(final Map<String, String> searchParams) throws InvalidSearchParametersException {
-        // Here we can check a cache or other optimizations
-        return factory.search(searchParams);
+    List<String> search(final Map<String, String> searchParams) throws InvalidSearchParametersException, DomainPersistenceException {
+        final long start = System.nanoTime();
+        try {
+            // Here we can check a cache or other optimizations
+            return factory.search(searchParams);
+        } catch (final Exception e) {
+            factory.metrics.failed(e);
+            throw e;
+        } finally {
+            factory.metrics.record(MyAggregateMetrics.Operation.SEARCH, start);
+        }
+    }
+
+    void search(final Map<String, String> searchParams, final SearchResultSink sink) throws InvalidSearchParametersException, DomainPersistenceException {
+        final long start = System.nanoTime();
+        try {
+            factory.search(searchParams, sink);
+        } catch (final Exception e) {
+            factory.metrics.failed(e);
+            throw e;
+        } finally {
+            factory.metrics.record(MyAggregateMetrics.Operation.SEARCH, start);
+        }
     }
 
     MyAggregate create(final Map<String, Object> data) throws InvalidDomainDataException, DomainPersistenceException {
-        return factory.create(data);
+        return create(new MyAggregateDto(data));
+    }
+
+    MyAggregate create(final MyAggregateDto data) throws InvalidDomainDataException, DomainPersistenceException {
+        final long start = System.nanoTime();
+        try {
+            return factory.create(data);
+        } catch (final Exception e) {
+            factory.metrics.failed(e);
+            throw e;
+        } finally {
+            factory.metrics.record(MyAggregateMetrics.Operation.CREATE, start);
+        }
+    }
+
+    List<MyAggregateBatchResult> createAll(final List<Map<String, Object>> items) throws DomainPersistenceException {
+        final long start = System.nanoTime();
+        try {
+            // nothing to invalidate, the ids are all new
+            return factory.createAll(items);
+        } catch (final Exception e) {
+            factory.metrics.failed(e);
+            throw e;
+        } finally {
+            factory.metrics.record(MyAggregateMetrics.Operation.CREATE_ALL, start);
+        }
+    }
+
+    /**
+     * The async versions of the writes return at once, with a future that completes when the write
+     * does, so the caller's thread is not held while the write waits on the disk or the email vendor.
+     * Their futures fail with the same exceptions the blocking versions throw.
+     */
+    CompletableFuture<MyAggregate> createAsync(final MyAggregateDto data) {
+        final long start = System.nanoTime();
+        return factory.createAsync(data).whenComplete((created, e) -> completed(MyAggregateMetrics.Operation.CREATE, start, e));
+    }
+
+    CompletableFuture<List<MyAggregateBatchResult>> createAllAsync(final List<Map<String, Object>> items) {
+        final long start = System.nanoTime();
+        return factory.createAllAsync(items).whenComplete((created, e) -> completed(MyAggregateMetrics.Operation.CREATE_ALL, start, e));
+    }
+
+    private void completed(final MyAggregateMetrics.Operation operation, final long start, final Throwable e) {
+        if (e != null) factory.metrics.failed(e);
+        factory.metrics.record(operation, start);
     }
 
     MyAggregate read(final String id) throws DomainPersistenceException {
-        return factory.read(id);
+        final long start = System.nanoTime();
+        try {
+            final long generation = cache.generation(id);
+            final long version = factory.version(id);
+            final MyAggregate cached = cached(id, version);
+            if (cached != null) return cached;
+            final MyAggregate myAggregate = factory.read(id);
+            if (myAggregate != null) {
+                cache.put(id, new Versioned(myAggregate, version), generation);
+            }
+            return myAggregate;
+        } catch (final Exception e) {
+            factory.metrics.failed(e);
+            throw e;
+        } finally {
+            factory.metrics.record(MyAggregateMetrics.Operation.READ, start);
+        }
+    }
+
+    /**
+     * @return the cached MyAggregate, if it is at the version the repository has now
+     */
+    private MyAggregate cached(final String id, final long version) {
+        final Versioned cached = cache.get(id);
+        return (cached != null && cached.version == version) ? cached.myAggregate : null;
+    }
+
+    /**
+     * Never cached, it is what tells whether what a client has is still current.
+     */
+    long version(final String id) throws DomainPersistenceException {
+        return factory.version(id);
+    }
+
+    /**
+     * Not cached: the stored bytes are already about as cheap as it gets.
+     */
+    ByteBuffer readJson(final String id) throws DomainPersistenceException {
+        final long start = System.nanoTime();
+        try {
+            return factory.readJson(id);
+        } catch (final Exception e) {
+            factory.metrics.failed(e);
+            throw e;
+        } finally {
+            factory.metrics.record(MyAggregateMetrics.Operation.READ, start);
+        }
+    }
+
+    /**
+     * The cache answers what it can, and only the rest goes to the factory, as one batch.
+     */
+    Map<String, MyAggregate> readAll(final Collection<String> ids) throws DomainPersistenceException {
+        final long start = System.nanoTime();
+        try {
+            final Map<String, MyAggregate> found = new HashMap<>();
+            final Map<String, Long> generations = new HashMap<>();
+            final Map<String, Long> versions = new HashMap<>();
+            for (String id : ids) {
+                final long generation = cache.generation(id);
+                final long version = factory.version(id);
+                final MyAggregate cached = cached(id, version);
+                if (cached != null) {
+                    found.put(id, cached);
+                } else {
+                    generations.put(id, generation);
+                    versions.put(id, version);
+                }
+            }
+            if (generations.isEmpty()) return found;
+            final Map<String, MyAggregate> read = factory.readAll(generations.keySet());
+            for (Map.Entry<String, MyAggregate> entry : read.entrySet()) {
+                final String id = entry.getKey();
+                cache.put(id, new Versioned(entry.getValue(), versions.get(id)), generations.get(id));
+            }
+            found.putAll(read);
+            return found;
+        } catch (final Exception e) {
+            factory.metrics.failed(e);
+            throw e;
+        } finally {
+            factory.metrics.record(MyAggregateMetrics.Operation.READ_ALL, start);
+        }
     }
 
     void update(final Map<String, Object> data) throws ObjectNotFoundException, InvalidDomainDataException, DomainPersistenceException {
-        factory.update(data);
+        update(new MyAggregateDto(data));
+    }
+
+    void update(final MyAggregateDto data) throws ObjectNotFoundException, InvalidDomainDataException, DomainPersistenceException {
+        final long start = System.nanoTime();
+        if (data.id != null) cache.invalidate(data.id);
+        try {
+            factory.update(data);
+        } catch (final Exception e) {
+            factory.metrics.failed(e);
+            throw e;
+        } finally {
+            // even a failed update may have reached the repository
+            if (data.id != null) cache.invalidate(data.id);
+            factory.metrics.record(MyAggregateMetrics.Operation.UPDATE, start);
+        }
+    }
+
+    void update(final MyAggregateDto data, final long expectedVersion) throws ObjectNotFoundException, InvalidDomainDataException, DomainPersistenceException, VersionConflictException {
+        final long start = System.nanoTime();
+        if (data.id != null) cache.invalidate(data.id);
+        try {
+            factory.update(data, expectedVersion);
+        } catch (final Exception e) {
+            factory.metrics.failed(e);
+            throw e;
+        } finally {
+            if (data.id != null) cache.invalidate(data.id);
+            factory.metrics.record(MyAggregateMetrics.Operation.UPDATE, start);
+        }
+    }
+
+    /**
+     * @param data
+     * @param expectedVersion ANY_VERSION if the client did not say
+     * @return CompletableFuture, completed when the update is, and the cache with it
+     */
+    CompletableFuture<Void> updateAsync(final MyAggregateDto data, final long expectedVersion) {
+        final long start = System.nanoTime();
+        if (data.id != null) cache.invalidate(data.id);
+        return factory.updateAsync(data, expectedVersion).whenComplete((updated, e) -> {
+            if (data.id != null) cache.invalidate(data.id);
+            completed(MyAggregateMetrics.Operation.UPDATE, start, e);
+        });
+    }
+
+    CompletableFuture<Void> deleteAsync(final String id) {
+        final long start = System.nanoTime();
+        cache.invalidate(id);
+        return factory.deleteAsync(id).whenComplete((deleted, e) -> {
+            cache.invalidate(id);
+            completed(MyAggregateMetrics.Operation.DELETE, start, e);
+        });
     }
 
     void delete(final String id) throws ObjectNotFoundException, DomainPersistenceException {
-        factory.delete(id);
+        final long start = System.nanoTime();
+        cache.invalidate(id);
+        try {
+            factory.delete(id);
+        } catch (final Exception e) {
+            factory.metrics.failed(e);
+            throw e;
+        } finally {
+            cache.invalidate(id);
+            factory.metrics.record(MyAggregateMetrics.Operation.DELETE, start);
+        }
+    }
+
+    /**
+     * The factory and what it holds (the file store, the email service, the threads of the async
+     * operations) are not beans of their own, so this is where the application closes them on the
+     * way down. That lets go of the store's and the email outbox's directories, so that another
+     * application context in the same JVM can open them again.
+     */
+    @PreDestroy
+    void close() throws IOException {
+        factory.close();
+    }
+
+    /**
+     * Weight is roughly in units of 64 bytes, so the cache is bounded by memory rather than by count.
+     */
+    private static int weigh(final Versioned cached) {
+        final String aString = cached.myAggregate.toDto().aString;
+        return 1 + ((aString == null) ? 0 : aString.length() / 32);
     }
 }
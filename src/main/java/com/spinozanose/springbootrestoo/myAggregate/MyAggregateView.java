@@ -0,0 +1,118 @@
+package com.spinozanose.springbootrestoo.myAggregate;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * What MyAggregateRoot.toMap returns: the root's fields as a Map, without building one. It is one
+ * small object holding the values as they were when it was made, so it does not change if the
+ * root does, and it cannot be changed itself. There is no table of entries and aNumber stays an
+ * int; a value is only looked up, and boxed, when someone asks for it.
+ * <p>
+ * The keys are MyAggregateDto.FIELDS, in that order, except innerObject, which is only there when
+ * the root has one. That is the same Map the root used to build, so equals and hashCode agree
+ * with a HashMap of the same data either way round.
+ * <p>
+ * Iterating the entries (to write JSON, say) does make an entry per field, as there is nothing
+ * to hand out otherwise.
+ */
+final class MyAggregateView extends AbstractMap<String, Object> {
+
+    private static final String[] KEYS = MyAggregateDto.FIELDS;
+
+    // so that leaving innerObject out is leaving out the last key
+    static {
+        if (!MyAggregateDto.INNER_OBJECT.equals(KEYS[KEYS.length - 1])) {
+            throw new IllegalStateException("MyAggregateView expects innerObject last in MyAggregateDto.FIELDS");
+        }
+    }
+
+    private final String id;
+    private final int aNumber;
+    private final String aString;
+    private final InnerObject innerObject;
+
+    MyAggregateView(final String id, final int aNumber, final String aString, final InnerObject innerObject) {
+        this.id = id;
+        this.aNumber = aNumber;
+        this.aString = aString;
+        this.innerObject = innerObject;
+    }
+
+    @Override
+    public Object get(final Object key) {
+        if (!(key instanceof String)) return null;
+        switch ((String) key) {
+            case MyAggregateDto.ID:
+                return id;
+            case MyAggregateDto.A_NUMBER:
+                return aNumber;
+            case MyAggregateDto.A_STRING:
+                return aString;
+            case MyAggregateDto.INNER_OBJECT:
+                return (innerObject == null) ? null : innerObject.toMap();
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return MyAggregateDto.INNER_OBJECT.equals(key)
+                ? innerObject != null
+                : MyAggregateDto.ID.equals(key) || MyAggregateDto.A_NUMBER.equals(key) || MyAggregateDto.A_STRING.equals(key);
+    }
+
+    @Override
+    public int size() {
+        return (innerObject == null) ? KEYS.length - 1 : KEYS.length;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        for (int i = 0; i < size(); i++) {
+            hash += KEYS[i].hashCode() ^ Objects.hashCode(get(KEYS[i]));
+        }
+        return hash;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                return new Iterator<Entry<String, Object>>() {
+                    private int next;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < size();
+                    }
+
+                    @Override
+                    public Entry<String, Object> next() {
+                        if (!hasNext()) throw new NoSuchElementException();
+                        final String key = KEYS[next++];
+                        return new SimpleImmutableEntry<>(key, get(key));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return MyAggregateView.this.size();
+            }
+        };
+    }
+}
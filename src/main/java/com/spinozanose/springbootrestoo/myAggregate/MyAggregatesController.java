@@ -1,19 +1,60 @@
 package com.spinozanose.springbootrestoo.myAggregate;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.spinozanose.springbootrestoo.common.exceptions.DomainPersistenceException;
 import com.spinozanose.springbootrestoo.common.exceptions.InvalidSearchParametersException;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 @RestController
 @RequestMapping("/v1/myaggregates")
 class MyAggregatesController {
 
+    static final String NDJSON = "application/x-ndjson";
+    static final String IDS = "ids";
+    static final String FOUND = "found";
+    static final String MISSING = "missing";
+    static final int MAX_IDS = 10000;
+    static final int MAX_ITEMS = 10000;
+
+    private static final String PARSE_ERROR = "JSON Parse Error";
+    private static final String NOT_AN_OBJECT = "Not a JSON Object";
+
     @Autowired
     private MyAggregateService service;
 
@@ -28,12 +69,293 @@ class MyAggregatesController {
      *
      * An alternative implementation could pass back a list of URIs, if that makes more sense.
      *
+     * When the search is paged (pageSize=N) and there may be more, the next page is in a Link
+     * header with rel="next": this same request with the cursor the search handed us. Clients
+     * follow it until there is none, without knowing what is in the cursor.
+     *
      * @param allRequestParams
      * @return List of MyAggregates (as JSON)
      * @throws InvalidSearchParametersException
+     * @throws DomainPersistenceException
      */
     @GetMapping
-    public List<String> search(@RequestParam Map<String,String> allRequestParams) throws InvalidSearchParametersException {
-        return service.search(allRequestParams);
+    public ResponseEntity<List<String>> search(@RequestParam Map<String,String> allRequestParams) throws InvalidSearchParametersException, DomainPersistenceException {
+        final PageSink sink = new PageSink();
+        service.search(allRequestParams, sink);
+        if (sink.nextCursor == null) {
+            return ResponseEntity.ok(sink.results);
+        }
+        return ResponseEntity.ok().header(HttpHeaders.LINK, nextLink(sink.nextCursor)).body(sink.results);
+    }
+
+    /**
+     * The same search for clients that Accept application/x-ndjson: one MyAggregate per line,
+     * written as the search finds it. Nothing is collected in memory, and the first results go
+     * out while the search is still going.
+     *
+     * We write to the response ourselves, on the request thread, rather than handing Spring a
+     * StreamingResponseBody to run later. That way the search parameters are checked before
+     * anything is written, and a bad one is still an ordinary 400 from the ControllerAdvice.
+     * Writing blocks while the client is not reading, which holds the search back with it. When
+     * the client goes away, the write fails and the sink tells the search to stop.
+     *
+     * The response comes from the request context rather than as a parameter. Springfox takes
+     * two handlers on the same path for one if the parameters of either are all in the other, and
+     * then (depending on hash order) fails to start with "Multiple entries with same key". With
+     * the same parameters as search it reliably merges the two, as it does for the two batches.
+     *
+     * @param allRequestParams
+     * @throws InvalidSearchParametersException
+     * @throws DomainPersistenceException
+     * @throws IOException
+     */
+    @GetMapping(produces = NDJSON)
+    public void searchStream(@RequestParam Map<String,String> allRequestParams) throws InvalidSearchParametersException, DomainPersistenceException, IOException {
+        final HttpServletResponse response = ((ServletRequestAttributes) RequestContextHolder.currentRequestAttributes()).getResponse();
+        final NdjsonSink sink = new NdjsonSink(response);
+        service.search(allRequestParams, sink);
+        if (sink.failure != null) {
+            // the client is gone, there is no one left to tell
+            return;
+        }
+        if (sink.out == null) {
+            sink.start();
+        }
+        sink.out.flush();
+    }
+
+    /**
+     * Creates many MyAggregates in one request, for imports: a JSON array of objects, each one what
+     * you would POST to /v1/myaggregate.
+     *
+     * The answer has one result per item, in the same order, with either the id of the new
+     * MyAggregate or the reason the item was not created. A bad item does not fail the others, so
+     * this is a 200 even if some (or all) of them have errors. Only a body that is not an array at
+     * all, one of more than MAX_ITEMS items, or a failure to persist, fails the whole request.
+     *
+     * The body is read as a stream (with the parser MyAggregateDtoReader uses), an item at a time,
+     * so it is never in memory as text as well as items. Like the other writes (see
+     * MyAggregateController), the servlet thread does not wait for the batch to be written.
+     *
+     * @param body
+     * @return CompletableFuture of the List of MyAggregateBatchResult
+     * @throws IOException
+     */
+    @PostMapping(path = "/batch", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public CompletableFuture<List<MyAggregateBatchResult>> createAll(InputStream body) throws IOException {
+        final Batch batch = new Batch();
+        try (JsonParser parser = MyAggregateDtoReader.JSON.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Not a JSON Array");
+            }
+            JsonToken item;
+            while ((item = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (item == JsonToken.START_OBJECT) {
+                    batch.add(MyAggregateDtoReader.readObject(parser));
+                } else {
+                    parser.skipChildren();
+                    batch.fail(NOT_AN_OBJECT);
+                }
+            }
+            if (parser.nextToken() != null) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "There is more after the JSON Array");
+            }
+        } catch (JsonProcessingException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, PARSE_ERROR, e);
+        }
+        return createAll(batch);
+    }
+
+    /**
+     * The same, for a body of application/x-ndjson: one object per line, blank lines ignored. Here
+     * the lines stand on their own, so a line that does not parse is just an item with an error.
+     * The body is read a line at a time.
+     *
+     * @param body
+     * @return CompletableFuture of the List of MyAggregateBatchResult
+     * @throws IOException
+     */
+    @PostMapping(path = "/batch", consumes = NDJSON)
+    public CompletableFuture<List<MyAggregateBatchResult>> createAllFromNdjson(InputStream body) throws IOException {
+        final Batch batch = new Batch();
+        final BufferedReader lines = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        String line;
+        while ((line = lines.readLine()) != null) {
+            if (!line.isBlank()) readLine(batch, line);
+        }
+        return createAll(batch);
+    }
+
+    private static void readLine(final Batch batch, final String line) throws IOException {
+        try (JsonParser parser = MyAggregateDtoReader.JSON.createParser(line)) {
+            final Map<String, Object> object = (parser.nextToken() == JsonToken.START_OBJECT) ? MyAggregateDtoReader.readObject(parser) : null;
+            if (object == null) parser.skipChildren();
+            if (parser.nextToken() != null) {
+                batch.fail(PARSE_ERROR);
+            } else if (object == null) {
+                batch.fail(NOT_AN_OBJECT);
+            } else {
+                batch.add(object);
+            }
+        } catch (JsonProcessingException e) {
+            batch.fail(PARSE_ERROR);
+        }
+    }
+
+    /**
+     * Only the JSON objects go to the service, and their results are put back between the errors
+     * for everything else.
+     */
+    private CompletableFuture<List<MyAggregateBatchResult>> createAll(final Batch batch) {
+        return service.createAllAsync(batch.objects).thenApply(created -> merge(batch.errors, created));
+    }
+
+    private static List<MyAggregateBatchResult> merge(final List<String> errors, final List<MyAggregateBatchResult> objectResults) {
+        final Iterator<MyAggregateBatchResult> created = objectResults.iterator();
+        final List<MyAggregateBatchResult> results = new ArrayList<>(errors.size());
+        for (String error : errors) {
+            results.add((error == null) ? created.next() : MyAggregateBatchResult.failed(error));
+        }
+        return results;
+    }
+
+    /**
+     * Reads many MyAggregates in one request: {"ids": [...]}. The answer is
+     * {"found": [...], "missing": [...]}, the MyAggregates found (as GET /v1/myaggregate/{id}
+     * would give them) and the ids that were not, each in the order they were asked for. Asking
+     * for an id twice gets it once.
+     *
+     * It is a POST only because a long list of ids does not fit in a URL; nothing is changed.
+     *
+     * @param body
+     * @return found and missing
+     * @throws DomainPersistenceException
+     */
+    @PostMapping(path = "/_mget", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public Map<String, Object> readAll(@RequestBody String body) throws DomainPersistenceException {
+        final Object ids;
+        try {
+            final Object request = new JSONParser().parse(body);
+            ids = (request instanceof JSONObject) ? ((JSONObject) request).get(IDS) : null;
+        } catch (ParseException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "JSON Parse Error", e);
+        }
+        if (!(ids instanceof JSONArray)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Expected {\"" + IDS + "\": [...]}");
+        }
+        final Set<String> requested = new LinkedHashSet<>();
+        for (Object id : (JSONArray) ids) {
+            if (!(id instanceof String)) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Every id must be a string");
+            }
+            requested.add((String) id);
+        }
+        if (requested.size() > MAX_IDS) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "No more than " + MAX_IDS + " ids at a time");
+        }
+        final Map<String, MyAggregate> read = service.readAll(requested);
+        final List<Map<String, Object>> found = new ArrayList<>(read.size());
+        final List<String> missing = new ArrayList<>();
+        for (String id : requested) {
+            final MyAggregate myAggregate = read.get(id);
+            if (myAggregate == null) {
+                missing.add(id);
+            } else {
+                found.add(myAggregate.toMap());
+            }
+        }
+        final Map<String, Object> response = new LinkedHashMap<>();
+        response.put(FOUND, found);
+        response.put(MISSING, missing);
+        return response;
+    }
+
+    private static String nextLink(final String cursor) {
+        final String next = ServletUriComponentsBuilder.fromCurrentRequest()
+                .replaceQueryParam(SearchResultSink.CURSOR, cursor)
+                .build()
+                .toUriString();
+        return "<" + next + ">; rel=\"next\"";
+    }
+
+    /**
+     * The items of a batch as they are read: the objects, which go to the service, and for every
+     * item, in order, either what was wrong with it or null for the next of the objects.
+     */
+    private static final class Batch {
+        final List<Map<String, Object>> objects = new ArrayList<>();
+        final List<String> errors = new ArrayList<>();
+
+        void add(final Map<String, Object> object) {
+            count();
+            objects.add(object);
+            errors.add(null);
+        }
+
+        void fail(final String error) {
+            count();
+            errors.add(error);
+        }
+
+        private void count() {
+            if (errors.size() == MAX_ITEMS) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "No more than " + MAX_ITEMS + " items at a time");
+            }
+        }
+    }
+
+    private static final class PageSink implements SearchResultSink {
+        final List<String> results = new ArrayList<>();
+        String nextCursor;
+
+        @Override
+        public boolean accept(final String json) {
+            return results.add(json);
+        }
+
+        @Override
+        public void nextCursor(final String cursor) {
+            nextCursor = cursor;
+        }
+    }
+
+    private static final class NdjsonSink implements SearchResultSink {
+        private final HttpServletResponse response;
+        OutputStream out;
+        IOException failure;
+
+        NdjsonSink(final HttpServletResponse response) {
+            this.response = response;
+        }
+
+        void start() throws IOException {
+            response.setContentType(NDJSON);
+            response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+            out = response.getOutputStream();
+        }
+
+        /**
+         * This comes before anything is written, so the header can still be set.
+         */
+        @Override
+        public void nextCursor(final String cursor) {
+            response.setHeader(HttpHeaders.LINK, nextLink(cursor));
+        }
+
+        @Override
+        public boolean accept(final String json) {
+            try {
+                final boolean first = out == null;
+                if (first) start();
+                out.write(json.getBytes(StandardCharsets.UTF_8));
+                out.write('\n');
+                // after that, the response buffer goes out whenever it is full
+                if (first) out.flush();
+                return true;
+            } catch (IOException e) {
+                failure = e;
+                return false;
+            }
+        }
     }
 }
@@ -0,0 +1,161 @@
+package com.spinozanose.springbootrestoo.myAggregate;
+
+import java.util.Arrays;
+
+/**
+ * The sorted list of ordinals (see SearchOrdinals) of the aggregates that contain one term, for the
+ * embedded search index.
+ * <p>
+ * It is stored compressed: each ordinal is written as the difference from the one before it, as a
+ * variable-length integer, in a plain byte array. Ordinals only ever grow, so adding is an append,
+ * and most differences fit in one or two bytes. Nothing is boxed, and a list costs a few bytes per
+ * entry instead of the dozens a collection of Integers would.
+ * <p>
+ * A variable-length encoding can only be read from the front, so every SKIP_INTERVAL entries the
+ * ordinal and the byte offset after it are remembered. {@link Cursor#advance(int)} uses those to
+ * jump close to its target, which keeps intersecting a short list with a long one cheap, and
+ * {@link #contains(int)} to look one up without reading the list from the front.
+ * <p>
+ * Not thread-safe; the search index guards it with its lock.
+ */
+final class PostingList {
+
+    static final int NO_MORE = Integer.MAX_VALUE;
+    private static final int SKIP_INTERVAL = 64;
+
+    private byte[] data = new byte[8];
+    private int length;
+    private int size;
+    private int last = -1;
+    private int[] skipOrdinals = new int[0];
+    private int[] skipOffsets = new int[0];
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param ordinal must be larger than any added before
+     */
+    void add(final int ordinal) {
+        if (ordinal <= last) {
+            throw new IllegalArgumentException("Ordinal " + ordinal + " is not after " + last);
+        }
+        int delta = ordinal - last;
+        if (data.length - length < 5) {
+            data = Arrays.copyOf(data, data.length * 2);
+        }
+        while ((delta & ~0x7f) != 0) {
+            data[length++] = (byte) ((delta & 0x7f) | 0x80);
+            delta >>>= 7;
+        }
+        data[length++] = (byte) delta;
+        last = ordinal;
+        if (++size % SKIP_INTERVAL == 0) {
+            final int skips = size / SKIP_INTERVAL;
+            if (skipOrdinals.length < skips) {
+                skipOrdinals = Arrays.copyOf(skipOrdinals, Math.max(4, skips * 2));
+                skipOffsets = Arrays.copyOf(skipOffsets, skipOrdinals.length);
+            }
+            skipOrdinals[skips - 1] = ordinal;
+            skipOffsets[skips - 1] = length;
+        }
+    }
+
+    Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * A binary search of the skip points, and then at most SKIP_INTERVAL entries read.
+     */
+    boolean contains(final int ordinal) {
+        if (ordinal < 0 || ordinal > last) return false;
+        int low = 0;
+        int high = (size / SKIP_INTERVAL) - 1;
+        int skip = -1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            if (skipOrdinals[middle] <= ordinal) {
+                skip = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        int current = (skip < 0) ? -1 : skipOrdinals[skip];
+        int offset = (skip < 0) ? 0 : skipOffsets[skip];
+        while (current < ordinal && offset < length) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[offset++];
+                delta |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            current += delta;
+        }
+        return current == ordinal;
+    }
+
+    /**
+     * A forward-only reader over the list.
+     */
+    final class Cursor {
+        private int offset;
+        private int read;
+        private int current = -1;
+
+        /**
+         * @return the next ordinal, or NO_MORE
+         */
+        int next() {
+            if (read == size) {
+                current = NO_MORE;
+                return NO_MORE;
+            }
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[offset++];
+                delta |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            read++;
+            current += delta;
+            return current;
+        }
+
+        /**
+         * @return the first ordinal at or after the target, or NO_MORE
+         */
+        int advance(final int target) {
+            if (current >= target) return current;
+            // jump to the last skip point before the target, if that gets us anywhere
+            int low = 0;
+            int high = (size / SKIP_INTERVAL) - 1;
+            int skip = -1;
+            while (low <= high) {
+                final int middle = (low + high) >>> 1;
+                if (skipOrdinals[middle] < target) {
+                    skip = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            if (skip >= 0 && skipOrdinals[skip] > current) {
+                current = skipOrdinals[skip];
+                offset = skipOffsets[skip];
+                read = (skip + 1) * SKIP_INTERVAL;
+            }
+            int ordinal;
+            do {
+                ordinal = next();
+            } while (ordinal < target);
+            return ordinal;
+        }
+    }
+}
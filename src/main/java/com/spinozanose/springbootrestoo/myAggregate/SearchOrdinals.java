@@ -0,0 +1,200 @@
+package com.spinozanose.springbootrestoo.myAggregate;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Numbers the aggregates in the embedded search index, so the posting lists can hold small ints
+ * instead of ids.
+ * <p>
+ * An aggregate gets a new ordinal every time it is (re)indexed, and its old one is marked dead.
+ * That way a posting list never has to be edited in the middle: the old ordinal simply stops
+ * matching. Ordinals are handed out in increasing order, which is what lets posting lists be
+ * appended to. Once the dead ones outnumber the live ones the index renumbers (see
+ * {@link #renumber()}).
+ * <p>
+ * Each ordinal can also carry a number (aNumber, for the search index), kept in a plain int array
+ * so that checking it costs no more than an array read.
+ * <p>
+ * Going from an id to its ordinal uses an open-addressing table of ints, probing linearly and
+ * comparing against the ids array, so there is no boxed Integer or map entry per aggregate.
+ * <p>
+ * Not thread-safe; the search index guards it with its lock.
+ */
+final class SearchOrdinals {
+
+    private static final int EMPTY = 0;
+    private static final int REMOVED = -1;
+
+    private String[] ids = new String[1024];
+    private int[] numbers = new int[1024];
+    private final BitSet live = new BitSet();
+    private final BitSet numbered = new BitSet();
+    private int next;
+    private int liveCount;
+
+    // slots hold ordinal + 1, EMPTY or REMOVED
+    private int[] table = new int[2048];
+    private int used;
+
+    /**
+     * @return the new ordinal for the id, whose previous one (if any) is now dead
+     */
+    int add(final String id) {
+        if (next == ids.length) {
+            ids = Arrays.copyOf(ids, ids.length * 2);
+            numbers = Arrays.copyOf(numbers, ids.length);
+        }
+        final int ordinal = next++;
+        ids[ordinal] = id;
+        live.set(ordinal);
+        final int slot = slotOf(id);
+        if (slot >= 0) {
+            live.clear(table[slot] - 1);
+            table[slot] = ordinal + 1;
+            return ordinal;
+        }
+        liveCount++;
+        insert(ordinal);
+        if (used * 2 > table.length) {
+            rehash(table.length * (liveCount * 4 > table.length ? 2 : 1));
+        }
+        return ordinal;
+    }
+
+    /**
+     * @return the ordinal the id had, or -1 if it was not indexed
+     */
+    int remove(final String id) {
+        final int slot = slotOf(id);
+        if (slot < 0) return -1;
+        final int ordinal = table[slot] - 1;
+        table[slot] = REMOVED;
+        live.clear(ordinal);
+        liveCount--;
+        return ordinal;
+    }
+
+    /**
+     * @return the live ordinal of the id, or -1
+     */
+    int ordinalOf(final String id) {
+        final int slot = slotOf(id);
+        return slot < 0 ? -1 : table[slot] - 1;
+    }
+
+    String idOf(final int ordinal) {
+        return ids[ordinal];
+    }
+
+    void setNumber(final int ordinal, final int number) {
+        numbers[ordinal] = number;
+        numbered.set(ordinal);
+    }
+
+    boolean hasNumber(final int ordinal) {
+        return numbered.get(ordinal);
+    }
+
+    int numberOf(final int ordinal) {
+        return numbers[ordinal];
+    }
+
+    boolean isLive(final int ordinal) {
+        return live.get(ordinal);
+    }
+
+    /**
+     * @return the first live ordinal at or after the given one, or -1
+     */
+    int nextLive(final int from) {
+        return live.nextSetBit(from);
+    }
+
+    /**
+     * @return the number of ordinals handed out, live or dead
+     */
+    int size() {
+        return next;
+    }
+
+    int liveCount() {
+        return liveCount;
+    }
+
+    int deadCount() {
+        return next - liveCount;
+    }
+
+    /**
+     * Gives the live ordinals new, consecutive numbers in their current order, and forgets the
+     * dead ones.
+     *
+     * @return for each old ordinal its new one, or -1 if it was dead
+     */
+    int[] renumber() {
+        final int[] renumbered = new int[next];
+        final int capacity = Math.max(1024, Integer.highestOneBit(Math.max(1, liveCount)) * 2);
+        final String[] compactedIds = new String[capacity];
+        final int[] compactedNumbers = new int[capacity];
+        final BitSet compactedNumbered = new BitSet();
+        int count = 0;
+        for (int ordinal = 0; ordinal < next; ordinal++) {
+            if (live.get(ordinal)) {
+                compactedIds[count] = ids[ordinal];
+                compactedNumbers[count] = numbers[ordinal];
+                if (numbered.get(ordinal)) compactedNumbered.set(count);
+                renumbered[ordinal] = count++;
+            } else {
+                renumbered[ordinal] = -1;
+            }
+        }
+        ids = compactedIds;
+        numbers = compactedNumbers;
+        numbered.clear();
+        numbered.or(compactedNumbered);
+        next = count;
+        live.clear();
+        live.set(0, count);
+        rehash(Math.max(2048, Integer.highestOneBit(Math.max(1, count)) * 4));
+        return renumbered;
+    }
+
+    /**
+     * @return the slot holding the live ordinal of the id, or -1
+     */
+    private int slotOf(final String id) {
+        final int mask = table.length - 1;
+        for (int slot = spread(id.hashCode()) & mask; ; slot = (slot + 1) & mask) {
+            final int value = table[slot];
+            if (value == EMPTY) return -1;
+            if (value != REMOVED && ids[value - 1].equals(id)) return slot;
+        }
+    }
+
+    private void insert(final int ordinal) {
+        final int mask = table.length - 1;
+        int slot = spread(ids[ordinal].hashCode()) & mask;
+        while (table[slot] > 0) {
+            slot = (slot + 1) & mask;
+        }
+        if (table[slot] == EMPTY) used++;
+        table[slot] = ordinal + 1;
+    }
+
+    /**
+     * Rebuilds the table from the live ordinals, which also drops the REMOVED markers.
+     */
+    private void rehash(final int capacity) {
+        table = new int[capacity];
+        used = 0;
+        for (int ordinal = live.nextSetBit(0); ordinal >= 0; ordinal = live.nextSetBit(ordinal + 1)) {
+            insert(ordinal);
+        }
+    }
+
+    private static int spread(final int hash) {
+        final int h = hash * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,30 @@
+package com.spinozanose.springbootrestoo.myAggregate;
+
+/**
+ * Where a streaming search puts its results, one MyAggregate (in JSON) at a time, as it finds
+ * them. This lets a controller write each result out as soon as it is found, without the search
+ * knowing anything about HTTP.
+ */
+@FunctionalInterface
+interface SearchResultSink {
+
+    /**
+     * The search parameter to pass a cursor back in.
+     */
+    String CURSOR = "cursor";
+
+    /**
+     * @param json
+     * @return false to stop the search, for example because the client has gone away
+     */
+    boolean accept(String json);
+
+    /**
+     * Called before the first result of a page when there may be another page after it, with the
+     * cursor to ask for it (as the CURSOR parameter, with the other parameters unchanged).
+     *
+     * @param cursor
+     */
+    default void nextCursor(String cursor) {
+    }
+}
@@ -0,0 +1,170 @@
+package com.spinozanose.springbootrestoo.myAggregate;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * The ordinals (see SearchOrdinals) of the aggregates in the embedded search index, sorted by an
+ * int value, for range queries and sorting on that value.
+ * <p>
+ * Each entry is one long, the value in the high half and the ordinal in the low half, so sorting
+ * the longs sorts by value and then by ordinal, and there are no objects per entry. Finding where
+ * a range starts is a binary search, and after that the entries in it are next to each other, so
+ * a range costs O(log n + k).
+ * <p>
+ * Keeping one big sorted array sorted on every insert would move half of it each time. Instead,
+ * new entries go into a small sorted array of pending ones, and only when that fills up are the
+ * two merged. Readers walk both at once. The pending array grows with the square root of the main
+ * one, which keeps both the insert and the share of a merge per insert at about that cost.
+ * <p>
+ * Entries are never removed one by one. When an aggregate changes it gets a new ordinal, and the
+ * old entry is skipped because its ordinal is dead, until {@link #renumber(int[])} drops it.
+ * <p>
+ * Not thread-safe; the search index guards it with its lock.
+ */
+final class SortedIntIndex {
+
+    private static final int MINIMUM_PENDING = 256;
+
+    private long[] entries = new long[0];
+    private int size;
+    private long[] pending = new long[MINIMUM_PENDING];
+    private int pendingSize;
+
+    int size() {
+        return size + pendingSize;
+    }
+
+    void add(final int value, final int ordinal) {
+        final long entry = entry(value, ordinal);
+        int position = Arrays.binarySearch(pending, 0, pendingSize, entry);
+        if (position >= 0) return;
+        position = -position - 1;
+        System.arraycopy(pending, position, pending, position + 1, pendingSize - position);
+        pending[position] = entry;
+        if (++pendingSize == pending.length) {
+            merge();
+        }
+    }
+
+    /**
+     * Hands the ordinals of the entries from first to last (both inclusive, see
+     * {@link #entry(int, int)}) to the action, in order, until it returns false.
+     *
+     * @return false if the action stopped it
+     */
+    boolean forEach(final long first, final long last, final boolean descending, final IntPredicate action) {
+        if (first > last) return true;
+        if (descending) {
+            int i = upperBound(entries, size, last) - 1;
+            int j = upperBound(pending, pendingSize, last) - 1;
+            while (true) {
+                final long entry;
+                if (i >= 0 && (j < 0 || entries[i] > pending[j])) {
+                    entry = entries[i--];
+                } else if (j >= 0) {
+                    entry = pending[j--];
+                } else {
+                    return true;
+                }
+                if (entry < first) return true;
+                if (!action.test((int) entry)) return false;
+            }
+        } else {
+            int i = lowerBound(entries, size, first);
+            int j = lowerBound(pending, pendingSize, first);
+            while (true) {
+                final long entry;
+                if (i < size && (j == pendingSize || entries[i] < pending[j])) {
+                    entry = entries[i++];
+                } else if (j < pendingSize) {
+                    entry = pending[j++];
+                } else {
+                    return true;
+                }
+                if (entry > last) return true;
+                if (!action.test((int) entry)) return false;
+            }
+        }
+    }
+
+    /**
+     * Moves the entries to their new ordinals, dropping the dead ones. Renumbering keeps the order
+     * of the ordinals, so the entries stay sorted.
+     *
+     * @param renumbered for each old ordinal its new one, or -1 if it was dead
+     */
+    void renumber(final int[] renumbered) {
+        merge();
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            final int ordinal = renumbered[(int) entries[i]];
+            if (ordinal >= 0) {
+                entries[count++] = entry((int) (entries[i] >> 32), ordinal);
+            }
+        }
+        size = count;
+        entries = Arrays.copyOf(entries, count);
+    }
+
+    private void merge() {
+        final long[] merged = new long[size + pendingSize];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < size && j < pendingSize) {
+            merged[k++] = (entries[i] <= pending[j]) ? entries[i++] : pending[j++];
+        }
+        while (i < size) merged[k++] = entries[i++];
+        while (j < pendingSize) merged[k++] = pending[j++];
+        entries = merged;
+        size = merged.length;
+        pendingSize = 0;
+        final int pendingCapacity = Math.max(MINIMUM_PENDING, 2 * (int) Math.sqrt(size));
+        if (pending.length != pendingCapacity) {
+            pending = new long[pendingCapacity];
+        }
+    }
+
+    /**
+     * @return the entry of the ordinal with the value; entry(value, 0) is the first possible one
+     * with that value, and entry(value, -1) the last
+     */
+    static long entry(final int value, final int ordinal) {
+        return ((long) value << 32) | (ordinal & 0xffffffffL);
+    }
+
+    /**
+     * @return the first position whose entry is at least the key
+     */
+    private static int lowerBound(final long[] array, final int length, final long key) {
+        int low = 0;
+        int high = length;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (array[middle] < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the first position whose entry is more than the key
+     */
+    private static int upperBound(final long[] array, final int length, final long key) {
+        int low = 0;
+        int high = length;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (array[middle] <= key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,60 @@
+package com.spinozanose.springbootrestoo.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MyUUIDTest {
+
+    @Test
+    public void shouldMakeVersion7IdsThatOnlyGoUpWithinAThread() {
+        final long before = System.currentTimeMillis();
+        final List<MyUUID> ids = new ArrayList<>();
+        // more than a millisecond's worth of sequence, so it has to carry on into the next one
+        for (int i = 0; i < 10_000; i++) {
+            ids.add(new MyUUID());
+        }
+        final Set<String> strings = new HashSet<>();
+        for (int i = 0; i < ids.size(); i++) {
+            final MyUUID id = ids.get(i);
+            final UUID uuid = UUID.fromString(id.toString());
+            assertEquals(7, uuid.version());
+            assertEquals(2, uuid.variant());
+            assertTrue(id.timestamp() >= before);
+            assertTrue(strings.add(id.toString()));
+            if (i > 0) {
+                assertTrue(ids.get(i - 1).compareTo(id) < 0);
+                assertTrue(ids.get(i - 1).toString().compareTo(id.toString()) < 0);
+            }
+        }
+    }
+
+    @Test
+    public void shouldRoundTripTheBinaryForm() {
+        final MyUUID id = new MyUUID();
+        final byte[] bytes = id.toBytes();
+        assertEquals(16, bytes.length);
+        assertEquals(id, MyUUID.fromBytes(bytes));
+        assertEquals(id, MyUUID.fromString(id.toString()));
+        assertEquals(id.toString(), MyUUID.fromBytes(bytes).toString());
+        assertArrayEquals(bytes, MyUUID.fromString(id.toString()).toBytes());
+        assertEquals(id.hashCode(), MyUUID.fromBytes(bytes).hashCode());
+    }
+
+    @Test
+    public void shouldSortLikeTheStringsAndTheBytes() {
+        final MyUUID low = MyUUID.fromString("7fffffff-ffff-7fff-bfff-ffffffffffff");
+        final MyUUID high = MyUUID.fromString("80000000-0000-7000-8000-000000000000");
+        assertTrue(low.compareTo(high) < 0);
+        assertTrue(low.toString().compareTo(high.toString()) < 0);
+        assertTrue(Arrays.compareUnsigned(low.toBytes(), high.toBytes()) < 0);
+        assertEquals(-1, MyUUID.fromString(UUID.randomUUID().toString()).timestamp());
+    }
+}
@@ -0,0 +1,67 @@
+package com.spinozanose.springbootrestoo.common.cache;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BoundedCacheTest {
+
+    private static BoundedCache<String, String> cache(final long maximumWeight, final long timeToLiveNanos) {
+        return new BoundedCache<>(maximumWeight, 64, timeToLiveNanos, String::length);
+    }
+
+    @Test
+    public void shouldReturnWhatWasPut() {
+        final BoundedCache<String, String> cache = cache(100, TimeUnit.MINUTES.toNanos(1));
+        cache.put("key", "value", cache.generation("key"));
+        assertEquals("value", cache.get("key"));
+        assertNull(cache.get("other"));
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+    }
+
+    @Test
+    public void shouldStayWithinMaximumWeight() {
+        final BoundedCache<String, String> cache = cache(10, TimeUnit.MINUTES.toNanos(1));
+        for (int i = 0; i < 100; i++) {
+            cache.put("key" + i, "12345", cache.generation("key" + i));
+        }
+        assertTrue(cache.weight() <= 10);
+        assertTrue(cache.evictions() >= 98);
+    }
+
+    @Test
+    public void shouldKeepFrequentlyReadEntryOverOneOffs() {
+        final BoundedCache<String, String> cache = cache(10, TimeUnit.MINUTES.toNanos(1));
+        cache.put("hot", "12345", cache.generation("hot"));
+        for (int i = 0; i < 20; i++) {
+            cache.get("hot");
+        }
+        // a scan of keys that are read once should not push out the hot one
+        for (int i = 0; i < 100; i++) {
+            final String key = "cold" + i;
+            cache.get(key);
+            cache.put(key, "12345", cache.generation(key));
+        }
+        assertEquals("12345", cache.get("hot"));
+    }
+
+    @Test
+    public void shouldNotServeExpiredEntries() {
+        final BoundedCache<String, String> cache = cache(100, 0);
+        cache.put("key", "value", cache.generation("key"));
+        assertNull(cache.get("key"));
+    }
+
+    @Test
+    public void shouldNotPutValueLoadedBeforeInvalidation() {
+        final BoundedCache<String, String> cache = cache(100, TimeUnit.MINUTES.toNanos(1));
+        final long generation = cache.generation("key");
+        // the value is changed and invalidated while the stale one is being loaded
+        cache.invalidate("key");
+        cache.put("key", "stale", generation);
+        assertNull(cache.get("key"));
+    }
+}
@@ -0,0 +1,99 @@
+package com.spinozanose.springbootrestoo.common.concurrent;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StripedLocksTest {
+
+    @Test
+    public void shouldRoundStripesUpToAPowerOfTwo() {
+        assertEquals(256, new StripedLocks(200).stripes());
+        assertEquals(1, new StripedLocks(1).stripes());
+        assertEquals(0, new StripedLocks(0).stripes());
+    }
+
+    @Test
+    public void shouldMakeTheSameKeyTakeTurns() throws Exception {
+        final StripedLocks locks = new StripedLocks(16);
+        final int[] counter = new int[1];
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final Future<?>[] futures = new Future<?>[4];
+            for (int t = 0; t < futures.length; t++) {
+                futures[t] = executor.submit(() -> {
+                    for (int i = 0; i < 10_000; i++) {
+                        final StripedLocks.Held held = locks.lock("hot");
+                        try {
+                            counter[0]++;
+                        } finally {
+                            held.close();
+                        }
+                    }
+                });
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(40_000, counter[0]);
+        assertEquals(40_000, locks.acquisitions());
+        assertTrue(locks.maxHoldNanos() > 0);
+        assertTrue(locks.holdNanos() >= locks.maxHoldNanos());
+    }
+
+    @Test
+    public void shouldHandOutTheSameHeldForAStripeAndLetItBeTakenAgain() {
+        final StripedLocks locks = new StripedLocks(1);
+        final StripedLocks.Held outer = locks.lock("a");
+        final StripedLocks.Held inner = locks.lock("b");
+        assertSame(outer, inner);
+        inner.close();
+        // still held: the outer hold time is only counted once it is let go
+        assertEquals(0, locks.maxHoldNanos());
+        outer.close();
+        assertEquals(2, locks.acquisitions());
+    }
+
+    @Test
+    public void shouldNotMakeOtherStripesWait() throws Exception {
+        final StripedLocks locks = new StripedLocks(16);
+        final String hot = "hot";
+        String other = "other";
+        for (int i = 0; locks.stripeOf(other) == locks.stripeOf(hot); i++) {
+            other = "other" + i;
+        }
+        final String cold = other;
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread holder = new Thread(() -> {
+            final StripedLocks.Held held = locks.lock(hot);
+            try {
+                locked.countDown();
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                held.close();
+            }
+        });
+        holder.start();
+        assertTrue(locked.await(10, TimeUnit.SECONDS));
+        final StripedLocks.Held held = locks.lock(cold);
+        try {
+            assertEquals(0, locks.contended());
+        } finally {
+            held.close();
+            release.countDown();
+            holder.join();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.spinozanose.springbootrestoo.common.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void shouldPutEveryValueInABucketThatHoldsIt() {
+        int previous = -1;
+        for (long value = 0; value < (1L << 40); value = value * 5 / 4 + 1) {
+            final int index = LatencyHistogram.indexOf(value);
+            assertTrue(index >= previous, "buckets go up with the values");
+            assertTrue(LatencyHistogram.highestValueOf(index) >= value);
+            assertTrue(index == 0 || LatencyHistogram.highestValueOf(index - 1) < value);
+            previous = index;
+        }
+    }
+
+    @Test
+    public void shouldReportPercentilesWithinTheBucketWidth() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 10_000; value++) {
+            histogram.record(value * 1000);
+        }
+        assertEquals(10_000, histogram.count());
+        assertEquals(10_000_000, histogram.max());
+        assertEquals(5_000_500, histogram.mean(), 1);
+        assertEquals(5_000_000, histogram.valueAt(50), 5_000_000 / 16.0);
+        assertEquals(9_900_000, histogram.valueAt(99), 9_900_000 / 16.0);
+        assertTrue(histogram.valueAt(50) >= 5_000_000, "it errs on the slow side");
+        assertEquals(10_000_000, histogram.valueAt(100));
+    }
+
+    @Test
+    public void shouldReportNothingWhenEmpty() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.valueAt(99));
+        assertEquals(0, histogram.mean());
+    }
+}
@@ -0,0 +1,105 @@
+package com.spinozanose.springbootrestoo.email;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Like the file store, the outbox is tested against a real directory, because what matters is
+ * what survives closing and opening it again.
+ */
+public class EmailOutboxTest {
+
+    @TempDir
+    Path directory;
+
+    private static EmailMessage message(final int i) {
+        return new EmailMessage("sender@example.com", new String[]{"one@example.com", "two@example.com"}, "Subject " + i, "Message " + i);
+    }
+
+    private static final Consumer<List<EmailMessage>> VENDOR_DOWN = batch -> {
+        throw new IllegalStateException("The vendor is down");
+    };
+
+    private static void awaitSize(final List<?> list, final int size) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (list.size() < size && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void shouldSendWhatWasNotSentBeforeARestartAndNothingElse() throws IOException, InterruptedException {
+        try (EmailOutbox outbox = new EmailOutbox(directory, VENDOR_DOWN, 10, 1)) {
+            outbox.append(message(1));
+            outbox.append(message(2));
+            assertEquals(2, outbox.pending());
+        }
+        final List<EmailMessage> sent = Collections.synchronizedList(new ArrayList<>());
+        try (EmailOutbox outbox = new EmailOutbox(directory, sent::addAll, 10, 1)) {
+            awaitSize(sent, 2);
+            outbox.append(message(3));
+            awaitSize(sent, 3);
+        }
+        assertEquals(List.of(message(1), message(2), message(3)), sent);
+        // all of it was acknowledged, so a second restart has nothing to send
+        final List<EmailMessage> sentAgain = Collections.synchronizedList(new ArrayList<>());
+        try (EmailOutbox outbox = new EmailOutbox(directory, sentAgain::addAll, 10, 1)) {
+            assertEquals(0, outbox.pending());
+        }
+        assertTrue(sentAgain.isEmpty());
+    }
+
+    @Test
+    public void shouldRetryUntilTheVendorTakesIt() throws IOException, InterruptedException {
+        final AtomicInteger failuresLeft = new AtomicInteger(3);
+        final List<EmailMessage> sent = Collections.synchronizedList(new ArrayList<>());
+        final EmailOutbox outbox = new EmailOutbox(directory, batch -> {
+            if (failuresLeft.getAndDecrement() > 0) throw new IllegalStateException("The vendor is down");
+            sent.addAll(batch);
+        }, 10, 1);
+        outbox.append(message(1));
+        awaitSize(sent, 1);
+        // closing waits for the dispatcher, so the counts are up to date
+        outbox.close();
+        assertEquals(List.of(message(1)), sent);
+        assertEquals(3, outbox.retries());
+        assertEquals(1, outbox.sent());
+        assertEquals(0, outbox.pending());
+    }
+
+    @Test
+    public void shouldNotOpenADirectoryAnotherOutboxHasOpen() throws IOException {
+        final EmailOutbox outbox = new EmailOutbox(directory, VENDOR_DOWN, 10, 1);
+        assertThrows(IOException.class, () -> new EmailOutbox(directory, VENDOR_DOWN, 10, 1));
+        outbox.close();
+        new EmailOutbox(directory, VENDOR_DOWN, 10, 1).close();
+    }
+
+    @Test
+    public void shouldCutOffATornRecord() throws IOException, InterruptedException {
+        try (EmailOutbox outbox = new EmailOutbox(directory, VENDOR_DOWN, 10, 1)) {
+            outbox.append(message(1));
+        }
+        // half a record, as if the process died while appending it
+        Files.write(directory.resolve(EmailOutbox.LOG_FILE), new byte[]{0, 0, 0, 100, 1, 2, 3}, StandardOpenOption.APPEND);
+        final List<EmailMessage> sent = Collections.synchronizedList(new ArrayList<>());
+        try (EmailOutbox outbox = new EmailOutbox(directory, sent::addAll, 10, 1)) {
+            outbox.append(message(2));
+            awaitSize(sent, 2);
+        }
+        assertEquals(List.of(message(1), message(2)), sent);
+    }
+}
@@ -0,0 +1,143 @@
+package com.spinozanose.springbootrestoo.email;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EmailSendingServiceTest {
+
+    private static EmailMessage message(final int i) {
+        return new EmailMessage("sender@example.com", new String[]{"recipient@example.com"}, "Subject " + i, "Message");
+    }
+
+    /**
+     * Holds up the first call until released, so the messages behind it queue up.
+     */
+    private static final class StubVendor extends AVendorsEmailSendingService {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        final List<EmailMessage> sent = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void sendEmail(final EmailMessage message) {
+            sendEmails(Collections.singletonList(message));
+        }
+
+        @Override
+        public void sendEmails(final List<EmailMessage> messages) {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            batchSizes.add(messages.size());
+            sent.addAll(messages);
+        }
+    }
+
+    private static void awaitSent(final EmailSendingService service, final long count) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (service.sentCount() < count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void shouldSendOnTheCallersThreadByDefault() {
+        final EmailSendingService service = new EmailSendingService();
+        final StubVendor vendor = new StubVendor();
+        vendor.release.countDown();
+        service.service = vendor;
+        //
+        service.sendEmail(message(1));
+        //
+        assertEquals(Collections.singletonList(message(1)), vendor.sent);
+        assertEquals(0, service.queueDepth());
+    }
+
+    @Test
+    public void shouldBatchQueuedMessages() throws InterruptedException {
+        final EmailSendingService service = new EmailSendingService(true, 100, 1, 10);
+        final StubVendor vendor = new StubVendor();
+        service.service = vendor;
+        //
+        for (int i = 0; i < 21; i++) {
+            service.sendEmail(message(i));
+        }
+        assertTrue(service.queueDepth() >= 10);
+        vendor.release.countDown();
+        awaitSent(service, 21);
+        //
+        assertEquals(21, service.sentCount());
+        assertEquals(21, vendor.sent.size());
+        // the first call may have taken one message alone; after that they are batched
+        assertTrue(vendor.batchSizes.size() <= 4, vendor.batchSizes.toString());
+        assertEquals(0, service.droppedCount());
+    }
+
+    @Test
+    public void shouldDropWhenTheQueueIsFull() throws InterruptedException {
+        // batches of one, so the worker holds at most one message while the vendor keeps it waiting
+        final EmailSendingService service = new EmailSendingService(true, 5, 1, 1);
+        final StubVendor vendor = new StubVendor();
+        service.service = vendor;
+        //
+        for (int i = 0; i < 20; i++) {
+            service.sendEmail(message(i));
+        }
+        vendor.release.countDown();
+        awaitSent(service, 20 - service.droppedCount());
+        //
+        // the worker holds at most one while it waits, the queue five
+        assertTrue(service.droppedCount() >= 14, "dropped " + service.droppedCount());
+        assertEquals(20, service.sentCount() + service.droppedCount());
+    }
+
+    @Test
+    public void shouldKeepSendingAfterTheVendorThrowsAnError() throws Exception {
+        final EmailSendingService service = new EmailSendingService(true, 100, 1, 1);
+        final List<EmailMessage> sent = Collections.synchronizedList(new ArrayList<>());
+        service.service = new AVendorsEmailSendingService() {
+            @Override
+            public void sendEmails(final List<EmailMessage> messages) {
+                if (messages.contains(message(0))) throw new StackOverflowError("in the vendor's library");
+                sent.addAll(messages);
+            }
+        };
+        //
+        service.sendEmail(message(0));
+        service.sendEmail(message(1));
+        awaitSent(service, 1);
+        //
+        // the one worker there is lived on to send the second
+        assertEquals(1, service.failedCount());
+        assertEquals(Collections.singletonList(message(1)), sent);
+        service.close();
+    }
+
+    @Test
+    public void shouldSendWhatIsQueuedWhenClosed() throws Exception {
+        final EmailSendingService service = new EmailSendingService(true, 100, 2, 10);
+        final StubVendor vendor = new StubVendor();
+        service.service = vendor;
+        for (int i = 0; i < 30; i++) {
+            service.sendEmail(message(i));
+        }
+        vendor.release.countDown();
+        //
+        service.close();
+        //
+        assertEquals(30, service.sentCount());
+        assertEquals(0, service.queueDepth());
+        // and nothing is taken after that
+        service.sendEmail(message(30));
+        assertEquals(1, service.droppedCount());
+        assertEquals(30, vendor.sent.size());
+    }
+}
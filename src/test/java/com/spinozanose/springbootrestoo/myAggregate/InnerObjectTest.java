@@ -0,0 +1,49 @@
+package com.spinozanose.springbootrestoo.myAggregate;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InnerObjectTest {
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> parse(final String json) throws Exception {
+        return (JSONObject) new JSONParser().parse(json);
+    }
+
+    @Test
+    public void shouldShareOneInnerObjectForEqualData() throws Exception {
+        final InnerObject first = InnerObject.of(parse("{\"color\": \"Red\", \"size\": 3, \"tags\": [\"a\", {\"b\": 1}], \"nested\": {\"x\": null}}"));
+        final InnerObject second = InnerObject.of(parse("{\"nested\": {\"x\": null}, \"tags\": [\"a\", {\"b\": 1}], \"size\": 3, \"color\": \"Red\"}"));
+        final InnerObject other = InnerObject.of(parse("{\"color\": \"Blue\", \"size\": 3}"));
+        //
+        assertSame(first, second);
+        assertNotEquals(first, other);
+        // and nested objects are shared too
+        assertSame(InnerObject.of(parse("{\"x\": null}")).toMap(), first.toMap().get("nested"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldLookLikeTheMapItWasMadeOf() throws Exception {
+        final Map<String, Object> data = parse("{\"color\": \"Red\", \"size\": 3, \"tags\": [\"a\", {\"b\": 1}], \"nested\": {\"x\": null}}");
+        //
+        final Map<String, Object> map = InnerObject.of(data).toMap();
+        //
+        assertEquals(data, map);
+        assertEquals(map, data);
+        assertEquals(data.hashCode(), map.hashCode());
+        assertEquals(3L, map.get("size"));
+        assertTrue(map.containsKey("nested"));
+        assertFalse(map.containsKey("missing"));
+        assertEquals(JSONObject.toJSONString(new JSONObject(data)).length(), JSONObject.toJSONString(map).length());
+        assertThrows(UnsupportedOperationException.class, () -> map.put("color", "Blue"));
+        assertThrows(UnsupportedOperationException.class, () -> ((List<Object>) map.get("tags")).add("c"));
+        assertThrows(UnsupportedOperationException.class, () -> ((Map<String, Object>) map.get("nested")).clear());
+    }
+}
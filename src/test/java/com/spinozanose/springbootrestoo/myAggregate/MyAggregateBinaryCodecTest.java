@@ -0,0 +1,75 @@
+package com.spinozanose.springbootrestoo.myAggregate;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MyAggregateBinaryCodecTest {
+
+    @Test
+    public void shouldDecodeWhatJsonWouldHaveGiven() throws Exception {
+        final String json = "{\"id\": \"0190a1b2-c3d4-7e5f-8a9b-0c1d2e3f4a5b\", \"aNumber\": -123456, \"aString\": \"caf\u00e9 \ud83d\ude00\","
+                + " \"innerObject\": {\"color\": \"Red\", \"sizes\": [1, 2.5, true, null], \"nested\": {\"x\": \"y\"}}}";
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> data = (JSONObject) new JSONParser().parse(json);
+        //
+        final byte[] encoded = MyAggregateBinaryCodec.encode(data);
+        //
+        assertNotNull(encoded);
+        assertTrue(encoded.length * 2 < JSONObject.toJSONString(data).getBytes(StandardCharsets.UTF_8).length);
+        final Map<String, Object> decoded = MyAggregateBinaryCodec.decode(ByteBuffer.wrap(encoded));
+        assertEquals(data, decoded);
+        assertTrue(((Map<?, ?>) decoded.get(MyAggregateDto.INNER_OBJECT)).get("sizes") instanceof JSONArray);
+        assertEquals(JSONObject.toJSONString(decoded), new String(MyAggregateBinaryCodec.toJson(ByteBuffer.wrap(encoded)), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void shouldKeepIdsThatAreNotUuidsAsTheyAre() {
+        final Map<String, Object> data = new HashMap<>();
+        data.put(MyAggregateDto.ID, "0190A1B2-C3D4-7E5F-8A9B-0C1D2E3F4A5B");
+        data.put(MyAggregateDto.A_NUMBER, Integer.MIN_VALUE);
+        //
+        final Map<String, Object> decoded = MyAggregateBinaryCodec.decode(ByteBuffer.wrap(MyAggregateBinaryCodec.encode(data)));
+        //
+        assertEquals("0190A1B2-C3D4-7E5F-8A9B-0C1D2E3F4A5B", decoded.get(MyAggregateDto.ID));
+        assertEquals((long) Integer.MIN_VALUE, decoded.get(MyAggregateDto.A_NUMBER));
+        assertFalse(decoded.containsKey(MyAggregateDto.A_STRING));
+    }
+
+    @Test
+    public void shouldCarryOnAfterARecordLargerThanTheBuffersKeep() {
+        final Map<String, Object> large = new HashMap<>();
+        large.put(MyAggregateDto.A_STRING, "x".repeat(200 * 1024));
+        final Map<String, Object> small = new HashMap<>();
+        small.put(MyAggregateDto.A_STRING, "y");
+        //
+        final Map<String, Object> decodedLarge = MyAggregateBinaryCodec.decode(ByteBuffer.wrap(MyAggregateBinaryCodec.encode(large)));
+        final Map<String, Object> decodedSmall = MyAggregateBinaryCodec.decode(ByteBuffer.wrap(MyAggregateBinaryCodec.encode(small)));
+        //
+        assertEquals(large, decodedLarge);
+        assertEquals(small, decodedSmall);
+    }
+
+    @Test
+    public void shouldLeaveWhatDoesNotFitToJson() {
+        final Map<String, Object> data = new HashMap<>();
+        data.put(MyAggregateDto.ID, "one");
+        data.put("somethingElse", 1);
+        assertNull(MyAggregateBinaryCodec.encode(data));
+        data.remove("somethingElse");
+        data.put(MyAggregateDto.A_NUMBER, 1.5);
+        assertNull(MyAggregateBinaryCodec.encode(data));
+        data.remove(MyAggregateDto.A_NUMBER);
+        data.put(MyAggregateDto.A_STRING, null);
+        assertNull(MyAggregateBinaryCodec.encode(data));
+        assertThrows(IllegalArgumentException.class, () -> MyAggregateBinaryCodec.decode(ByteBuffer.wrap(new byte[]{9, 0})));
+    }
+}
@@ -2,26 +2,42 @@ package com.spinozanose.springbootrestoo.myAggregate;
 
 import com.spinozanose.springbootrestoo.common.exceptions.InvalidDomainDataException;
 import com.spinozanose.springbootrestoo.common.exceptions.ObjectNotFoundException;
+import com.spinozanose.springbootrestoo.common.exceptions.VersionConflictException;
 import com.spinozanose.springbootrestoo.email.EmailSendingService;
 import org.json.simple.JSONObject;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import static org.hamcrest.Matchers.equalTo;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
-import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.any;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 /**
@@ -57,15 +73,33 @@ public class MyAggregateControllerTest {
     @MockBean
     private MyAggregateService service;
 
+    @Autowired
+    private MyAggregateController controller;
+
+    /**
+     * The writes answer asynchronously: the first dispatch only starts the request, and the
+     * response comes from a second one, once the future is done.
+     */
+    private ResultActions performAsync(final RequestBuilder requestBuilder) throws Exception {
+        final MvcResult started = this.mockMvc.perform(requestBuilder)
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        return this.mockMvc.perform(asyncDispatch(started));
+    }
+
+    private static <T> CompletableFuture<T> failed(final Throwable e) {
+        return CompletableFuture.failedFuture(e);
+    }
+
     @Test
     public void shouldReturn201AndObjectOnCreate() throws Exception {
         // create mock of service
-        when(service.create(anyMap())).thenReturn(TEST_AGGREGATE);
+        when(service.createAsync(any(MyAggregateDto.class))).thenReturn(CompletableFuture.completedFuture(TEST_AGGREGATE));
         // set up data to be passed into controller (without id)
         final JSONObject jsonObject = new JSONObject(TEST_AGGREGATE.toMap());
         final String testAggregateJsonString= jsonObject.toJSONString();
         // and expect a URI in the Location header
-        this.mockMvc.perform(
+        performAsync(
                 post("/v1/myaggregate")
                         .contentType("application/json")
                         .content(testAggregateJsonString))
@@ -74,6 +108,37 @@ public class MyAggregateControllerTest {
                 .andExpect(header().string("Location", equalTo("/v1/myaggregate/testId")));
     }
 
+    @Test
+    public void shouldReadTheBodyIntoTheDtoOnCreate() throws Exception {
+        when(service.createAsync(any(MyAggregateDto.class))).thenReturn(CompletableFuture.completedFuture(TEST_AGGREGATE));
+        //
+        performAsync(
+                post("/v1/myaggregate")
+                        .contentType("application/json")
+                        .content("{\"aNumber\": 23, \"aString\": \"a string\", \"somethingElse\": [1, {}], \"innerObject\": {\"x\": 1}}"))
+                .andDo(print()).andExpect(status().isCreated());
+        //
+        final ArgumentCaptor<MyAggregateDto> dto = ArgumentCaptor.forClass(MyAggregateDto.class);
+        verify(service).createAsync(dto.capture());
+        assertNull(dto.getValue().id);
+        assertEquals(23, dto.getValue().aNumber);
+        assertEquals("a string", dto.getValue().aString);
+        assertNotNull(dto.getValue().innerObject);
+    }
+
+    @Test
+    public void shouldReturn400ForCreateWithBadJson() throws Exception {
+        this.mockMvc.perform(post("/v1/myaggregate").contentType("application/json").content("{\"aNumber\": "))
+                .andDo(print()).andExpect(status().isBadRequest());
+        this.mockMvc.perform(post("/v1/myaggregate").contentType("application/json").content("[]"))
+                .andDo(print()).andExpect(status().isBadRequest());
+        // it does not fit in an int
+        this.mockMvc.perform(post("/v1/myaggregate").contentType("application/json").content("{\"aNumber\": 12345678901}"))
+                .andDo(print()).andExpect(status().isBadRequest());
+        this.mockMvc.perform(post("/v1/myaggregate").contentType("application/json").content("{\"aString\": 1}"))
+                .andDo(print()).andExpect(status().isBadRequest());
+    }
+
     @Test
     public void shouldReturn200ForReadWithExistingId() throws Exception {
         //
@@ -86,6 +151,44 @@ public class MyAggregateControllerTest {
                 .andExpect(content().json(testAggregateRootJsonString));
     }
 
+    @Test
+    public void shouldAnswerNotModifiedFromTheVersionAlone() throws Exception {
+        when(service.version(TEST_ID)).thenReturn(7L);
+        when(service.read(TEST_ID)).thenReturn(TEST_AGGREGATE);
+        //
+        this.mockMvc.perform(get("/v1/myaggregate/" + TEST_ID))
+                .andDo(print()).andExpect(status().isOk())
+                .andExpect(header().string("ETag", "\"7\""));
+        this.mockMvc.perform(get("/v1/myaggregate/" + TEST_ID).header("If-None-Match", "\"7\""))
+                .andDo(print()).andExpect(status().isNotModified())
+                .andExpect(header().string("ETag", "\"7\""))
+                .andExpect(content().string(""));
+        // only the first request read the MyAggregate
+        verify(service, times(1)).read(TEST_ID);
+        //
+        when(service.version(TEST_ID)).thenReturn(8L);
+        this.mockMvc.perform(get("/v1/myaggregate/" + TEST_ID).header("If-None-Match", "\"7\""))
+                .andDo(print()).andExpect(status().isOk())
+                .andExpect(header().string("ETag", "\"8\""));
+    }
+
+    @Test
+    public void shouldPassStoredJsonThroughOnZeroCopyRead() throws Exception {
+        final String json = "{\"id\":\"testId\",\"aNumber\":23}";
+        when(service.readJson(TEST_ID)).thenReturn(ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer());
+        controller.zeroCopyReads = true;
+        try {
+            this.mockMvc.perform(get("/v1/myaggregate/" + TEST_ID))
+                    .andDo(print()).andExpect(status().isOk())
+                    .andExpect(header().string("Content-Type", "application/json"))
+                    .andExpect(content().string(json));
+            this.mockMvc.perform(get("/v1/myaggregate/nonexistentId"))
+                    .andDo(print()).andExpect(status().isNotFound());
+        } finally {
+            controller.zeroCopyReads = false;
+        }
+    }
+
     @Test
     public void shouldReturn404ForReadWithNonexistentId() throws Exception {
         this.mockMvc.perform(get("/v1/myaggregate/nonexistentId"))
@@ -93,15 +196,27 @@ public class MyAggregateControllerTest {
                 .andExpect(content().string(""));
     }
 
+    @Test
+    public void shouldServeTheMetrics() throws Exception {
+        when(service.metricsMap()).thenReturn(new MyAggregateMetrics().toMap());
+        //
+        this.mockMvc.perform(get("/v1/myaggregate/_metrics"))
+                .andDo(print()).andExpect(status().isOk())
+                .andExpect(jsonPath("$.operations.read.count").value(0))
+                .andExpect(jsonPath("$.stages.parse.p99").value(0))
+                .andExpect(jsonPath("$.errors.ObjectNotFoundException").value(0));
+        verify(service, times(0)).read(anyString());
+    }
+
     @Test
     public void shouldReturn404ForUpdateWithNonexistentId() throws Exception {
         //
-        Mockito.doThrow(new ObjectNotFoundException("Thrown from unit test"))
-                .when(service).update(anyMap());
+        when(service.updateAsync(any(MyAggregateDto.class), anyLong()))
+                .thenReturn(failed(new ObjectNotFoundException("Thrown from unit test")));
         //
         final JSONObject jsonObject = new JSONObject(TEST_AGGREGATE.toMap());
         final String testAggregateRootJsonString = jsonObject.toJSONString();
-        this.mockMvc.perform(
+        performAsync(
                 put("/v1/myaggregate/" + TEST_ID)
                         .content(testAggregateRootJsonString)
                         .contentType("application/json"))
@@ -112,11 +227,11 @@ public class MyAggregateControllerTest {
     @Test
     public void shouldReturn200ForValidUpdate() throws Exception {
         //
-        Mockito.doNothing().when(service).update(anyMap());
+        when(service.updateAsync(any(MyAggregateDto.class), anyLong())).thenReturn(CompletableFuture.completedFuture(null));
         //
         final JSONObject jsonObject = new JSONObject(TEST_AGGREGATE.toMap());
         final String testAggregateRootJsonString = jsonObject.toJSONString();
-        this.mockMvc.perform(
+        performAsync(
                 put("/v1/myaggregate/" + TEST_ID)
                         .content(testAggregateRootJsonString)
                         .contentType("application/json"))
@@ -126,18 +241,35 @@ public class MyAggregateControllerTest {
     }
 
     @Test
-    public void shouldReturn200ForDelete() throws Exception {
+    public void shouldReturn412ForUpdateWithStaleETag() throws Exception {
         //
-        Mockito.doNothing().when(service).delete(anyString());
+        when(service.updateAsync(any(MyAggregateDto.class), anyLong()))
+                .thenReturn(failed(new VersionConflictException("Thrown from unit test")));
         //
         final JSONObject jsonObject = new JSONObject(TEST_AGGREGATE.toMap());
-        final String testAggregateRootJsonString = jsonObject.toJSONString();
-        this.mockMvc.perform(
+        performAsync(
                 put("/v1/myaggregate/" + TEST_ID)
-                        .content(testAggregateRootJsonString)
-                        .contentType("application/json"))
+                        .content(jsonObject.toJSONString())
+                        .contentType("application/json")
+                        .header("If-Match", MyAggregateController.etagOf(7)))
+                .andDo(print())
+                .andExpect(status().isPreconditionFailed());
+        verify(service).updateAsync(any(MyAggregateDto.class), Mockito.eq(7L));
+    }
+
+    @Test
+    public void shouldReturn200ForDelete() throws Exception {
+        //
+        when(service.deleteAsync(anyString())).thenReturn(CompletableFuture.completedFuture(null));
+        //
+        performAsync(delete("/v1/myaggregate/" + TEST_ID).param("id", TEST_ID))
                 .andDo(print())
                 .andExpect(status().isOk())
                 .andExpect(content().string(""));
+        // delete is idempotent: deleting what is not there is fine too
+        when(service.deleteAsync(anyString())).thenReturn(failed(new ObjectNotFoundException("Thrown from unit test")));
+        performAsync(delete("/v1/myaggregate/" + TEST_ID).param("id", TEST_ID))
+                .andDo(print())
+                .andExpect(status().isOk());
     }
 }
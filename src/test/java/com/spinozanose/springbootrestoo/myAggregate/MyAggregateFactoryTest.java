@@ -4,14 +4,20 @@ import com.spinozanose.springbootrestoo.common.exceptions.DomainPersistenceExcep
 import com.spinozanose.springbootrestoo.common.exceptions.InvalidDomainDataException;
 import com.spinozanose.springbootrestoo.common.exceptions.InvalidSearchParametersException;
 import com.spinozanose.springbootrestoo.common.exceptions.ObjectNotFoundException;
+import com.spinozanose.springbootrestoo.common.exceptions.ServiceBusyException;
 import com.spinozanose.springbootrestoo.email.EmailSendingService;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.springframework.boot.test.context.SpringBootTest;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -30,6 +36,9 @@ import static org.junit.jupiter.api.Assertions.*;
 public class MyAggregateFactoryTest {
 
     private static final String TEST_ID = "testId";
+
+    @TempDir
+    Path directory;
     private static final MyAggregateRoot TEST_AGGREGATE;
     static {
         final MyAggregateRepository repository = null;
@@ -46,7 +55,7 @@ public class MyAggregateFactoryTest {
     }
 
     @Test
-    public void shouldReturnListOfObjectsOnValidSearch() throws InvalidSearchParametersException {
+    public void shouldReturnListOfObjectsOnValidSearch() throws InvalidSearchParametersException, DomainPersistenceException {
         // right now there is no real logic because we have not decided
         // on an implementation. The service result just passes through.
         final String testObject = "this is a test object in malformed JSON";
@@ -69,7 +78,7 @@ public class MyAggregateFactoryTest {
     @Test
     public void shouldThrowExceptionOnCreateWithId() {
         final MyAggregateFactory factory = new MyAggregateFactory();
-        factory.searchService = null;
+        factory.searchService = new MockMyAggregateSearchService();
         factory.repository = new MockMyAggregateRepository();
         //
         final Map<String,Object> data = TEST_AGGREGATE.toMap();
@@ -85,7 +94,7 @@ public class MyAggregateFactoryTest {
     @Test
     public void shouldPersistAndReturnNewAggregateOnCreate() throws InvalidDomainDataException, DomainPersistenceException {
         final MyAggregateFactory factory = new MyAggregateFactory();
-        factory.searchService = null;
+        factory.searchService = new MockMyAggregateSearchService();
         MockMyAggregateRepository mockRepository = new MockMyAggregateRepository();
         factory.repository = mockRepository;
         //
@@ -97,10 +106,51 @@ public class MyAggregateFactoryTest {
         assertEquals(createdMyAggregate.toMap(), mockRepository.object);
     }
 
+    @Test
+    public void shouldSearchTheRepositoryItWasMadeWith() throws Exception {
+        final MockMyAggregateRepository mockRepository = new MockMyAggregateRepository();
+        final MyAggregateFactory factory = new MyAggregateFactory(mockRepository);
+        // the mock cannot be scanned, so the index is loaded, empty, before anything is created
+        assertTrue(factory.search(Map.of()).isEmpty());
+        //
+        final Map<String,Object> data = new HashMap<>(TEST_AGGREGATE.toMap());
+        data.remove(MyAggregateDto.ID);
+        data.put(MyAggregateDto.A_STRING, "found in the mock");
+        final MyAggregate created = factory.create(data);
+        // the index reads what it finds from the mock, not from a file store
+        final List<String> found = factory.search(Map.of(MyAggregateDto.A_STRING, "mock"));
+        assertEquals(1, found.size());
+        assertTrue(found.get(0).contains((String) created.toMap().get(MyAggregateDto.ID)));
+    }
+
+    @Test
+    public void shouldCreateTheValidItemsAndReportTheOthersOnCreateAll() throws DomainPersistenceException {
+        final MyAggregateFactory factory = new MyAggregateFactory();
+        factory.searchService = new MockMyAggregateSearchService();
+        final MockMyAggregateRepository mockRepository = new MockMyAggregateRepository();
+        factory.repository = mockRepository;
+        //
+        final Map<String,Object> valid = new HashMap<>(TEST_AGGREGATE.toMap());
+        valid.remove(MyAggregateDto.ID);
+        final Map<String,Object> withId = new HashMap<>(TEST_AGGREGATE.toMap());
+        final Map<String,Object> wrongType = new HashMap<>(valid);
+        wrongType.put(MyAggregateDto.A_STRING, 23L);
+        final List<MyAggregateBatchResult> results = factory.createAll(List.of(valid, withId, wrongType));
+        //
+        assertEquals(3, results.size());
+        assertNotNull(results.get(0).id);
+        assertNull(results.get(0).error);
+        assertEquals(results.get(0).id, mockRepository.object.get(MyAggregateDto.ID));
+        assertNull(results.get(1).id);
+        assertNotNull(results.get(1).error);
+        assertNull(results.get(2).id);
+        assertNotNull(results.get(2).error);
+    }
+
     @Test
     public void shouldReturnMyAggregateOnRead() throws DomainPersistenceException {
         final MyAggregateFactory factory = new MyAggregateFactory();
-        factory.searchService = null;
+        factory.searchService = new MockMyAggregateSearchService();
         final MockMyAggregateRepository mockRepository = new MockMyAggregateRepository();
         mockRepository.object = TEST_AGGREGATE.toMap();
         factory.repository = mockRepository;
@@ -113,7 +163,7 @@ public class MyAggregateFactoryTest {
     @Test
     public void shouldChangeMyAggregateOnUpdate() throws InvalidDomainDataException, ObjectNotFoundException, DomainPersistenceException {
         final MyAggregateFactory factory = new MyAggregateFactory();
-        factory.searchService = null;
+        factory.searchService = new MockMyAggregateSearchService();
         final MockMyAggregateRepository mockRepository = new MockMyAggregateRepository();
         mockRepository.object = TEST_AGGREGATE.toMap();
         factory.repository = mockRepository;
@@ -130,7 +180,7 @@ public class MyAggregateFactoryTest {
     @Test
     public void shouldRemoveMyAggregateOnDelete() throws ObjectNotFoundException, DomainPersistenceException {
         final MyAggregateFactory factory = new MyAggregateFactory();
-        factory.searchService = null;
+        factory.searchService = new MockMyAggregateSearchService();
         final MockMyAggregateRepository mockRepository = new MockMyAggregateRepository();
         mockRepository.object = TEST_AGGREGATE.toMap();
         factory.repository = mockRepository;
@@ -140,10 +190,53 @@ public class MyAggregateFactoryTest {
         assertEquals(TEST_ID, mockRepository.deletedId);
     }
 
+    @Test
+    public void shouldCompleteAsyncWritesWithTheBlockingOnesExceptions() throws Exception {
+        final MyAggregateFactory factory = new MyAggregateFactory();
+        factory.searchService = new MockMyAggregateSearchService();
+        final MockMyAggregateRepository mockRepository = new MockMyAggregateRepository();
+        factory.repository = mockRepository;
+        //
+        final Map<String,Object> data = new HashMap<>(TEST_AGGREGATE.toMap());
+        data.remove(MyAggregateDto.ID);
+        final MyAggregate created = factory.createAsync(new MyAggregateDto(data)).get(10, TimeUnit.SECONDS);
+        assertEquals(created.toMap(), mockRepository.object);
+        // not wrapped, so the ControllerAdvice sees what it would have seen from update
+        final ExecutionException notFound = assertThrows(ExecutionException.class,
+                () -> factory.updateAsync(TEST_AGGREGATE.toDto(), MyAggregateRepository.ANY_VERSION).get(10, TimeUnit.SECONDS));
+        assertTrue(notFound.getCause() instanceof ObjectNotFoundException);
+        final ExecutionException withId = assertThrows(ExecutionException.class,
+                () -> factory.createAsync(TEST_AGGREGATE.toDto()).get(10, TimeUnit.SECONDS));
+        assertTrue(withId.getCause() instanceof InvalidDomainDataException);
+    }
+
+    @Test
+    public void shouldTurnAsyncWritesAwayWhenTheExecutorIsFull() throws Exception {
+        final MyAggregateFactory factory = new MyAggregateFactory();
+        factory.searchService = new MockMyAggregateSearchService();
+        final MockMyAggregateRepository mockRepository = new MockMyAggregateRepository();
+        mockRepository.object = TEST_AGGREGATE.toMap();
+        factory.repository = mockRepository;
+        factory.executor = runnable -> {
+            throw new RejectedExecutionException("full");
+        };
+        //
+        final Map<String,Object> data = new HashMap<>(TEST_AGGREGATE.toMap());
+        data.remove(MyAggregateDto.ID);
+        // the mock completes the write on this thread, which must not be the one to index and email
+        final ExecutionException created = assertThrows(ExecutionException.class,
+                () -> factory.createAsync(new MyAggregateDto(data)).get(10, TimeUnit.SECONDS));
+        assertTrue(created.getCause() instanceof ServiceBusyException);
+        final ExecutionException deleted = assertThrows(ExecutionException.class,
+                () -> factory.deleteAsync(TEST_ID).get(10, TimeUnit.SECONDS));
+        assertTrue(deleted.getCause() instanceof ServiceBusyException);
+        assertEquals("", mockRepository.deletedId);
+    }
+
     @Test
     public void shouldReturnErrorIfIdNotFoundOnDelete() {
         final MyAggregateFactory factory = new MyAggregateFactory();
-        factory.searchService = null;
+        factory.searchService = new MockMyAggregateSearchService();
         final MockMyAggregateRepository mockRepository = new MockMyAggregateRepository();
         mockRepository.object = TEST_AGGREGATE.toMap();
         factory.repository = mockRepository;
@@ -159,4 +252,18 @@ public class MyAggregateFactoryTest {
         assertEquals("", mockRepository.deletedId);
     }
 
+    @Test
+    public void shouldLetGoOfTheStoreWhenClosed() throws Exception {
+        final MyAggregateFactory factory = new MyAggregateFactory(new MyAggregateFileStoreRepository(directory, 4096));
+        final Map<String, Object> data = new HashMap<>();
+        data.put(MyAggregateDto.A_NUMBER, 23);
+        final String id = factory.create(data).toMap().get(MyAggregateDto.ID).toString();
+        //
+        factory.close();
+        //
+        // as another application context in the same JVM would
+        try (MyAggregateFileStoreRepository reopened = new MyAggregateFileStoreRepository(directory, 4096)) {
+            assertNotNull(reopened.read(id));
+        }
+    }
 }
@@ -0,0 +1,326 @@
+package com.spinozanose.springbootrestoo.myAggregate;
+
+import com.spinozanose.springbootrestoo.common.exceptions.DomainPersistenceException;
+import com.spinozanose.springbootrestoo.common.exceptions.VersionConflictException;
+import org.json.simple.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * These tests work against a real directory, because the interesting behavior of the file store
+ * is what ends up on disk and what can be read back after the store is reopened.
+ */
+public class MyAggregateFileStoreRepositoryTest {
+
+    @TempDir
+    Path directory;
+
+    private static Map<String, Object> aggregate(final String id, final int aNumber, final String aString) {
+        final Map<String, Object> data = new HashMap<>();
+        data.put(MyAggregateDto.ID, id);
+        data.put(MyAggregateDto.A_NUMBER, aNumber);
+        data.put(MyAggregateDto.A_STRING, aString);
+        return data;
+    }
+
+    @Test
+    public void shouldReadBackWhatWasWritten() throws DomainPersistenceException, IOException {
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 4096)) {
+            repository.write(aggregate("one", 1, "first"));
+            final Map<String, Object> data = repository.read("one");
+            // it comes back as a DTO would see it
+            final MyAggregateDto dto = new MyAggregateDto(data);
+            assertEquals("one", dto.id);
+            assertEquals(1, dto.aNumber);
+            assertEquals("first", dto.aString);
+            assertNull(repository.read("two"));
+        }
+    }
+
+    @Test
+    public void shouldReturnTheStoredJson() throws DomainPersistenceException, IOException {
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 4096)) {
+            final Map<String, Object> data = aggregate("one", 1, "first");
+            repository.write(data);
+            final ByteBuffer json = repository.readJson("one");
+            assertTrue(json.isReadOnly());
+            final byte[] bytes = new byte[json.remaining()];
+            json.get(bytes);
+            assertEquals(JSONObject.toJSONString(data), new String(bytes, StandardCharsets.UTF_8));
+            assertNull(repository.readJson("two"));
+        }
+    }
+
+    @Test
+    public void shouldReadJsonAndBinaryRecordsAlike() throws DomainPersistenceException, IOException {
+        final String uuid = "0190a1b2-c3d4-7e5f-8a9b-0c1d2e3f4a5b";
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 4096)) {
+            repository.write(aggregate("json", 1, "first"));
+        }
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 4096, true)) {
+            repository.write(aggregate(uuid, -2, "zweite \u00fcber"));
+            final Map<String, Object> extra = aggregate("extra", 3, "third");
+            extra.put("somethingElse", "kept");
+            repository.write(extra);
+            //
+            assertEquals("first", repository.read("json").get(MyAggregateDto.A_STRING));
+            final Map<String, Object> binary = repository.read(uuid);
+            assertEquals(uuid, binary.get(MyAggregateDto.ID));
+            assertEquals(-2L, binary.get(MyAggregateDto.A_NUMBER));
+            assertEquals("zweite \u00fcber", binary.get(MyAggregateDto.A_STRING));
+            // it did not fit the binary form, so it went in as JSON
+            assertEquals("kept", repository.read("extra").get("somethingElse"));
+            final ByteBuffer json = repository.readJson(uuid);
+            final byte[] bytes = new byte[json.remaining()];
+            json.get(bytes);
+            assertEquals(JSONObject.toJSONString(binary), new String(bytes, StandardCharsets.UTF_8));
+        }
+        // and the other way around
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 4096)) {
+            assertEquals(-2L, repository.read(uuid).get(MyAggregateDto.A_NUMBER));
+            assertEquals(3, repository.readAll(List.of("json", uuid, "extra")).size());
+        }
+    }
+
+    @Test
+    public void shouldReturnLatestVersionAndNothingAfterDelete() throws DomainPersistenceException, IOException {
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 4096)) {
+            repository.write(aggregate("one", 1, "first"));
+            final long first = repository.version("one");
+            repository.write(aggregate("one", 2, "second"));
+            assertEquals("second", repository.read("one").get(MyAggregateDto.A_STRING));
+            assertTrue(repository.version("one") > first);
+            repository.delete("one");
+            assertNull(repository.read("one"));
+            assertEquals(MyAggregateRepository.NO_VERSION, repository.version("one"));
+        }
+    }
+
+    @Test
+    public void shouldWriteOnlyOverTheExpectedVersion() throws Exception {
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 4096)) {
+            // nothing there yet is a version too
+            repository.write(aggregate("one", 1, "first"), MyAggregateRepository.NO_VERSION);
+            final long first = repository.version("one");
+            assertThrows(VersionConflictException.class,
+                    () -> repository.write(aggregate("one", 2, "again"), MyAggregateRepository.NO_VERSION));
+            repository.write(aggregate("one", 2, "second"), first);
+            // whoever still has the first version loses
+            assertThrows(VersionConflictException.class,
+                    () -> repository.write(aggregate("one", 3, "stale"), first));
+            assertEquals("second", repository.read("one").get(MyAggregateDto.A_STRING));
+        }
+    }
+
+    @Test
+    public void shouldWriteAllOfABatch() throws DomainPersistenceException, IOException {
+        final List<Map<String, Object>> batch = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            batch.add(aggregate("id" + i, i, "string " + i));
+        }
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 64 * 1024)) {
+            repository.writeAll(batch);
+        }
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 64 * 1024)) {
+            for (int i = 0; i < 3000; i++) {
+                assertEquals("string " + i, repository.read("id" + i).get(MyAggregateDto.A_STRING));
+            }
+        }
+    }
+
+    @Test
+    public void shouldReadManyAcrossSegments() throws DomainPersistenceException, IOException {
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 4096)) {
+            final List<String> ids = new ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                repository.write(aggregate("id" + i, i, "string " + i));
+                ids.add("id" + (499 - i));
+            }
+            repository.delete("id7");
+            ids.add("nonexistent");
+            //
+            final Map<String, Map<String, Object>> found = repository.readAll(ids);
+            //
+            assertEquals(499, found.size());
+            assertFalse(found.containsKey("id7"));
+            assertFalse(found.containsKey("nonexistent"));
+            assertEquals("string 123", found.get("id123").get(MyAggregateDto.A_STRING));
+        }
+    }
+
+    @Test
+    public void shouldRebuildIndexWhenReopened() throws DomainPersistenceException, IOException {
+        // small segments, so the data is spread over several of them
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 256)) {
+            for (int i = 0; i < 20; i++) {
+                repository.write(aggregate("id" + i, i, "value " + i));
+            }
+            repository.write(aggregate("id3", 33, "changed"));
+            repository.delete("id4");
+        }
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 256)) {
+            assertEquals("value 0", repository.read("id0").get(MyAggregateDto.A_STRING));
+            assertEquals("value 19", repository.read("id19").get(MyAggregateDto.A_STRING));
+            assertEquals("changed", repository.read("id3").get(MyAggregateDto.A_STRING));
+            assertNull(repository.read("id4"));
+            // and writing continues where it left off
+            repository.write(aggregate("id4", 4, "back again"));
+            assertEquals("back again", repository.read("id4").get(MyAggregateDto.A_STRING));
+        }
+    }
+
+    @Test
+    public void shouldRefuseSecondRepositoryOnSameDirectory() throws DomainPersistenceException, IOException {
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 4096)) {
+            repository.write(aggregate("one", 1, "first"));
+            final MyAggregateFileStoreRepository second = new MyAggregateFileStoreRepository(directory, 4096);
+            assertThrows(DomainPersistenceException.class, () -> second.read("one"));
+        }
+    }
+
+    @Test
+    public void shouldWriteAgainAfterAFailedWriteOnceReopened() throws DomainPersistenceException, IOException {
+        final MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 4096);
+        repository.write(aggregate("one", 1, "first"));
+        // an id too long for a record fails the append part way
+        final String tooLong = new String(new char[Short.MAX_VALUE + 1]).replace('\0', 'x');
+        assertThrows(DomainPersistenceException.class, () -> repository.write(aggregate(tooLong, 2, "second")));
+        assertThrows(DomainPersistenceException.class, () -> repository.write(aggregate("two", 2, "second")));
+        repository.close();
+        // the same instance, as the application would use it after closing
+        try (MyAggregateFileStoreRepository reopened = repository) {
+            reopened.write(aggregate("two", 2, "second"));
+            assertEquals("first", reopened.read("one").get(MyAggregateDto.A_STRING));
+            assertEquals("second", reopened.read("two").get(MyAggregateDto.A_STRING));
+        }
+    }
+
+    @Test
+    public void shouldCommitConcurrentWritesInGroups() throws Exception {
+        final int threads = 8;
+        final int writesPerThread = 50;
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 4096, TimeUnit.MICROSECONDS.toNanos(200))) {
+            final ExecutorService executor = Executors.newFixedThreadPool(threads);
+            final List<Future<?>> writers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                writers.add(executor.submit(() -> {
+                    for (int i = 0; i < writesPerThread; i++) {
+                        repository.write(aggregate(thread + "-" + i, i, "written by " + thread));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> writer : writers) {
+                writer.get();
+            }
+            executor.shutdown();
+            // every write is readable as soon as it returned
+            assertEquals("written by 3", repository.read("3-49").get(MyAggregateDto.A_STRING));
+        }
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 4096)) {
+            for (int t = 0; t < threads; t++) {
+                for (int i = 0; i < writesPerThread; i++) {
+                    assertNotNull(repository.read(t + "-" + i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void shouldKeepCommittingAfterTheCommitterThrowsAnError() throws Exception {
+        final AtomicInteger commits = new AtomicInteger();
+        final FileStoreGroupCommit groupCommit = new FileStoreGroupCommit(batch -> {
+            if (commits.getAndIncrement() == 0) throw new OutOfMemoryError("building the batch");
+            for (FileStoreAppend append : batch) {
+                append.done.complete(null);
+            }
+        }, 0, 16);
+        groupCommit.start();
+        final FileStoreAppend first = new FileStoreAppend("a", FileStoreRecord.DELETE, FileStoreRecord.FORMAT_NONE, null);
+        groupCommit.submit(first);
+        assertThrows(DomainPersistenceException.class, first::await);
+        // the committer is still there for the next writer
+        final FileStoreAppend second = new FileStoreAppend("b", FileStoreRecord.DELETE, FileStoreRecord.FORMAT_NONE, null);
+        groupCommit.submit(second);
+        assertNull(second.await());
+        groupCommit.stop();
+    }
+
+    @Test
+    public void shouldReclaimDeadRecordsOnCompaction() throws Exception {
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 512)) {
+            for (int version = 0; version < 50; version++) {
+                for (int i = 0; i < 5; i++) {
+                    repository.write(aggregate("id" + i, version, "version " + version));
+                }
+            }
+            repository.delete("id0");
+            final long segmentsBefore = segmentFiles();
+            assertTrue(repository.compact() > 0);
+            assertTrue(segmentFiles() < segmentsBefore);
+            assertNull(repository.read("id0"));
+            assertEquals("version 49", repository.read("id4").get(MyAggregateDto.A_STRING));
+            // writes after a compaction are not affected by it
+            repository.write(aggregate("id1", 50, "version 50"));
+            assertEquals("version 50", repository.read("id1").get(MyAggregateDto.A_STRING));
+        }
+        // and neither the deleted aggregate nor old versions come back on a restart
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 512)) {
+            assertNull(repository.read("id0"));
+            assertEquals("version 50", repository.read("id1").get(MyAggregateDto.A_STRING));
+            assertEquals("version 49", repository.read("id4").get(MyAggregateDto.A_STRING));
+        }
+    }
+
+    @Test
+    public void shouldNotBringBackADeletedAggregateAfterCompactingAcrossRestarts() throws Exception {
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 1024)) {
+            repository.write(aggregate("b", 0, "deleted later"));
+            for (int version = 0; segmentFiles() < 3; version++) {
+                repository.write(aggregate("f", version, "version " + version));
+            }
+            // b is copied to a segment numbered after the one being appended to
+            assertTrue(repository.compact() > 0);
+            final long segments = segmentFiles();
+            for (int version = 0; version < 8; version++) {
+                repository.write(aggregate("f", version, "again " + version));
+            }
+            repository.delete("b");
+            assertEquals(segments, segmentFiles());
+        }
+        // smaller segments, so the one holding the tombstone is worth compacting
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 256)) {
+            assertNull(repository.read("b"));
+            repository.compact();
+        }
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 256)) {
+            assertNull(repository.read("b"));
+            assertEquals("again 7", repository.read("f").get(MyAggregateDto.A_STRING));
+        }
+    }
+
+    private long segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> FileStoreSegment.idOf(file) >= 0).count();
+        }
+    }
+}
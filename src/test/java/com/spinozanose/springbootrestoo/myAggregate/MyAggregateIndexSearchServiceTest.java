@@ -0,0 +1,376 @@
+package com.spinozanose.springbootrestoo.myAggregate;
+
+import com.spinozanose.springbootrestoo.common.exceptions.DomainPersistenceException;
+import com.spinozanose.springbootrestoo.common.exceptions.InvalidSearchParametersException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The search service reads its matches from the repository, so it is tested on a real file store
+ * in a temporary directory, changed the way the factory changes it: write, then tell the index.
+ */
+public class MyAggregateIndexSearchServiceTest {
+
+    @TempDir
+    Path directory;
+
+    private static Map<String, Object> aggregate(final String id, final int aNumber, final String aString) {
+        final Map<String, Object> data = new HashMap<>();
+        data.put(MyAggregateDto.ID, id);
+        data.put(MyAggregateDto.A_NUMBER, aNumber);
+        data.put(MyAggregateDto.A_STRING, aString);
+        return data;
+    }
+
+    private static Map<String, String> parameters(final String... namesAndValues) {
+        final Map<String, String> parameters = new HashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            parameters.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return parameters;
+    }
+
+    private static void write(final MyAggregateRepository repository, final MyAggregateSearchService searchService,
+                              final Map<String, Object> data) throws DomainPersistenceException {
+        repository.write(data);
+        searchService.index(data);
+    }
+
+    @Test
+    public void shouldMatchAllWordsOfAString() throws Exception {
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 4096)) {
+            final MyAggregateIndexSearchService searchService = new MyAggregateIndexSearchService(repository);
+            write(repository, searchService, aggregate("one", 1, "Bananas don't fly"));
+            write(repository, searchService, aggregate("two", 2, "Pigs fly, bananas!"));
+            write(repository, searchService, aggregate("three", 3, "Bananas"));
+            //
+            assertEquals(3, searchService.search(parameters("aString", "BANANAS")).size());
+            final List<String> results = searchService.search(parameters("aString", "fly bananas"));
+            assertEquals(2, results.size());
+            assertTrue(results.get(0).contains("\"one\""));
+            assertTrue(results.get(1).contains("\"two\""));
+            assertEquals(1, searchService.search(parameters("aString", "fly", "aNumber", "2", "id", "two")).size());
+            assertTrue(searchService.search(parameters("aString", "pigs", "id", "one")).isEmpty());
+            assertTrue(searchService.search(parameters("aString", "elephants")).isEmpty());
+            assertEquals(3, searchService.search(null).size());
+        }
+    }
+
+    @Test
+    public void shouldMatchInnerObjectValues() throws Exception {
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 4096)) {
+            final MyAggregateIndexSearchService searchService = new MyAggregateIndexSearchService(repository);
+            final Map<String, Object> data = aggregate("one", 1, "first");
+            final Map<String, Object> innerObject = new HashMap<>();
+            innerObject.put("color", "Red");
+            data.put(MyAggregateDto.INNER_OBJECT, innerObject);
+            write(repository, searchService, data);
+            //
+            assertEquals(1, searchService.search(parameters("innerObject.color", "red")).size());
+            assertTrue(searchService.search(parameters("innerObject.color", "blue")).isEmpty());
+        }
+    }
+
+    @Test
+    public void shouldFollowUpdatesAndDeletes() throws Exception {
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 4096)) {
+            final MyAggregateIndexSearchService searchService = new MyAggregateIndexSearchService(repository);
+            write(repository, searchService, aggregate("one", 1, "old words"));
+            write(repository, searchService, aggregate("one", 1, "new words"));
+            assertTrue(searchService.search(parameters("aString", "old")).isEmpty());
+            assertEquals(1, searchService.search(parameters("aString", "words")).size());
+            //
+            repository.delete("one");
+            searchService.remove("one");
+            assertTrue(searchService.search(parameters("aString", "words")).isEmpty());
+        }
+    }
+
+    @Test
+    public void shouldStayCorrectThroughRenumbering() throws Exception {
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 1024 * 1024)) {
+            final MyAggregateIndexSearchService searchService = new MyAggregateIndexSearchService(repository);
+            // enough updates to leave more dead ordinals than live ones, several times over
+            for (int round = 0; round < 10; round++) {
+                for (int i = 0; i < 500; i++) {
+                    write(repository, searchService, aggregate("id" + i, i, ((i % 2 == 0) ? "even" : "odd") + " round" + round));
+                }
+            }
+            assertEquals(250, searchService.search(parameters("aString", "even round9")).size());
+            assertTrue(searchService.search(parameters("aString", "round8")).isEmpty());
+            assertEquals(1, searchService.search(parameters("aNumber", "499", "aString", "odd")).size());
+        }
+    }
+
+    @Test
+    public void shouldSearchANumberByRange() throws Exception {
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 1024 * 1024)) {
+            final MyAggregateIndexSearchService searchService = new MyAggregateIndexSearchService(repository);
+            // more than fit in the pending entries of the sorted index, in no particular order
+            for (int i = 0; i < 1000; i++) {
+                final int aNumber = (i * 7919) % 1000;
+                write(repository, searchService, aggregate("id" + aNumber, aNumber, (aNumber % 2 == 0) ? "even" : "odd"));
+            }
+            // as ?aNumber>=100&aNumber<500 arrives
+            assertEquals(400, searchService.search(parameters("aNumber>", "100", "aNumber<500", "")).size());
+            assertEquals(400, searchService.search(parameters("aNumber.gte", "100", "aNumber.lt", "500")).size());
+            assertEquals(200, searchService.search(parameters("aNumber.gt", "99", "aNumber.lte", "499", "aString", "odd")).size());
+            assertEquals(1, searchService.search(parameters("aNumber", "123")).size());
+            assertTrue(searchService.search(parameters("aNumber.gt", "500", "aNumber.lt", "501")).isEmpty());
+            assertTrue(searchService.search(parameters("aNumber.gt", String.valueOf(Integer.MAX_VALUE))).isEmpty());
+        }
+    }
+
+    @Test
+    public void shouldSortOnANumberAndLimit() throws Exception {
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 1024 * 1024)) {
+            final MyAggregateIndexSearchService searchService = new MyAggregateIndexSearchService(repository);
+            for (int i = 0; i < 1000; i++) {
+                final int aNumber = (i * 7919) % 1000;
+                write(repository, searchService, aggregate("id" + aNumber, aNumber, (aNumber % 2 == 0) ? "even" : "odd"));
+            }
+            // the maximum has changed since
+            write(repository, searchService, aggregate("id999", -1, "odd"));
+            //
+            final List<String> smallest = searchService.search(parameters("sort", "aNumber", "limit", "2"));
+            assertEquals(2, smallest.size());
+            assertTrue(smallest.get(0).contains("\"id999\""));
+            assertTrue(smallest.get(1).contains("\"id0\""));
+            final List<String> largest = searchService.search(parameters("sort", "-aNumber", "limit", "1"));
+            assertTrue(largest.get(0).contains("\"id998\""));
+            final List<String> largestOdd = searchService.search(parameters("sort", "-aNumber", "limit", "3", "aString", "odd", "aNumber<", "10"));
+            assertEquals(3, largestOdd.size());
+            assertTrue(largestOdd.get(0).contains("\"id9\""));
+            assertTrue(largestOdd.get(2).contains("\"id5\""));
+            assertThrows(InvalidSearchParametersException.class, () -> searchService.search(parameters("sort", "aString")));
+            assertThrows(InvalidSearchParametersException.class, () -> searchService.search(parameters("limit", "0")));
+        }
+    }
+
+    @Test
+    public void shouldNeverSeeAnAggregateTwiceWhileANumberChanges() throws Exception {
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 16 * 1024 * 1024)) {
+            final MyAggregateIndexSearchService searchService = new MyAggregateIndexSearchService(repository);
+            for (int i = 0; i < 100; i++) {
+                write(repository, searchService, aggregate("id" + i, i, "moving"));
+            }
+            final Thread writer = new Thread(() -> {
+                try {
+                    for (int round = 1; round <= 50; round++) {
+                        for (int i = 0; i < 100; i++) {
+                            write(repository, searchService, aggregate("id" + i, round * 1000 + i, "moving"));
+                        }
+                    }
+                } catch (DomainPersistenceException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            writer.start();
+            while (writer.isAlive()) {
+                assertEquals(100, searchService.search(parameters("aNumber.gte", "0", "sort", "aNumber")).size());
+            }
+            writer.join();
+            assertEquals(100, searchService.search(parameters("aNumber.gte", "50000")).size());
+        }
+    }
+
+    @Test
+    public void shouldStreamInBatchesAndStopWhenTheSinkDoes() throws Exception {
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 1024 * 1024)) {
+            final MyAggregateIndexSearchService searchService = new MyAggregateIndexSearchService(repository);
+            for (int i = 0; i < 1000; i++) {
+                write(repository, searchService, aggregate("id" + i, i, "streamed"));
+            }
+            // several batches, in the order they were written
+            final List<String> all = new ArrayList<>();
+            searchService.search(parameters("aString", "streamed"), all::add);
+            assertEquals(1000, all.size());
+            assertTrue(all.get(999).contains("\"id999\""));
+            // stopping
+            final List<String> some = new ArrayList<>();
+            searchService.search(parameters("aString", "streamed"), json -> some.add(json) && some.size() < 300);
+            assertEquals(300, some.size());
+        }
+    }
+
+    @Test
+    public void shouldKeepItsPlaceWhileTheIndexIsRenumbered() throws Exception {
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 1024 * 1024)) {
+            final MyAggregateIndexSearchService searchService = new MyAggregateIndexSearchService(repository);
+            for (int i = 0; i < 3000; i++) {
+                write(repository, searchService, aggregate("id" + i, i, (i < 1000) ? "kept" : "removed"));
+            }
+            final List<String> seen = new ArrayList<>();
+            searchService.search(parameters("sort", "-aNumber", "aString", "kept"), json -> {
+                seen.add(json);
+                if (seen.size() == 100) {
+                    // enough deletes to renumber the index halfway through the walk
+                    for (int i = 1000; i < 3000; i++) {
+                        searchService.remove("id" + i);
+                    }
+                }
+                return true;
+            });
+            assertEquals(1000, seen.size());
+            assertTrue(seen.get(999).contains("\"id0\""));
+        }
+    }
+
+    @Test
+    public void shouldKeepItsPlaceThroughMoreThanOneRenumbering() throws Exception {
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 1024 * 1024)) {
+            final MyAggregateIndexSearchService searchService = new MyAggregateIndexSearchService(repository);
+            for (int i = 0; i < 4700; i++) {
+                write(repository, searchService, aggregate("id" + i, i, (i < 500) ? "kept" : "removed"));
+            }
+            final List<String> seen = new ArrayList<>();
+            searchService.search(parameters("sort", "-aNumber", "aString", "kept"), json -> {
+                seen.add(json);
+                if (seen.size() == 100) {
+                    // the first 3000 deletes renumber the index once, the next 1200 again
+                    for (int i = 500; i < 4700; i++) {
+                        searchService.remove("id" + i);
+                    }
+                }
+                return true;
+            });
+            assertEquals(500, seen.size());
+            assertTrue(seen.get(499).contains("\"id0\""));
+        }
+    }
+
+    /**
+     * Collects one page, and the cursor to the next.
+     */
+    private static final class Page implements SearchResultSink {
+        final List<String> results = new ArrayList<>();
+        String nextCursor;
+
+        @Override
+        public boolean accept(final String json) {
+            return results.add(json);
+        }
+
+        @Override
+        public void nextCursor(final String cursor) {
+            nextCursor = cursor;
+        }
+    }
+
+    private static Page page(final MyAggregateIndexSearchService searchService, final Map<String, String> parameters,
+                             final String cursor) throws Exception {
+        final Map<String, String> withCursor = new HashMap<>(parameters);
+        if (cursor != null) withCursor.put(SearchResultSink.CURSOR, cursor);
+        final Page page = new Page();
+        searchService.search(withCursor, page);
+        return page;
+    }
+
+    @Test
+    public void shouldWalkAllPagesOnceWhileOthersChange() throws Exception {
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 4 * 1024 * 1024)) {
+            final MyAggregateIndexSearchService searchService = new MyAggregateIndexSearchService(repository);
+            for (int i = 0; i < 2000; i++) {
+                write(repository, searchService, aggregate("id" + i, i, (i % 2 == 0) ? "even" : "odd"));
+            }
+            for (Map<String, String> parameters : List.of(
+                    parameters("pageSize", "100"),
+                    parameters("pageSize", "100", "aString", "even"),
+                    parameters("pageSize", "100", "sort", "-aNumber"),
+                    parameters("pageSize", "100", "aNumber.lt", "1600", "aString", "even"))) {
+                for (int i = 0; i < 4000; i++) {
+                    write(repository, searchService, aggregate("other" + i, -1, "other"));
+                }
+                final Set<String> seen = new HashSet<>();
+                int deleted = 0;
+                String cursor = null;
+                do {
+                    final Page page = page(searchService, parameters, cursor);
+                    for (String json : page.results) {
+                        assertTrue(json.contains("other") || seen.add(json), json);
+                    }
+                    assertTrue(page.results.size() <= 100);
+                    cursor = page.nextCursor;
+                    // meanwhile, enough deletes to renumber the index under the walk
+                    for (int i = 0; i < 200 && deleted < 4000; i++, deleted++) {
+                        repository.delete("other" + deleted);
+                        searchService.remove("other" + deleted);
+                    }
+                } while (cursor != null);
+                final int expected = parameters.containsKey("aNumber.lt") ? 800 : parameters.containsKey("aString") ? 1000 : 2000;
+                assertEquals(expected, seen.size(), parameters.toString());
+            }
+        }
+    }
+
+    @Test
+    public void shouldFollowACursorThroughMoreThanOneRenumbering() throws Exception {
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 1024 * 1024)) {
+            final MyAggregateIndexSearchService searchService = new MyAggregateIndexSearchService(repository);
+            for (int i = 0; i < 4700; i++) {
+                write(repository, searchService, aggregate("id" + i, i, (i < 500) ? "kept" : "removed"));
+            }
+            final Map<String, String> parameters = parameters("pageSize", "100", "sort", "-aNumber", "aString", "kept");
+            final Set<String> seen = new HashSet<>();
+            Page page = page(searchService, parameters, null);
+            seen.addAll(page.results);
+            // renumbered twice between the first page and the second
+            for (int i = 500; i < 4700; i++) {
+                searchService.remove("id" + i);
+            }
+            while (page.nextCursor != null) {
+                page = page(searchService, parameters, page.nextCursor);
+                for (String json : page.results) {
+                    assertTrue(seen.add(json), json);
+                }
+            }
+            assertEquals(500, seen.size());
+        }
+    }
+
+    @Test
+    public void shouldRejectCursorOfAnotherSearch() throws Exception {
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 1024 * 1024)) {
+            final MyAggregateIndexSearchService searchService = new MyAggregateIndexSearchService(repository);
+            for (int i = 0; i < 10; i++) {
+                write(repository, searchService, aggregate("id" + i, i, "paged"));
+            }
+            final String cursor = page(searchService, parameters("pageSize", "3"), null).nextCursor;
+            assertNotNull(cursor);
+            assertEquals(3, page(searchService, parameters("pageSize", "3"), cursor).results.size());
+            assertThrows(InvalidSearchParametersException.class, () -> page(searchService, parameters("pageSize", "3", "aString", "paged"), cursor));
+            assertThrows(InvalidSearchParametersException.class, () -> page(searchService, parameters("pageSize", "3"), "garbage"));
+            final MyAggregateIndexSearchService restarted = new MyAggregateIndexSearchService(repository);
+            assertThrows(InvalidSearchParametersException.class, () -> page(restarted, parameters("pageSize", "3"), cursor));
+        }
+    }
+
+    @Test
+    public void shouldLoadWhatIsAlreadyInTheRepository() throws DomainPersistenceException, IOException, InvalidSearchParametersException {
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 4096)) {
+            repository.write(aggregate("one", 1, "written before the index existed"));
+            final MyAggregateIndexSearchService searchService = new MyAggregateIndexSearchService(repository);
+            assertEquals(1, searchService.search(parameters("aString", "before")).size());
+        }
+    }
+
+    @Test
+    public void shouldRejectUnknownParameters() throws IOException {
+        try (MyAggregateFileStoreRepository repository = new MyAggregateFileStoreRepository(directory, 4096)) {
+            final MyAggregateIndexSearchService searchService = new MyAggregateIndexSearchService(repository);
+            assertThrows(InvalidSearchParametersException.class, () -> searchService.search(parameters("colour", "red")));
+            assertThrows(InvalidSearchParametersException.class, () -> searchService.search(parameters("aNumber", "lots")));
+        }
+    }
+}
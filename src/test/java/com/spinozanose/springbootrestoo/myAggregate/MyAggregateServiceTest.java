@@ -1,12 +1,161 @@
 package com.spinozanose.springbootrestoo.myAggregate;
 
+import com.spinozanose.springbootrestoo.common.exceptions.DomainPersistenceException;
+import com.spinozanose.springbootrestoo.common.exceptions.InvalidDomainDataException;
+import com.spinozanose.springbootrestoo.common.exceptions.ObjectNotFoundException;
+import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
 /**
- * This is empty because the service, here just a Springboot formality, has
- * no functionality.
+ * The service, here mostly a Springboot formality, only has the read cache as functionality of
+ * its own. So that is what is tested here, with the factory set up on a mock repository.
  */
 @SpringBootTest
 public class MyAggregateServiceTest {
 
+    private static final String TEST_ID = "testId";
+
+    private static MyAggregateService serviceWith(final MockMyAggregateRepository repository) {
+        final Map<String, Object> data = new HashMap<>();
+        data.put(MyAggregateDto.ID, TEST_ID);
+        data.put(MyAggregateDto.A_NUMBER, 23);
+        data.put(MyAggregateDto.A_STRING, "cached");
+        repository.object = data;
+        final MyAggregateService service = new MyAggregateService();
+        service.factory.repository = repository;
+        service.factory.searchService = new MockMyAggregateSearchService();
+        return service;
+    }
+
+    @Test
+    public void shouldServeRepeatedReadsFromCache() throws DomainPersistenceException {
+        final MockMyAggregateRepository repository = new MockMyAggregateRepository();
+        final MyAggregateService service = serviceWith(repository);
+        //
+        final MyAggregate first = service.read(TEST_ID);
+        // the repository no longer has it, but the cache does
+        repository.object = new HashMap<>(repository.object);
+        repository.object.put(MyAggregateDto.ID, "someOtherId");
+        final MyAggregate second = service.read(TEST_ID);
+        //
+        assertSame(first, second);
+        assertEquals(1, service.cache.hits());
+        assertEquals(1, service.cache.misses());
+    }
+
+    @Test
+    public void shouldNotServeStaleDataAfterUpdate() throws DomainPersistenceException, InvalidDomainDataException, ObjectNotFoundException {
+        final MockMyAggregateRepository repository = new MockMyAggregateRepository();
+        final MyAggregateService service = serviceWith(repository);
+        service.read(TEST_ID);
+        //
+        final Map<String, Object> update = new HashMap<>();
+        update.put(MyAggregateDto.ID, TEST_ID);
+        update.put(MyAggregateDto.A_STRING, "updated");
+        service.update(update);
+        //
+        assertEquals("updated", service.read(TEST_ID).toMap().get(MyAggregateDto.A_STRING));
+    }
+
+    @Test
+    public void shouldNotServeDeletedAggregate() throws DomainPersistenceException, ObjectNotFoundException {
+        final MockMyAggregateRepository repository = new MockMyAggregateRepository();
+        final MyAggregateService service = serviceWith(repository);
+        service.read(TEST_ID);
+        //
+        service.delete(TEST_ID);
+        repository.object = new HashMap<>(repository.object);
+        repository.object.put(MyAggregateDto.ID, "someOtherId");
+        //
+        assertNull(service.read(TEST_ID));
+    }
+
+    /**
+     * Keeps a version, like the file store, which the mock does not.
+     */
+    private static final class VersionedRepository extends MockMyAggregateRepository {
+        long version = 1;
+
+        @Override
+        public void write(final Map<String, Object> data) {
+            super.write(data);
+            version++;
+        }
+
+        @Override
+        public Map<String, Object> read(final String id) {
+            return (version == NO_VERSION) ? null : super.read(id);
+        }
+
+        @Override
+        public long version(final String id) {
+            return (read(id) == null) ? NO_VERSION : version;
+        }
+
+        @Override
+        public void delete(final String id) {
+            super.delete(id);
+            version = NO_VERSION;
+        }
+    }
+
+    @Test
+    public void shouldNotServeTheCacheBetweenAWriteAndItsInvalidation() throws DomainPersistenceException {
+        final VersionedRepository repository = new VersionedRepository();
+        final MyAggregateService service = serviceWith(repository);
+        assertEquals("cached", service.read(TEST_ID).toMap().get(MyAggregateDto.A_STRING));
+        // an update has reached the repository, and the service has not invalidated the cache yet
+        final Map<String, Object> updated = new HashMap<>(repository.object);
+        updated.put(MyAggregateDto.A_STRING, "updated");
+        repository.write(updated);
+        // a conditional GET meanwhile: the version is the ETag, and the body has to be as new
+        assertEquals(2, service.version(TEST_ID));
+        assertEquals("updated", service.read(TEST_ID).toMap().get(MyAggregateDto.A_STRING));
+        // the same for a delete
+        repository.delete(TEST_ID);
+        assertEquals(MyAggregateRepository.NO_VERSION, service.version(TEST_ID));
+        assertNull(service.read(TEST_ID));
+        assertTrue(service.readAll(List.of(TEST_ID)).isEmpty());
+    }
+
+    @Test
+    public void shouldReadManyThroughTheCache() throws DomainPersistenceException {
+        final MockMyAggregateRepository repository = new MockMyAggregateRepository();
+        final MyAggregateService service = serviceWith(repository);
+        final MyAggregate first = service.read(TEST_ID);
+        //
+        final Map<String, MyAggregate> found = service.readAll(List.of(TEST_ID, "missingId"));
+        //
+        assertEquals(1, found.size());
+        assertSame(first, found.get(TEST_ID));
+        assertEquals(1, service.cache.hits());
+    }
+
+    @Test
+    public void shouldTimeOperationsAndCountFailuresByType() throws DomainPersistenceException, InvalidDomainDataException {
+        final MockMyAggregateRepository repository = new MockMyAggregateRepository();
+        final MyAggregateService service = serviceWith(repository);
+        //
+        service.read(TEST_ID);
+        service.read(TEST_ID);
+        assertThrows(ObjectNotFoundException.class, () -> service.delete("missingId"));
+        final Map<String, Object> withId = new HashMap<>(repository.object);
+        assertThrows(InvalidDomainDataException.class, () -> service.create(withId));
+        //
+        final MyAggregateMetrics metrics = service.metrics();
+        assertEquals(2, metrics.histogram(MyAggregateMetrics.Operation.READ).count());
+        assertEquals(1, metrics.histogram(MyAggregateMetrics.Operation.DELETE).count());
+        assertEquals(1, metrics.histogram(MyAggregateMetrics.Operation.CREATE).count());
+        assertEquals(1, metrics.errors(ObjectNotFoundException.class));
+        assertEquals(1, metrics.errors(InvalidDomainDataException.class));
+        assertEquals(0, metrics.errors(DomainPersistenceException.class));
+        // the create failed before it got that far
+        assertEquals(0, metrics.histogram(MyAggregateMetrics.Stage.PERSIST).count());
+    }
 }
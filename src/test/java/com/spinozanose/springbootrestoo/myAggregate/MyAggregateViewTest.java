@@ -0,0 +1,51 @@
+package com.spinozanose.springbootrestoo.myAggregate;
+
+import org.json.simple.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MyAggregateViewTest {
+
+    @Test
+    public void shouldBeTheSameMapAsAHashMapOfTheFields() {
+        final Map<String, Object> expected = new HashMap<>();
+        expected.put(MyAggregateDto.ID, "one");
+        expected.put(MyAggregateDto.A_NUMBER, 23);
+        expected.put(MyAggregateDto.A_STRING, null);
+        //
+        final Map<String, Object> view = new MyAggregateView("one", 23, null, null);
+        //
+        assertEquals(expected, view);
+        assertEquals(view, expected);
+        assertEquals(expected.hashCode(), view.hashCode());
+        assertEquals(3, view.size());
+        assertTrue(view.containsKey(MyAggregateDto.A_STRING));
+        assertFalse(view.containsKey(MyAggregateDto.INNER_OBJECT));
+        assertEquals(expected, new JSONObject(view));
+        assertEquals(4, new MyAggregateView("one", 23, null, InnerObject.of(new HashMap<>())).size());
+    }
+
+    @Test
+    public void shouldNotChangeWithTheRootNorBeChanged() throws Exception {
+        final Map<String, Object> data = new HashMap<>();
+        data.put(MyAggregateDto.ID, "one");
+        data.put(MyAggregateDto.A_NUMBER, 1);
+        data.put(MyAggregateDto.A_STRING, "first");
+        final MyAggregateRoot root = new MyAggregateRoot(new MyAggregateDto(data), null, null);
+        final Map<String, Object> before = root.toMap();
+        data.put(MyAggregateDto.A_STRING, "second");
+        //
+        root.update(new MyAggregateDto(data));
+        //
+        assertEquals("first", before.get(MyAggregateDto.A_STRING));
+        assertEquals("second", root.toMap().get(MyAggregateDto.A_STRING));
+        assertEquals("second", root.toDto().aString);
+        assertThrows(UnsupportedOperationException.class, () -> before.put(MyAggregateDto.A_STRING, "third"));
+        assertThrows(UnsupportedOperationException.class, () -> before.remove(MyAggregateDto.A_STRING));
+        assertThrows(UnsupportedOperationException.class, before::clear);
+    }
+}
@@ -5,13 +5,25 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 
@@ -38,4 +50,91 @@ public class MyAggregatesControllerTest {
                 .andDo(print()).andExpect(status().isOk())
                 .andExpect(content().json("[]"));
     }
+
+    @Test
+    public void shouldStreamResultsAsNdjson() throws Exception {
+        doAnswer(invocation -> {
+            final SearchResultSink sink = invocation.getArgument(1);
+            sink.accept("{\"id\":\"one\"}");
+            sink.accept("{\"id\":\"two\"}");
+            return null;
+        }).when(service).search(anyMap(), any(SearchResultSink.class));
+        //
+        this.mockMvc.perform(get("/v1/myaggregates").accept(MyAggregatesController.NDJSON))
+                .andDo(print()).andExpect(status().isOk())
+                .andExpect(header().string("Content-Type", MyAggregatesController.NDJSON + ";charset=UTF-8"))
+                .andExpect(content().string("{\"id\":\"one\"}\n{\"id\":\"two\"}\n"));
+    }
+
+    @Test
+    public void shouldLinkToTheNextPage() throws Exception {
+        doAnswer(invocation -> {
+            final SearchResultSink sink = invocation.getArgument(1);
+            sink.nextCursor("next");
+            sink.accept("{\"id\":\"one\"}");
+            return null;
+        }).when(service).search(anyMap(), any(SearchResultSink.class));
+        //
+        this.mockMvc.perform(get("/v1/myaggregates?pageSize=1&cursor=this"))
+                .andDo(print()).andExpect(status().isOk())
+                .andExpect(header().string("Link", "<http://localhost/v1/myaggregates?pageSize=1&cursor=next>; rel=\"next\""))
+                .andExpect(content().json("[\"{\\\"id\\\":\\\"one\\\"}\"]"));
+    }
+
+    @Test
+    public void shouldReportEachItemOfABatch() throws Exception {
+        when(service.createAllAsync(anyList())).thenReturn(CompletableFuture.completedFuture(List.of(
+                MyAggregateBatchResult.created("one"),
+                MyAggregateBatchResult.failed("Do not specify an id when creating a new MyAggregateRoot!"))));
+        //
+        final MvcResult result = this.mockMvc.perform(post("/v1/myaggregates/batch").contentType("application/json")
+                        .content("[{\"aNumber\":1}, 2, {\"id\":\"x\"}]"))
+                .andExpect(request().asyncStarted()).andReturn();
+        this.mockMvc.perform(asyncDispatch(result))
+                .andDo(print()).andExpect(status().isOk())
+                .andExpect(content().json("[{\"id\":\"one\"},{\"error\":\"Not a JSON Object\"},"
+                        + "{\"error\":\"Do not specify an id when creating a new MyAggregateRoot!\"}]"));
+    }
+
+    @Test
+    public void shouldTakeABatchAsNdjson() throws Exception {
+        when(service.createAllAsync(anyList())).thenReturn(CompletableFuture.completedFuture(List.of(
+                MyAggregateBatchResult.created("one"),
+                MyAggregateBatchResult.created("two"))));
+        //
+        final MvcResult result = this.mockMvc.perform(post("/v1/myaggregates/batch").contentType(MyAggregatesController.NDJSON)
+                        .content("{\"aNumber\":1}\n{not json\n\n{\"aNumber\":2}\n"))
+                .andExpect(request().asyncStarted()).andReturn();
+        this.mockMvc.perform(asyncDispatch(result))
+                .andDo(print()).andExpect(status().isOk())
+                .andExpect(content().json("[{\"id\":\"one\"},{\"error\":\"JSON Parse Error\"},{\"id\":\"two\"}]"));
+    }
+
+    @Test
+    public void shouldRejectABatchThatIsNotAnArray() throws Exception {
+        this.mockMvc.perform(post("/v1/myaggregates/batch").contentType("application/json").content("{}"))
+                .andDo(print()).andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void shouldRejectABatchOfTooManyItems() throws Exception {
+        final StringBuilder items = new StringBuilder("[");
+        for (int i = 0; i <= MyAggregatesController.MAX_ITEMS; i++) {
+            items.append((i == 0) ? "" : ",").append("{}");
+        }
+        this.mockMvc.perform(post("/v1/myaggregates/batch").contentType("application/json").content(items.append("]").toString()))
+                .andDo(print()).andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void shouldReturnFoundAndMissingOnMultiGet() throws Exception {
+        final Map<String, Object> data = Map.of(MyAggregateDto.ID, "one", MyAggregateDto.A_NUMBER, 1, MyAggregateDto.A_STRING, "first");
+        final MyAggregate one = new MyAggregateRoot(new MyAggregateDto(data), null, null);
+        when(service.readAll(anyCollection())).thenReturn(Map.of("one", one));
+        //
+        this.mockMvc.perform(post("/v1/myaggregates/_mget").contentType("application/json")
+                        .content("{\"ids\": [\"two\", \"one\", \"two\"]}"))
+                .andDo(print()).andExpect(status().isOk())
+                .andExpect(content().json("{\"found\":[{\"id\":\"one\",\"aNumber\":1,\"aString\":\"first\"}],\"missing\":[\"two\"]}", true));
+    }
 }